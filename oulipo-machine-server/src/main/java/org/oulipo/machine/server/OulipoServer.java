@@ -15,21 +15,24 @@
  *******************************************************************************/
 package org.oulipo.machine.server;
 
+import static spark.Spark.exception;
 import static spark.Spark.get;
 import static spark.Spark.post;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.oulipo.resources.DefaultThingRepository;
 import org.oulipo.resources.ThingRepository;
 import org.oulipo.resources.rdf.RdfDataMapper;
 import org.oulipo.security.auth.AuthResource;
+import org.oulipo.services.InvalidParameterException;
 import org.oulipo.services.OulipoRequestService;
 import org.oulipo.services.ResourceSessionManager;
 import org.oulipo.storage.StorageService;
 import org.oulipo.streams.RemoteFileManager;
-import org.oulipo.streams.StreamLoader;
 import org.oulipo.streams.impl.DefaultStreamLoader;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
@@ -45,6 +48,8 @@ public class OulipoServer {
 
 	private static final String JSON = "application/json";
 
+	private static final Logger LOG = Logger.getLogger(OulipoServer.class.getName());
+
 	public static void main(String[] args) throws IOException {
 		run("MyDatabases/Dataset14", "localhost:4567");
 	}
@@ -86,14 +91,30 @@ public class OulipoServer {
 		ResourceSessionManager sessionManager = new ResourceSessionManager(service, thingRepo);
 		JsonTransformer transformer = new JsonTransformer();
 
-		String spec = "maximumSize=10000,expireAfterWrite=10m";
-		StreamLoader streamLoader = new DefaultStreamLoader(new File("streams"), spec);
+		// cached streams may take up to a quarter of the heap
+		String spec = "expireAfterWrite=10m";
+		DefaultStreamLoader streamLoader = new DefaultStreamLoader(new File("streams"), spec, false,
+				DefaultStreamLoader.DEFAULT_FLUSH_INTERVAL_MILLIS, DefaultStreamLoader.DEFAULT_MAX_DIRTY_STREAMS,
+				Runtime.getRuntime().maxMemory() / 4);
 
 		AuthResource authResource = new AuthResource(sessionManager, objectMapper, host);
 		RemoteFileManager remoteFileManager = null;//TODO: implement new org.oulipo.services.IpfsFileManager();
 
 		OulipoRequestService serviceRequest = new OulipoRequestService(thingRepo, sessionManager, streamLoader,
 				remoteFileManager);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				serviceRequest.close();
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to close request service", e);
+			}
+			try {
+				streamLoader.close();
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to close stream loader", e);
+			}
+		}));
+
 		RequestsMapper req = new RequestsMapper(serviceRequest, sessionManager, thingRepo);
 
 		get("/auth", JSON, AuthApi.temporyAuthToken(authResource), transformer);
@@ -105,6 +126,11 @@ public class OulipoServer {
 		get("/docuverse/:hash/virtual", req.getVirtual(), transformer);
 		get("/docuverse/:hash/endsets", req.getEndsets(), transformer);
 		post("/docuverse/:hash", req.loadDocument(), transformer);
+
+		exception(InvalidParameterException.class, (e, request, response) -> {
+			response.status(400);
+			response.body(e.getMessage());
+		});
 	}
 
 }
@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.oulipo.services;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.security.SignatureException;
 import java.util.Collection;
@@ -35,7 +36,7 @@ import org.oulipo.streams.StreamLoader;
 /**
  * Main service for making Oulipo requests.
  */
-public final class OulipoRequestService {
+public final class OulipoRequestService implements Closeable {
 
 	private final DocumentService documentService;
 
@@ -47,6 +48,14 @@ public final class OulipoRequestService {
 		documentService = new DocumentService(thingRepo, sessionManager, streamLoader, remoteFileManager);
 	}
 
+	/**
+	 * Closes the machines of the documents
+	 */
+	@Override
+	public void close() throws IOException {
+		documentService.close();
+	}
+
 	public Collection<Thing> getAllDocuments(OulipoRequest request) {
 		return thingRepo.getAllThings("Document", request.queryParams());
 	}
@@ -74,7 +83,7 @@ public final class OulipoRequestService {
 	}
 
 	public Virtual getVirtual(OulipoRequest oulipoRequest) throws ResourceNotFoundException, UnauthorizedException,
-			AuthenticationException, IOException, MalformedSpanException {
+			AuthenticationException, IOException, MalformedSpanException, InvalidParameterException {
 		return documentService.getVirtual(oulipoRequest);
 	}
 
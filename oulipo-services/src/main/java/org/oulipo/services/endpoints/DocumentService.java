@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.oulipo.services.endpoints;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.security.SignatureException;
 import java.util.Collection;
@@ -27,6 +28,7 @@ import org.oulipo.resources.ResourceNotFoundException;
 import org.oulipo.resources.ThingRepository;
 import org.oulipo.security.auth.AuthenticationException;
 import org.oulipo.security.auth.UnauthorizedException;
+import org.oulipo.services.InvalidParameterException;
 import org.oulipo.services.OulipoRequest;
 import org.oulipo.services.ResourceSessionManager;
 import org.oulipo.services.responses.EndsetByType;
@@ -35,24 +37,34 @@ import org.oulipo.streams.MalformedSpanException;
 import org.oulipo.streams.OulipoMachine;
 import org.oulipo.streams.RemoteFileManager;
 import org.oulipo.streams.StreamLoader;
-import org.oulipo.streams.impl.DefaultOulipoMachine;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.impl.OulipoMachineRegistry;
 
-public final class DocumentService {
+public final class DocumentService implements Closeable {
 
-	private final RemoteFileManager remoteFileManager;
+	/**
+	 * Machines of the documents, shared by the requests
+	 */
+	private final OulipoMachineRegistry machines;
 
 	private final ResourceSessionManager sessionManager;
 
-	private final StreamLoader streamLoader;
-
 	private final ThingRepository thingRepo;
 
 	public DocumentService(ThingRepository thingRepo, ResourceSessionManager sessionManager, StreamLoader streamLoader,
 			RemoteFileManager remoteFileManager) {
 		this.thingRepo = thingRepo;
 		this.sessionManager = sessionManager;
-		this.streamLoader = streamLoader;
-		this.remoteFileManager = remoteFileManager;
+		this.machines = new OulipoMachineRegistry(streamLoader, remoteFileManager,
+				OulipoMachineRegistry.DEFAULT_IDLE_MILLIS);
+	}
+
+	/**
+	 * Closes the machines of the documents
+	 */
+	@Override
+	public void close() throws IOException {
+		machines.close();
 	}
 
 	public Document getDocument(OulipoRequest oulipoRequest)
@@ -69,21 +81,53 @@ public final class DocumentService {
 		sessionManager.getDocumentForReadAccess(oulipoRequest);
 
 		String documentAddress = oulipoRequest.getDocumentHash();
-		OulipoMachine om = DefaultOulipoMachine.createWritableMachine(streamLoader, remoteFileManager, documentAddress);
+		try (OulipoMachineRegistry.Lease lease = machines.acquire(documentAddress)) {
+			OulipoMachine om = lease.getMachine();
 
-		Collection<Thing> ispans = thingRepo.findEndsetsOfDoc(new IRI(documentAddress));
+			Collection<Thing> ispans = thingRepo.findEndsetsOfDoc(new IRI(documentAddress));
 
-		EndsetByType endset = new EndsetByType();
-		for (Thing thing : ispans) {
-		}		
-		//TODO: implementation
-		return endset;
+			EndsetByType endset = new EndsetByType();
+			for (Thing thing : ispans) {
+			}
+			//TODO: implementation
+			return endset;
+		}
+	}
+
+	/**
+	 * Gets the variant span of the <code>start</code> and <code>width</code> query
+	 * parameters
+	 * 
+	 * @return the variant span, or null if the request has neither parameter
+	 * @throws InvalidParameterException
+	 *             if only one of the parameters is given, or either is not a
+	 *             positive number
+	 */
+	private VariantSpan getVariantSpan(IRI documentAddress, Map<String, String> queryParams)
+			throws InvalidParameterException {
+		String start = queryParams.get("start");
+		String width = queryParams.get("width");
+		if (start == null && width == null) {
+			return null;
+		}
+		if (start == null || width == null) {
+			throw new InvalidParameterException(documentAddress, "Both start and width are required for a range");
+		}
+		try {
+			return new VariantSpan(Long.parseLong(start), Long.parseLong(width));
+		} catch (NumberFormatException | MalformedSpanException e) {
+			throw new InvalidParameterException(documentAddress,
+					"Invalid range: start = " + start + ", width = " + width, e);
+		}
 	}
 
 	/**
 	 * Gets a list of text partitions and invariant addresses of that text for a
 	 * document. This is used for transcluded content and for paid content.
 	 * 
+	 * If the request has <code>start</code> and <code>width</code> query
+	 * parameters, only the content within that variant range is returned.
+	 * 
 	 * @param oulipoRequest
 	 * @return
 	 * @throws ResourceNotFoundException
@@ -91,19 +135,27 @@ public final class DocumentService {
 	 * @throws AuthenticationException
 	 * @throws IOException
 	 * @throws MalformedSpanException
+	 * @throws InvalidParameterException
+	 *             if only one of <code>start</code> and <code>width</code> is
+	 *             given, or either is not a positive number
 	 */
 	public Virtual getVirtual(OulipoRequest oulipoRequest) throws ResourceNotFoundException, UnauthorizedException,
-			AuthenticationException, IOException, MalformedSpanException {
+			AuthenticationException, IOException, MalformedSpanException, InvalidParameterException {
 
 		Document document = sessionManager.getDocumentForReadAccess(oulipoRequest);
 		IRI documentAddress = document.subject;
-		OulipoMachine om = DefaultOulipoMachine.createWritableMachine(streamLoader, remoteFileManager,
-				documentAddress.value);
-
 		Virtual virtual = new Virtual();
 		virtual.subject = documentAddress;
-		virtual.content = om.getVirtualContent();
-		// TODO: need ranges
+
+		try (OulipoMachineRegistry.Lease lease = machines.acquire(documentAddress.value)) {
+			OulipoMachine om = lease.getMachine();
+			VariantSpan variantSpan = getVariantSpan(documentAddress, oulipoRequest.queryParams());
+			if (variantSpan != null) {
+				virtual.content = om.getVirtualContent(variantSpan);
+			} else {
+				virtual.content = om.getVirtualContent();
+			}
+		}
 		// TODO: check that content is either free or has been paid
 
 		return virtual;
@@ -112,8 +164,9 @@ public final class DocumentService {
 	public void loadDocument(OulipoRequest oulipoRequest) throws AuthenticationException, UnauthorizedException,
 			ResourceNotFoundException, IOException, MalformedSpanException, SignatureException {
 		String documentHash = oulipoRequest.getDocumentHash();
-		OulipoMachine om = DefaultOulipoMachine.createWritableMachine(streamLoader, remoteFileManager, documentHash);
-		om.loadDocument(documentHash);
+		try (OulipoMachineRegistry.Lease lease = machines.acquire(documentHash)) {
+			lease.getMachine().loadDocument(documentHash);
+		}
 	}
 
 }
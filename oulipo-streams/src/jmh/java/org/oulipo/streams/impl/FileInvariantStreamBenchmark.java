@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.oulipo.streams.InvariantStream;
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.types.InvariantSpan;
+
+/**
+ * Measures append throughput of <code>FileInvariantStream</code> with many
+ * threads appending to one or more documents.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class FileInvariantStreamBenchmark {
+
+	private File dir;
+
+	@Param({ "1", "8" })
+	public int documents;
+
+	@Param({ "1", "16" })
+	public int maxBatchSize;
+
+	private InvariantStream[] streams;
+
+	private String text;
+
+	@Param({ "16", "4096" })
+	public int textLength;
+
+	@Benchmark
+	@Threads(8)
+	public InvariantSpan append() throws IOException, MalformedSpanException {
+		return streams[ThreadLocalRandom.current().nextInt(streams.length)].append(text);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("oulipo-jmh").toFile();
+		streams = new InvariantStream[documents];
+		for (int i = 0; i < documents; i++) {
+			streams[i] = new FileInvariantStream(new File(dir, "doc" + i + "-invariant.txt"), null, "doc" + i, null,
+					maxBatchSize, maxBatchSize > 1 ? 1 : 0);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < textLength; i++) {
+			sb.append(i % 5 == 0 ? '\u6F22' : 'x');
+		}
+		text = sb.toString();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.types.InvariantSpan;
+
+/**
+ * Measures the throughput of the rope traversals on ropes of a million leaves:
+ * a balanced rope and a degenerate rope as produced by sequential appends. The
+ * traversals are iterative, so the degenerate rope must not overflow the call
+ * stack.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class RopeTraversalBenchmark {
+
+	/**
+	 * A new degenerate rope for each invocation, since partitioning mutates the
+	 * rope
+	 */
+	@State(Scope.Thread)
+	public static class PartitionState {
+
+		Node<InvariantSpan> root;
+
+		@Setup(Level.Invocation)
+		public void setUp(RopeTraversalBenchmark benchmark) throws MalformedSpanException {
+			root = degenerate(benchmark.leaves);
+		}
+	}
+
+	private static final String documentHash = "fakeHash";
+
+	private static Node<InvariantSpan> balanced(int leaves) throws MalformedSpanException {
+		List<InvariantSpan> spans = new ArrayList<>(leaves);
+		for (int i = 1; i <= leaves; i++) {
+			spans.add(new InvariantSpan(i, 1, documentHash));
+		}
+		return RopeUtils.build(spans);
+	}
+
+	/**
+	 * Builds a rope that leans entirely to the left, as sequential appends without
+	 * rebalancing do
+	 */
+	private static Node<InvariantSpan> degenerate(int leaves) throws MalformedSpanException {
+		Node<InvariantSpan> x = new Node<>(new InvariantSpan(1, 1, documentHash));
+		for (int i = 2; i <= leaves; i++) {
+			Node<InvariantSpan> leaf = new Node<>(new InvariantSpan(i, 1, documentHash));
+			x = new Node.Builder<InvariantSpan>(i - 1).left(x).right(leaf).build();
+		}
+		return x;
+	}
+
+	@Param({ "1000000" })
+	public int leaves;
+
+	private Node<InvariantSpan> leftmostLeaf;
+
+	private Node<InvariantSpan> root;
+
+	@Param({ "balanced", "degenerate" })
+	public String shape;
+
+	@Benchmark
+	public long addWeightsAndFindRoot() {
+		return RopeUtils.addWeightsOfRightLeaningParentNodes(leftmostLeaf) + RopeUtils.findRoot(leftmostLeaf).weight;
+	}
+
+	@Benchmark
+	public boolean collect() throws MalformedSpanException {
+		InvariantSpanCollector<InvariantSpan> collector = new InvariantSpanCollector<>(1);
+		collector.collect(root, 1, leaves + 1);
+		return collector.iterator().hasNext();
+	}
+
+	@Benchmark
+	public int collectLeafNodes() {
+		Queue<Node<InvariantSpan>> queue = new ArrayDeque<>();
+		RopeUtils.collectLeafNodes(root, queue);
+		return queue.size();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Measurement(iterations = 10)
+	@Warmup(iterations = 3)
+	public NodePartition<InvariantSpan> createNodePartition(PartitionState state) throws MalformedSpanException {
+		return Partitioner.createNodePartition(leaves / 2, state.root);
+	}
+
+	@Benchmark
+	public long index() throws MalformedSpanException {
+		return RopeUtils.index(ThreadLocalRandom.current().nextLong(1, leaves + 1), root, 0).displacement;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws MalformedSpanException {
+		root = "balanced".equals(shape) ? balanced(leaves) : degenerate(leaves);
+		leftmostLeaf = root;
+		while (!leftmostLeaf.isLeaf()) {
+			leftmostLeaf = leftmostLeaf.left;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams;
+
+import java.util.List;
+
+import org.oulipo.streams.types.Invariant;
+import org.oulipo.streams.types.OverlayStream;
+
+/**
+ * The state of a document as of a block of its <code>DocumentFile</code>
+ * chain: the elements of its variant streams after the ops of every block up to
+ * and including that block have been applied. A document with a checkpoint is
+ * loaded by replaying only the blocks after it.
+ */
+public final class Checkpoint {
+
+	private final List<Invariant> invariants;
+
+	private final List<OverlayStream> overlays;
+
+	/**
+	 * Constructs a checkpoint
+	 * 
+	 * @param invariants
+	 *            the elements of the invariant variant stream
+	 * @param overlays
+	 *            the elements of the overlay variant stream
+	 */
+	public Checkpoint(List<Invariant> invariants, List<OverlayStream> overlays) {
+		if (invariants == null) {
+			throw new IllegalArgumentException("invariants is null");
+		}
+		if (overlays == null) {
+			throw new IllegalArgumentException("overlays is null");
+		}
+		this.invariants = invariants;
+		this.overlays = overlays;
+	}
+
+	public List<Invariant> getInvariants() {
+		return invariants;
+	}
+
+	public List<OverlayStream> getOverlays() {
+		return overlays;
+	}
+}
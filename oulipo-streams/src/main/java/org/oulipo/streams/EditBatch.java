@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.oulipo.streams.overlays.Overlay;
+import org.oulipo.streams.types.StreamElement;
+
+/**
+ * An ordered batch of edits to apply to a <code>VariantStream</code> in a
+ * single call. Edits keep their order, and positions of each edit refer to the
+ * stream as left by the previous edits, just as if the edits were made one at a
+ * time.
+ * 
+ * Runs of edits are coalesced as they are added. Puts that continue at the end
+ * (or start) of the previous put become one put of several elements, which the
+ * rope streams insert with a single split and join. Deletes that continue at
+ * (or just before) the previous delete, as produced by typing delete or
+ * backspace, become one wider delete.
+ */
+public final class EditBatch<T extends StreamElement> {
+
+	private static final class Copy<S extends StreamElement> extends Edit<S> {
+
+		private final long to;
+
+		private final VariantSpan variantSpan;
+
+		Copy(long to, VariantSpan variantSpan) {
+			this.to = to;
+			this.variantSpan = variantSpan;
+		}
+
+		@Override
+		void apply(VariantStream<S> stream) throws MalformedSpanException, IOException {
+			stream.copy(to, variantSpan);
+		}
+	}
+
+	private static final class Delete<S extends StreamElement> extends Edit<S> {
+
+		private long start;
+
+		private long width;
+
+		Delete(long start, long width) {
+			this.start = start;
+			this.width = width;
+		}
+
+		@Override
+		void apply(VariantStream<S> stream) throws MalformedSpanException, IOException {
+			stream.delete(new VariantSpan(start, width));
+		}
+	}
+
+	private static abstract class Edit<S extends StreamElement> {
+
+		abstract void apply(VariantStream<S> stream) throws MalformedSpanException, IOException;
+	}
+
+	private static final class Move<S extends StreamElement> extends Edit<S> {
+
+		private final long to;
+
+		private final VariantSpan variantSpan;
+
+		Move(long to, VariantSpan variantSpan) {
+			this.to = to;
+			this.variantSpan = variantSpan;
+		}
+
+		@Override
+		void apply(VariantStream<S> stream) throws MalformedSpanException, IOException {
+			stream.move(to, variantSpan);
+		}
+	}
+
+	private static final class Overlays<S extends StreamElement> extends Edit<S> {
+
+		private final Set<Overlay> links;
+
+		private final VariantSpan variantSpan;
+
+		Overlays(VariantSpan variantSpan, Set<Overlay> links) {
+			this.variantSpan = variantSpan;
+			this.links = links;
+		}
+
+		@Override
+		void apply(VariantStream<S> stream) throws MalformedSpanException, IOException {
+			stream.applyOverlays(variantSpan, links);
+		}
+	}
+
+	private static final class Put<S extends StreamElement> extends Edit<S> {
+
+		private final List<S> elements = new ArrayList<>();
+
+		private long to;
+
+		private long width;
+
+		Put(long to, S element) {
+			this.to = to;
+			add(element);
+		}
+
+		private void add(S element) {
+			elements.add(element);
+			width += element.getWidth();
+		}
+
+		@Override
+		void apply(VariantStream<S> stream) throws MalformedSpanException, IOException {
+			stream.putElements(to, elements);
+		}
+	}
+
+	private static final class Swap<S extends StreamElement> extends Edit<S> {
+
+		private final VariantSpan v1;
+
+		private final VariantSpan v2;
+
+		Swap(VariantSpan v1, VariantSpan v2) {
+			this.v1 = v1;
+			this.v2 = v2;
+		}
+
+		@Override
+		void apply(VariantStream<S> stream) throws MalformedSpanException, IOException {
+			stream.swap(v1, v2);
+		}
+	}
+
+	private static final class ToggleOverlay<S extends StreamElement> extends Edit<S> {
+
+		private final Overlay link;
+
+		private final VariantSpan variantSpan;
+
+		ToggleOverlay(VariantSpan variantSpan, Overlay link) {
+			this.variantSpan = variantSpan;
+			this.link = link;
+		}
+
+		@Override
+		void apply(VariantStream<S> stream) throws MalformedSpanException, IOException {
+			stream.toggleOverlay(variantSpan, link);
+		}
+	}
+
+	private final List<Edit<T>> edits = new ArrayList<>();
+
+	public EditBatch<T> applyOverlays(VariantSpan variantSpan, Set<Overlay> links) {
+		assertSpanNotNull(variantSpan);
+		edits.add(new Overlays<T>(variantSpan, links));
+		return this;
+	}
+
+	/**
+	 * Applies the edits of this batch, in order, to the specified stream
+	 * 
+	 * @param stream
+	 *            the stream to edit
+	 * @throws MalformedSpanException
+	 * @throws IOException
+	 */
+	public void applyTo(VariantStream<T> stream) throws MalformedSpanException, IOException {
+		for (Edit<T> edit : edits) {
+			edit.apply(stream);
+		}
+	}
+
+	private void assertSpanNotNull(Object span) {
+		if (span == null) {
+			throw new IllegalArgumentException("span is null");
+		}
+	}
+
+	public EditBatch<T> copy(long to, VariantSpan variantSpan) {
+		assertSpanNotNull(variantSpan);
+		edits.add(new Copy<T>(to, variantSpan));
+		return this;
+	}
+
+	/**
+	 * Adds a delete of the specified variant span. If the previous edit is a delete
+	 * that starts at the same position, or at the end of the specified span, the
+	 * two deletes are merged.
+	 */
+	public EditBatch<T> delete(VariantSpan variantSpan) {
+		assertSpanNotNull(variantSpan);
+		Edit<T> last = last();
+		if (last instanceof Delete) {
+			Delete<T> delete = (Delete<T>) last;
+			if (variantSpan.start == delete.start) {
+				delete.width += variantSpan.width;
+				return this;
+			} else if (variantSpan.start + variantSpan.width == delete.start) {
+				delete.start = variantSpan.start;
+				delete.width += variantSpan.width;
+				return this;
+			}
+		}
+		edits.add(new Delete<T>(variantSpan.start, variantSpan.width));
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return edits.isEmpty();
+	}
+
+	private Edit<T> last() {
+		return edits.isEmpty() ? null : edits.get(edits.size() - 1);
+	}
+
+	public EditBatch<T> move(long to, VariantSpan variantSpan) {
+		assertSpanNotNull(variantSpan);
+		edits.add(new Move<T>(to, variantSpan));
+		return this;
+	}
+
+	/**
+	 * Adds a put of the specified element. If the previous edit is a put that ends
+	 * at, or starts at, the specified position, the element is added to that put.
+	 */
+	public EditBatch<T> put(long to, T element) {
+		assertSpanNotNull(element);
+		Edit<T> last = last();
+		if (last instanceof Put) {
+			Put<T> put = (Put<T>) last;
+			if (to == put.to + put.width) {
+				put.add(element);
+				return this;
+			} else if (to == put.to) {
+				put.elements.add(0, element);
+				put.width += element.getWidth();
+				return this;
+			}
+		}
+		edits.add(new Put<T>(to, element));
+		return this;
+	}
+
+	/**
+	 * Gets the number of edits in this batch, after coalescing
+	 * 
+	 * @return the number of edits
+	 */
+	public int size() {
+		return edits.size();
+	}
+
+	public EditBatch<T> swap(VariantSpan v1, VariantSpan v2) {
+		assertSpanNotNull(v1);
+		assertSpanNotNull(v2);
+		edits.add(new Swap<T>(v1, v2));
+		return this;
+	}
+
+	public EditBatch<T> toggleOverlay(VariantSpan variantSpan, Overlay link) {
+		assertSpanNotNull(variantSpan);
+		edits.add(new ToggleOverlay<T>(variantSpan, link));
+		return this;
+	}
+}
@@ -15,7 +15,11 @@
  *******************************************************************************/
 package org.oulipo.streams;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 import org.oulipo.streams.types.InvariantSpan;
 
@@ -28,7 +32,7 @@ import org.oulipo.streams.types.InvariantSpan;
  * 
  * @see <a href="http://xanadu.com/tech/">IStream reference</a>
  */
-public interface InvariantStream {
+public interface InvariantStream extends Closeable {
 
 	/**
 	 * Appends text to the end of the IStream.
@@ -43,6 +47,16 @@ public interface InvariantStream {
 	 */
 	InvariantSpan append(String text) throws IOException, MalformedSpanException;
 
+	/**
+	 * Closes the files of this stream. The default implementation does nothing.
+	 * 
+	 * @throws IOException
+	 *             if there is an I/O problem in closing the stream
+	 */
+	@Override
+	default void close() throws IOException {
+	}
+
 	/**
 	 * Gets the text bounded by the specified invariantSpan. The text is pulled from
 	 * the IStream between [invariantSpan.start, invariantSpan.start +
@@ -54,4 +68,49 @@ public interface InvariantStream {
 	 * @throws IOException
 	 */
 	String getText(InvariantSpan invariantSpan) throws IOException;
+
+	/**
+	 * Gets the text bounded by each of the specified invariant spans. The spans are
+	 * sorted by start position and spans that overlap or are adjacent are read
+	 * together, so a fragmented document is read with one
+	 * <code>getText</code> call per contiguous range of the IStream, rather than
+	 * one per span.
+	 * 
+	 * @param invariantSpans
+	 *            text bounds within IStream. Spans may be in any order.
+	 * @return the text of each span, in the same order as the specified spans
+	 * @throws IOException
+	 *             if there is an I/O problem in reading the stream
+	 * @throws MalformedSpanException
+	 *             if any of the spans is malformed
+	 */
+	default List<String> getTexts(List<InvariantSpan> invariantSpans) throws IOException, MalformedSpanException {
+		Integer[] order = new Integer[invariantSpans.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingLong(i -> invariantSpans.get(i).getStart()));
+
+		String[] texts = new String[order.length];
+		int i = 0;
+		while (i < order.length) {
+			InvariantSpan first = invariantSpans.get(order[i]);
+			long start = first.getStart();
+			long end = start + first.getWidth();
+			int j = i + 1;
+			while (j < order.length && invariantSpans.get(order[j]).getStart() <= end) {
+				InvariantSpan span = invariantSpans.get(order[j++]);
+				end = Math.max(end, span.getStart() + span.getWidth());
+			}
+
+			String text = j == i + 1 ? getText(first)
+					: getText(new InvariantSpan(start, end - start, first.getDocumentHash()));
+			for (; i < j; i++) {
+				InvariantSpan span = invariantSpans.get(order[i]);
+				int from = (int) (span.getStart() - start);
+				texts[order[i]] = text.substring(from, from + (int) span.getWidth());
+			}
+		}
+		return Arrays.asList(texts);
+	}
 }
@@ -23,7 +23,6 @@ import java.util.Set;
 
 import org.oulipo.streams.overlays.Overlay;
 import org.oulipo.streams.types.Invariant;
-import org.oulipo.streams.types.InvariantMedia;
 import org.oulipo.streams.types.InvariantSpan;
 import org.oulipo.streams.types.OverlayStream;
 
@@ -80,26 +79,24 @@ public interface OulipoMachine extends InvariantStream {
 	 *             if any of the spans is malformed or out of index range
 	 */
 	default List<VirtualContent> getVirtualContent() throws IOException, MalformedSpanException {
-		List<VirtualContent> virtuals = new ArrayList<>();
-		List<Invariant> invariants = getInvariants();
-		int order = 0;
-		for (Invariant invariant : invariants) {
-			VirtualContent vc = new VirtualContent();
-			vc.invariant = invariant;
-
-			vc.order = order++;
-			vc.documentHash = getDocumentHash();
-			if (invariant instanceof InvariantSpan) {
-				// TODO: check is encrypted/paid
-				vc.content = getText((InvariantSpan) invariant);
-			} else if (invariant instanceof InvariantMedia) {
-
-			}
-
-			virtuals.add(vc);
-		}
+		return toVirtualContent(getInvariants());
+	}
 
-		return virtuals;
+	/**
+	 * Gets the virtual content of the homeDocument within the specified variant
+	 * span. Only the invariants within the span are looked up, so this is suitable
+	 * for rendering a window of a large document.
+	 * 
+	 * @param variantSpan
+	 *            the range of the document to get content for
+	 * @return ordered collection of VirtualContent
+	 * @throws IOException
+	 * @throws MalformedSpanException
+	 *             if any of the spans is malformed or out of index range
+	 */
+	default List<VirtualContent> getVirtualContent(VariantSpan variantSpan)
+			throws IOException, MalformedSpanException {
+		return toVirtualContent(getInvariants(variantSpan));
 	}
 
 	/**
@@ -150,4 +147,41 @@ public interface OulipoMachine extends InvariantStream {
 	 */
 	void toggleOverlay(VariantSpan variantSpan, Overlay link) throws MalformedSpanException, IOException;
 
+	/**
+	 * Gets the virtual content of the specified invariants. The text of all the
+	 * invariant spans is read in a single <code>getTexts</code> call.
+	 * 
+	 * @param invariants
+	 *            the invariants, in the order they should be displayed
+	 * @return ordered collection of VirtualContent
+	 * @throws IOException
+	 * @throws MalformedSpanException
+	 *             if any of the spans is malformed or out of index range
+	 */
+	default List<VirtualContent> toVirtualContent(List<Invariant> invariants)
+			throws IOException, MalformedSpanException {
+		List<VirtualContent> virtuals = new ArrayList<>();
+		List<InvariantSpan> spans = new ArrayList<>();
+		int order = 0;
+		for (Invariant invariant : invariants) {
+			VirtualContent vc = new VirtualContent();
+			vc.invariant = invariant;
+			vc.order = order++;
+			vc.documentHash = getDocumentHash();
+			if (invariant instanceof InvariantSpan) {
+				// TODO: check is encrypted/paid
+				spans.add((InvariantSpan) invariant);
+			}
+			virtuals.add(vc);
+		}
+
+		List<String> texts = getTexts(spans);
+		int i = 0;
+		for (VirtualContent vc : virtuals) {
+			if (vc.invariant instanceof InvariantSpan) {
+				vc.content = texts.get(i++);
+			}
+		}
+		return virtuals;
+	}
 }
\ No newline at end of file
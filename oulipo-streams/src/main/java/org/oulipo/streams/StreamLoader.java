@@ -17,6 +17,7 @@ package org.oulipo.streams;
 
 import java.io.IOException;
 import java.security.Key;
+import java.util.concurrent.CompletableFuture;
 
 import org.oulipo.streams.types.Invariant;
 import org.oulipo.streams.types.OverlayStream;
@@ -38,6 +39,18 @@ public interface StreamLoader {
 	 */
 	String getHash();
 
+	/**
+	 * Is there a checkpoint of the document state as of the specified block. The
+	 * default implementation keeps no checkpoints.
+	 * 
+	 * @param blockHash
+	 *            the hash of a block of a <code>DocumentFile</code> chain
+	 * @return true if a checkpoint can be read for the block
+	 */
+	default boolean hasCheckpoint(String blockHash) {
+		return false;
+	}
+
 	/**
 	 * Opens the <code>InvariantStream<code> for the specified document. If the
 	 * invariant stream does not exist, then one is created.
@@ -62,9 +75,81 @@ public interface StreamLoader {
 	 */
 	VariantStream<Invariant> openInvariantVariantStream(String documentHash) throws IOException, MalformedSpanException;
 
+	/**
+	 * Opens the <code>VariantStream</code> for the specified document without
+	 * waiting for it to load. The default implementation opens the stream on the
+	 * calling thread.
+	 * 
+	 * @param documentHash
+	 *            the document address of the variant stream
+	 * @return the VariantStream, once it has loaded. Completes exceptionally with
+	 *         the <code>IOException</code> or <code>MalformedSpanException</code>
+	 *         of a failed load.
+	 */
+	default CompletableFuture<VariantStream<Invariant>> openInvariantVariantStreamAsync(String documentHash) {
+		CompletableFuture<VariantStream<Invariant>> future = new CompletableFuture<>();
+		try {
+			future.complete(openInvariantVariantStream(documentHash));
+		} catch (IOException | MalformedSpanException | RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
 	VariantStream<OverlayStream> openOverlayVariantStream(String documentHash)
 			throws IOException, MalformedSpanException;
 
+	/**
+	 * Opens the overlay <code>VariantStream</code> for the specified document
+	 * without waiting for it to load. The default implementation opens the stream
+	 * on the calling thread.
+	 * 
+	 * @param documentHash
+	 *            the document address of the variant stream
+	 * @return the VariantStream, once it has loaded. Completes exceptionally with
+	 *         the <code>IOException</code> or <code>MalformedSpanException</code>
+	 *         of a failed load.
+	 */
+	default CompletableFuture<VariantStream<OverlayStream>> openOverlayVariantStreamAsync(String documentHash) {
+		CompletableFuture<VariantStream<OverlayStream>> future = new CompletableFuture<>();
+		try {
+			future.complete(openOverlayVariantStream(documentHash));
+		} catch (IOException | MalformedSpanException | RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Reads the checkpoint of the document state as of the specified block
+	 * 
+	 * @param blockHash
+	 *            the hash of a block of a <code>DocumentFile</code> chain
+	 * @return the checkpoint, or null if there is none
+	 * @throws IOException
+	 *             if the checkpoint can't be read
+	 * @throws MalformedSpanException
+	 *             if an element of the checkpoint is malformed
+	 */
+	default Checkpoint readCheckpoint(String blockHash) throws IOException, MalformedSpanException {
+		return null;
+	}
+
 	void setHash(String hash);
 
+	/**
+	 * Writes a checkpoint of the document state as of the specified block,
+	 * replacing any existing checkpoint of the block. The default implementation
+	 * discards the checkpoint.
+	 * 
+	 * @param blockHash
+	 *            the hash of a block of a <code>DocumentFile</code> chain
+	 * @param checkpoint
+	 *            the document state
+	 * @throws IOException
+	 *             if the checkpoint can't be written
+	 */
+	default void writeCheckpoint(String blockHash, Checkpoint checkpoint) throws IOException {
+	}
+
 }
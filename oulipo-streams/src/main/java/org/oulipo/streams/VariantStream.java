@@ -16,6 +16,7 @@
 package org.oulipo.streams;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -32,6 +33,18 @@ import org.oulipo.streams.types.StreamElement;
  */
 public interface VariantStream<T extends StreamElement> {
 
+	/**
+	 * Applies a batch of edits to this stream, in order
+	 * 
+	 * @param batch
+	 *            the edits to apply
+	 * @throws MalformedSpanException
+	 * @throws IOException
+	 */
+	default void apply(EditBatch<T> batch) throws MalformedSpanException, IOException {
+		batch.applyTo(this);
+	}
+
 	default void applyOverlays(VariantSpan variantSpan, Set<Overlay> links) throws MalformedSpanException, IOException {
 		List<T> elements = getStreamElements(variantSpan);
 
@@ -47,6 +60,16 @@ public interface VariantStream<T extends StreamElement> {
 		putElements(variantSpan.start, elements);
 	}
 
+	/**
+	 * Merges adjacent stream elements that can be merged into single elements, such
+	 * as invariant spans that are contiguous in the invariant stream, so that the
+	 * stream holds as few elements as possible. The content of the stream doesn't
+	 * change.
+	 * 
+	 * @throws MalformedSpanException
+	 */
+	void compact() throws MalformedSpanException;
+
 	default void copy(long characterPosition, List<VariantSpan> vspans) throws MalformedSpanException, IOException {
 		long start = characterPosition;
 		for (VariantSpan vspan : vspans) {
@@ -97,6 +120,22 @@ public interface VariantStream<T extends StreamElement> {
 	 */
 	T index(long characterPosition);
 
+	/**
+	 * Gets an iterator over the stream elements within the specified variant span.
+	 * Elements are located lazily, so only the part of the stream within the span
+	 * is visited. The first and last elements are clipped to the bounds of the
+	 * span.
+	 * 
+	 * Elements that fall entirely within the span are the instances held by the
+	 * stream and must not be modified. If the stream is modified while iterating,
+	 * the behavior of the iterator is undefined.
+	 * 
+	 * @param variantSpan
+	 *            the bounds of the elements to iterate over
+	 * @return iterator of stream elements in order
+	 */
+	Iterator<T> iterator(VariantSpan variantSpan);
+
 	default void load(List<T> elements) throws MalformedSpanException, IOException {
 		putElements(1, elements);
 	}
@@ -153,6 +192,17 @@ public interface VariantStream<T extends StreamElement> {
 
 	void rebalance() throws MalformedSpanException;
 
+	/**
+	 * Gets the number of elements in this stream. The default implementation
+	 * copies the elements, so implementations should count them directly.
+	 * 
+	 * @return the number of elements
+	 * @throws MalformedSpanException
+	 */
+	default int size() throws MalformedSpanException {
+		return getStreamElements().size();
+	}
+
 	void swap(VariantSpan v1, VariantSpan v2) throws MalformedSpanException, IOException;
 
 	/**
@@ -2,6 +2,7 @@ package org.oulipo.streams.document;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.Key;
@@ -18,13 +19,68 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
 
 public final class DocumentFileDecompiler implements Decompiler<DocumentFile> {
 
+	/**
+	 * Number of base64 characters decoded to read the header of a document file.
+	 * Longer headers are read by decoding the whole file.
+	 */
+	private static final int HEADER_CHARACTERS = 1024;
+
 	public static DocumentFileDecompiler createInstance() {
 		return new DocumentFileDecompiler();
 	}
 
+	/**
+	 * Reads the hash of the previous block from the header of a compiled document
+	 * file. Only the start of the file is decoded and the signature is not
+	 * validated, so the hash is only good for fetching the previous block ahead of
+	 * decompiling this one.
+	 * 
+	 * @param input
+	 *            the compiled document file
+	 * @return the hash of the previous block, or an empty string if this is the
+	 *         first block of the document
+	 * @throws IOException
+	 *             if the input is not a compiled document file
+	 */
+	public static String readPreviousHash(byte[] input) throws IOException {
+		int end = Bytes.indexOf(input, (byte) '.');
+		if (end < 0) {
+			throw new IOException("Invalid message format");
+		}
+
+		try {
+			if (end > HEADER_CHARACTERS) {
+				try {
+					return readPreviousHash(new String(input, 0, HEADER_CHARACTERS, Charsets.UTF_8));
+				} catch (EOFException e) {
+					// header is longer than the prefix
+				}
+			}
+			return readPreviousHash(new String(input, 0, end, Charsets.UTF_8));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Can't decode document file", e);
+		}
+	}
+
+	private static String readPreviousHash(String docFile64) throws IOException {
+		byte[] docFile = BaseEncoding.base64Url().decode(docFile64);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(docFile));
+
+		byte[] magicHeader = new byte[4];
+		dis.readFully(magicHeader);
+		if (!Arrays.equals(magicHeader, DocumentFile.MAGIC)) {
+			throw new IOException("Not a DocumentFile");
+		}
+		dis.readShort();
+		dis.readUTF();
+		dis.readUTF();
+		return dis.readUTF();
+	}
+
 	@Override
 	public DocumentFile decompile(String hash, InputStream is) throws Exception {
 		return decompileEncrypted(hash, ByteStreams.toByteArray(is), null);
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.oulipo.streams.RemoteFileManager;
+
+/**
+ * A <code>RemoteFileManager</code> that keeps a local copy of every block it
+ * gets from, or adds to, another <code>RemoteFileManager</code>. Blocks are
+ * addressed by the hash of their content, so a copy never goes stale: once a
+ * block is cached, it is read from the cache directory instead of being
+ * fetched again.
+ * 
+ * Each block is stored in a file named by its hash. Blocks are written to a
+ * temporary file that is then moved into place, so a reader never sees a
+ * partly written block. Hashes that aren't safe to use as file names are not
+ * cached.
+ * 
+ * A block is stored only if its content hashes to its hash, and a cached block
+ * is checked again each time it is read. A cached block that fails the check,
+ * such as one damaged on disk, is evicted and fetched again. A fetched block
+ * that fails the check is rejected.
+ */
+public class CachingRemoteFileManager implements RemoteFileManager {
+
+	private static final Pattern HASH = Pattern.compile("[A-Za-z0-9_-]+");
+
+	private final File directory;
+
+	/**
+	 * Computes the hash of the content of a block, as the remote file manager
+	 * addresses it
+	 */
+	private final Function<byte[], String> hashFunction;
+
+	private final RemoteFileManager remoteFileManager;
+
+	/**
+	 * Constructs a cache of the blocks of the specified file manager. Creates the
+	 * cache directory if it does not exist
+	 * 
+	 * @param remoteFileManager
+	 *            the file manager to get blocks from
+	 * @param directory
+	 *            the directory to store cached blocks in
+	 * @param hashFunction
+	 *            computes the hash of the content of a block, as the file manager
+	 *            addresses it
+	 * @throws IOException
+	 *             if the cache directory can't be created
+	 */
+	public CachingRemoteFileManager(RemoteFileManager remoteFileManager, File directory,
+			Function<byte[], String> hashFunction) throws IOException {
+		if (remoteFileManager == null) {
+			throw new IllegalArgumentException("remoteFileManager is null");
+		}
+		if (directory == null) {
+			throw new IllegalArgumentException("directory is null");
+		}
+		if (hashFunction == null) {
+			throw new IllegalArgumentException("hashFunction is null");
+		}
+		directory.mkdirs();
+		if (!directory.isDirectory()) {
+			throw new IOException("Can't create cache directory: " + directory);
+		}
+		this.remoteFileManager = remoteFileManager;
+		this.directory = directory;
+		this.hashFunction = hashFunction;
+	}
+
+	@Override
+	public String add(File file) throws IOException {
+		String hash = remoteFileManager.add(file);
+		File cached = cacheFile(hash);
+		if (cached != null && !cached.exists()) {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			if (matches(hash, bytes)) {
+				store(cached, bytes);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns the file that caches the block with the specified hash, or null if
+	 * the hash can't be used as a file name
+	 */
+	private File cacheFile(String hash) {
+		return hash != null && HASH.matcher(hash).matches() ? new File(directory, hash) : null;
+	}
+
+	@Override
+	public byte[] get(String hash) throws IOException {
+		File cached = cacheFile(hash);
+		if (cached == null) {
+			return remoteFileManager.get(hash);
+		}
+		if (cached.exists()) {
+			byte[] bytes = Files.readAllBytes(cached.toPath());
+			if (matches(hash, bytes)) {
+				return bytes;
+			}
+			Files.deleteIfExists(cached.toPath());
+		}
+
+		byte[] bytes = remoteFileManager.get(hash);
+		if (bytes != null) {
+			if (!matches(hash, bytes)) {
+				throw new IOException("Block doesn't match its hash: " + hash);
+			}
+			store(cached, bytes);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Does the content hash to the specified hash
+	 */
+	private boolean matches(String hash, byte[] bytes) {
+		return hash.equals(hashFunction.apply(bytes));
+	}
+
+	/**
+	 * Writes the block to a temporary file, which is then moved to the cache file.
+	 * Concurrent fetches of the same block each write their own temporary file.
+	 */
+	private void store(File file, byte[] bytes) throws IOException {
+		File temp = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			try (FileOutputStream fos = new FileOutputStream(temp)) {
+				fos.write(bytes);
+				fos.getFD().sync();
+			}
+
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+}
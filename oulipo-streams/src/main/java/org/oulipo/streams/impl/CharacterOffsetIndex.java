@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A sparse index from character positions to byte offsets of a UTF-8 encoded
+ * file. A checkpoint is kept every <code>interval</code> characters, so the
+ * byte offset of any character is found by a lookup and a scan of at most
+ * <code>interval</code> characters.
+ * 
+ * Characters are counted as UTF-16 units, like <code>String.length</code>, so a
+ * code point outside of the Basic Multilingual Plane counts as two characters.
+ * If a checkpoint falls between the two halves of a surrogate pair, the
+ * checkpoint points to the start of the pair instead.
+ * 
+ * The checkpoints are appended to an index file next to the data file. The
+ * index file is not forced to disk: when the index is opened, checkpoints that
+ * are missing or point past the end of the data file are rebuilt by scanning
+ * the data file.
+ * 
+ * Appends must be made by one thread at a time. Lookups can be made by any
+ * number of threads, concurrently with appends.
+ */
+final class CharacterOffsetIndex {
+
+	/**
+	 * Gets the number of bytes in the UTF-8 sequence that starts with the
+	 * specified lead byte. Bytes that can't start a sequence count as one byte.
+	 */
+	static int sequenceLength(byte lead) {
+		if ((lead & 0x80) == 0) {
+			return 1;
+		} else if ((lead & 0xE0) == 0xC0) {
+			return 2;
+		} else if ((lead & 0xF0) == 0xE0) {
+			return 3;
+		} else if ((lead & 0xF8) == 0xF0) {
+			return 4;
+		}
+		return 1;
+	}
+
+	/**
+	 * Gets the number of UTF-16 characters decoded from a UTF-8 sequence of the
+	 * specified length
+	 */
+	static int sequenceCharacters(int length) {
+		return length == 4 ? 2 : 1;
+	}
+
+	/**
+	 * Number of bytes written to the data file
+	 */
+	private volatile long byteCount;
+
+	/**
+	 * Number of characters written to the data file
+	 */
+	private volatile long characterCount;
+
+	/**
+	 * Checkpoint k is the byte offset of character k * interval, shifted left by
+	 * one. The low bit is set if the checkpoint was moved back to the start of a
+	 * surrogate pair.
+	 */
+	private volatile long[] checkpoints = new long[16];
+
+	private int checkpointCount;
+
+	private final FileChannel indexChannel;
+
+	private final int interval;
+
+	/**
+	 * Opens the index of the specified data file, rebuilding any part of the index
+	 * that is missing
+	 * 
+	 * @param indexFile
+	 *            the file holding the checkpoints. Created if it doesn't exist.
+	 * @param data
+	 *            the channel of the UTF-8 encoded data file
+	 * @param interval
+	 *            the number of characters between checkpoints
+	 * @throws IOException
+	 *             if the index or data file can't be read
+	 */
+	CharacterOffsetIndex(File indexFile, FileChannel data, int interval) throws IOException {
+		if (interval < 1) {
+			throw new IllegalArgumentException("interval must be greater than 0");
+		}
+		this.interval = interval;
+		this.indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+
+		long dataSize = data.size();
+		ByteBuffer entries = ByteBuffer.allocate((int) Math.min(indexChannel.size() / 8 * 8, Integer.MAX_VALUE));
+		while (entries.hasRemaining() && indexChannel.read(entries, entries.position()) > 0) {
+		}
+		entries.flip();
+		while (entries.remaining() >= 8) {
+			long checkpoint = entries.getLong();
+			if ((checkpoint >>> 1) > dataSize
+					|| (checkpointCount > 0 && checkpoint <= checkpoints[checkpointCount - 1])) {
+				break;
+			}
+			addCheckpoint(checkpoint);
+		}
+		if (checkpointCount == 0) {
+			addCheckpoint(0);
+		}
+		indexChannel.truncate(checkpointCount * 8L);
+		indexChannel.position(checkpointCount * 8L);
+
+		rebuild(data, dataSize);
+	}
+
+	private void addCheckpoint(long checkpoint) {
+		if (checkpointCount == checkpoints.length) {
+			checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+		}
+		checkpoints[checkpointCount++] = checkpoint;
+	}
+
+	/**
+	 * Adds the checkpoints of text that has been appended to the data file
+	 * 
+	 * @param text
+	 *            the appended text
+	 * @throws IOException
+	 *             if the checkpoints can't be written to the index file
+	 */
+	void append(CharSequence text) throws IOException {
+		long position = characterCount;
+		long offset = byteCount;
+		int first = checkpointCount;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			int length;
+			if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				length = 4;
+			} else if (c < 0x80 || Character.isSurrogate(c)) {
+				// unpaired surrogates are encoded as '?'
+				length = 1;
+			} else {
+				length = c < 0x800 ? 2 : 3;
+			}
+			checkpoint(position, offset, length);
+			position += sequenceCharacters(length);
+			offset += length;
+			if (length == 4) {
+				i++;
+			}
+		}
+		writeCheckpoints(first);
+		byteCount = offset;
+		characterCount = position;
+	}
+
+	/**
+	 * Gets the byte offset of the checkpoint at or before the specified character
+	 * position
+	 */
+	long byteOffset(long characterPosition) {
+		return checkpoints[(int) (characterPosition / interval)] >>> 1;
+	}
+
+	long byteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * Gets the character position of the checkpoint at or before the specified
+	 * character position
+	 */
+	long characterOffset(long characterPosition) {
+		int k = (int) (characterPosition / interval);
+		return (long) k * interval - (checkpoints[k] & 1);
+	}
+
+	long characterCount() {
+		return characterCount;
+	}
+
+	/**
+	 * Adds the checkpoints of the positions that fall within the UTF-8 sequence
+	 * of the specified length that starts at the specified character position and
+	 * byte offset
+	 */
+	private void checkpoint(long position, long offset, int length) {
+		if (position % interval == 0 && position / interval == checkpointCount) {
+			addCheckpoint(offset << 1);
+		}
+		if (length == 4 && (position + 1) % interval == 0 && (position + 1) / interval == checkpointCount) {
+			addCheckpoint((offset << 1) | 1);
+		}
+	}
+
+	void close() throws IOException {
+		indexChannel.close();
+	}
+
+	/**
+	 * Scans the data file from the last checkpoint to its end, adding the missing
+	 * checkpoints and counting the characters
+	 */
+	private void rebuild(FileChannel data, long dataSize) throws IOException {
+		int last = checkpointCount - 1;
+		long position = (long) last * interval - (checkpoints[last] & 1);
+		long offset = checkpoints[last] >>> 1;
+
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		int first = checkpointCount;
+		while (offset < dataSize) {
+			buf.clear();
+			int n = data.read(buf, offset);
+			if (n <= 0) {
+				break;
+			}
+			buf.flip();
+			int i = 0;
+			while (i < n) {
+				int length = sequenceLength(buf.get(i));
+				if (i + length > n && offset + i + length <= dataSize) {
+					// sequence continues in the next read
+					break;
+				}
+				checkpoint(position, offset + i, length);
+				position += sequenceCharacters(length);
+				i += length;
+			}
+			offset += i;
+		}
+		writeCheckpoints(first);
+		byteCount = dataSize;
+		characterCount = position;
+	}
+
+	private void writeCheckpoints(int first) throws IOException {
+		if (first == checkpointCount) {
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.allocate((checkpointCount - first) * 8);
+		for (int k = first; k < checkpointCount; k++) {
+			buf.putLong(checkpoints[k]);
+		}
+		buf.flip();
+		while (buf.hasRemaining()) {
+			indexChannel.write(buf);
+		}
+	}
+}
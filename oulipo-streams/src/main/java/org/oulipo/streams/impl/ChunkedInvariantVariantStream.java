@@ -0,0 +1,786 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.VariantStream;
+import org.oulipo.streams.overlays.Overlay;
+import org.oulipo.streams.types.Invariant;
+import org.oulipo.streams.types.InvariantMedia;
+import org.oulipo.streams.types.InvariantSpan;
+
+/**
+ * Compact implementation of a <code>VariantStream</code> of invariants. Instead
+ * of a node object and a span object per element, the elements are packed into
+ * primitive arrays (invariant start, width and document hash id) held in the
+ * leaf pages of a B+tree. Document hashes are interned, so each element takes
+ * 20 bytes plus its share of the page.
+ * 
+ * Each branch page has up to <code>CAPACITY</code> children, so the tree stays
+ * shallow and lookups and range scans touch few, densely packed pages.
+ * 
+ * Invariant media are stored with an invariant start of 0 and the media hash in
+ * the hash table. Elements returned by this stream are created on each call, so
+ * changing them has no effect on the stream.
+ * 
+ * Pages are split when they overflow but are not merged when deletes leave them
+ * partly empty. Call <code>rebalance</code> to repack the pages.
+ */
+public final class ChunkedInvariantVariantStream implements VariantStream<Invariant> {
+
+	private static final class BranchPage extends Page {
+
+		final Page[] children = new Page[CAPACITY + 2];
+
+		void insert(int i, Page child) {
+			System.arraycopy(children, i, children, i + 1, size - i);
+			children[i] = child;
+			size++;
+		}
+
+		void remove(int i) {
+			System.arraycopy(children, i + 1, children, i, size - i - 1);
+			children[--size] = null;
+		}
+
+		BranchPage splitOff() {
+			BranchPage right = new BranchPage();
+			int half = size / 2;
+			right.size = size - half;
+			System.arraycopy(children, half, right.children, 0, right.size);
+			for (int i = half; i < size; i++) {
+				children[i] = null;
+			}
+			size = half;
+			update();
+			right.update();
+			return right;
+		}
+
+		@Override
+		void update() {
+			characterCount = 0;
+			elementCount = 0;
+			invariantBounds = InvariantBounds.EMPTY;
+			for (int i = 0; i < size; i++) {
+				Page child = children[i];
+				characterCount += child.characterCount;
+				elementCount += child.elementCount;
+				invariantBounds = InvariantBounds.union(invariantBounds, child.invariantBounds);
+			}
+		}
+	}
+
+	private static final class LeafPage extends Page {
+
+		final int[] hashIds = new int[CAPACITY + 2];
+
+		final long[] starts = new long[CAPACITY + 2];
+
+		final long[] widths = new long[CAPACITY + 2];
+
+		void insert(int i, long start, long width, int hashId) {
+			System.arraycopy(starts, i, starts, i + 1, size - i);
+			System.arraycopy(widths, i, widths, i + 1, size - i);
+			System.arraycopy(hashIds, i, hashIds, i + 1, size - i);
+			starts[i] = start;
+			widths[i] = width;
+			hashIds[i] = hashId;
+			size++;
+		}
+
+		void remove(int i) {
+			System.arraycopy(starts, i + 1, starts, i, size - i - 1);
+			System.arraycopy(widths, i + 1, widths, i, size - i - 1);
+			System.arraycopy(hashIds, i + 1, hashIds, i, size - i - 1);
+			size--;
+		}
+
+		LeafPage splitOff() {
+			LeafPage right = new LeafPage();
+			int half = size / 2;
+			right.size = size - half;
+			System.arraycopy(starts, half, right.starts, 0, right.size);
+			System.arraycopy(widths, half, right.widths, 0, right.size);
+			System.arraycopy(hashIds, half, right.hashIds, 0, right.size);
+			size = half;
+			update();
+			right.update();
+			return right;
+		}
+
+		@Override
+		void update() {
+			characterCount = 0;
+			elementCount = size;
+			invariantBounds = InvariantBounds.EMPTY;
+			for (int i = 0; i < size; i++) {
+				characterCount += widths[i];
+				if (starts[i] > 0) {
+					invariantBounds = invariantBounds.include(hashIds[i], starts[i], starts[i] + widths[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A page of the tree. Pages cache the number of characters and elements and
+	 * the ranges of invariant positions under them, keyed by the id of the
+	 * document hash.
+	 */
+	private static abstract class Page {
+
+		long characterCount;
+
+		int elementCount;
+
+		InvariantBounds invariantBounds = InvariantBounds.EMPTY;
+
+		/**
+		 * Number of elements in a leaf page or number of children in a branch page
+		 */
+		int size;
+
+		/**
+		 * Recalculates the cached values of this page from its elements or children
+		 */
+		abstract void update();
+	}
+
+	/**
+	 * Iterates over the elements within a variant range. The path from the root to
+	 * the current leaf page is kept so the next leaf page can be found without
+	 * searching from the root.
+	 */
+	private final class RangeIterator implements Iterator<Invariant> {
+
+		/**
+		 * Index of the next element in the current leaf page
+		 */
+		private int entry;
+
+		/**
+		 * End of the range (exclusive, zero based)
+		 */
+		private final long hi;
+
+		private final int[] indices;
+
+		private LeafPage leaf;
+
+		/**
+		 * Start of the range (zero based)
+		 */
+		private final long lo;
+
+		private final BranchPage[] path;
+
+		/**
+		 * Number of characters before the next element
+		 */
+		private long position;
+
+		RangeIterator(long lo, long hi) {
+			this.lo = lo;
+			this.hi = hi;
+			this.path = new BranchPage[height()];
+			this.indices = new int[path.length];
+			if (root == null || lo >= root.characterCount) {
+				return;
+			}
+
+			Page x = root;
+			int depth = 0;
+			while (x instanceof BranchPage) {
+				BranchPage branch = (BranchPage) x;
+				int i = 0;
+				while (position + branch.children[i].characterCount <= lo) {
+					position += branch.children[i].characterCount;
+					i++;
+				}
+				path[depth] = branch;
+				indices[depth++] = i;
+				x = branch.children[i];
+			}
+			leaf = (LeafPage) x;
+			while (position + leaf.widths[entry] <= lo) {
+				position += leaf.widths[entry];
+				entry++;
+			}
+		}
+
+		private void advance() {
+			position += leaf.widths[entry];
+			if (++entry < leaf.size) {
+				return;
+			}
+
+			int depth = path.length - 1;
+			while (depth >= 0 && indices[depth] + 1 >= path[depth].size) {
+				depth--;
+			}
+			if (depth < 0) {
+				leaf = null;
+				return;
+			}
+			Page x = path[depth].children[++indices[depth]];
+			while (x instanceof BranchPage) {
+				path[++depth] = (BranchPage) x;
+				indices[depth] = 0;
+				x = path[depth].children[0];
+			}
+			leaf = (LeafPage) x;
+			entry = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return leaf != null && position < hi;
+		}
+
+		@Override
+		public Invariant next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			long width = leaf.widths[entry];
+			long a = Math.max(lo, position);
+			long b = Math.min(hi, position + width);
+			long start = leaf.starts[entry] > 0 ? leaf.starts[entry] + a - position : 0;
+			int hashId = leaf.hashIds[entry];
+			advance();
+			try {
+				return toInvariant(start, b - a, hashId);
+			} catch (MalformedSpanException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Maximum number of elements in a leaf page and children in a branch page
+	 */
+	static final int CAPACITY = 64;
+
+	/**
+	 * Number of elements put in each leaf page when building a tree, leaving room
+	 * for inserts
+	 */
+	private static final int FILL = CAPACITY * 3 / 4;
+
+	/**
+	 * Builds a tree from the specified pages, bottom up
+	 */
+	private static Page build(List<Page> pages) {
+		while (pages.size() > 1) {
+			List<Page> parents = new ArrayList<>();
+			BranchPage parent = null;
+			for (Page page : pages) {
+				if (parent == null || parent.size == FILL) {
+					parent = new BranchPage();
+					parents.add(parent);
+				}
+				parent.insert(parent.size, page);
+			}
+			for (Page p : parents) {
+				p.update();
+			}
+			pages = parents;
+		}
+		return pages.isEmpty() ? null : pages.get(0);
+	}
+
+	/**
+	 * Deletes the characters within [from, to) of the page, relative to the start
+	 * of the page
+	 * 
+	 * @return a new right sibling page if the page overflowed, otherwise null
+	 */
+	private static Page delete(Page page, long from, long to) {
+		if (page instanceof LeafPage) {
+			LeafPage leaf = (LeafPage) page;
+			long position = 0;
+			int i = 0;
+			while (i < leaf.size && position < to) {
+				long width = leaf.widths[i];
+				long end = position + width;
+				if (end <= from) {
+					position = end;
+					i++;
+					continue;
+				}
+				long a = Math.max(from, position) - position;
+				long b = Math.min(to, end) - position;
+				if (a == 0 && b == width) {
+					leaf.remove(i);
+				} else if (a == 0) {
+					leaf.starts[i] += b;
+					leaf.widths[i] = width - b;
+					i++;
+				} else if (b == width) {
+					leaf.widths[i] = a;
+					i++;
+				} else {
+					leaf.insert(i + 1, leaf.starts[i] + b, width - b, leaf.hashIds[i]);
+					leaf.widths[i] = a;
+					i += 2;
+				}
+				position = end;
+			}
+			leaf.update();
+			return leaf.size > CAPACITY ? leaf.splitOff() : null;
+		}
+
+		BranchPage branch = (BranchPage) page;
+		long position = 0;
+		int i = 0;
+		while (i < branch.size && position < to) {
+			Page child = branch.children[i];
+			long end = position + child.characterCount;
+			if (end > from) {
+				Page sibling = delete(child, Math.max(from, position) - position, Math.min(to, end) - position);
+				if (child.size == 0) {
+					branch.remove(i);
+					i--;
+				} else if (sibling != null) {
+					branch.insert(++i, sibling);
+				}
+			}
+			position = end;
+			i++;
+		}
+		branch.update();
+		return branch.size > CAPACITY ? branch.splitOff() : null;
+	}
+
+	/**
+	 * Inserts an element before the character at the specified offset, relative
+	 * to the start of the page. An element inside of which the offset falls is
+	 * split in two.
+	 * 
+	 * @return a new right sibling page if the page overflowed, otherwise null
+	 */
+	private static Page insert(Page page, long offset, long start, long width, int hashId) {
+		if (page instanceof LeafPage) {
+			LeafPage leaf = (LeafPage) page;
+			long position = 0;
+			int i = 0;
+			while (i < leaf.size && position + leaf.widths[i] <= offset) {
+				position += leaf.widths[i++];
+			}
+			if (i < leaf.size && offset > position) {
+				long cut = offset - position;
+				leaf.insert(i + 1, leaf.starts[i] + cut, leaf.widths[i] - cut, leaf.hashIds[i]);
+				leaf.widths[i] = cut;
+				i++;
+			}
+
+			if (i > 0 && isContiguous(leaf.starts[i - 1], leaf.widths[i - 1], leaf.hashIds[i - 1], start, hashId)) {
+				leaf.widths[i - 1] += width;
+			} else if (i < leaf.size && isContiguous(start, width, hashId, leaf.starts[i], leaf.hashIds[i])) {
+				leaf.starts[i] = start;
+				leaf.widths[i] += width;
+			} else {
+				leaf.insert(i, start, width, hashId);
+			}
+			leaf.update();
+			return leaf.size > CAPACITY ? leaf.splitOff() : null;
+		}
+
+		BranchPage branch = (BranchPage) page;
+		long position = 0;
+		int i = 0;
+		while (i < branch.size - 1 && position + branch.children[i].characterCount < offset) {
+			position += branch.children[i++].characterCount;
+		}
+		Page sibling = insert(branch.children[i], offset - position, start, width, hashId);
+		if (sibling != null) {
+			branch.insert(i + 1, sibling);
+		}
+		branch.update();
+		return branch.size > CAPACITY ? branch.splitOff() : null;
+	}
+
+	/**
+	 * Is the right invariant span the continuation of the left invariant span in
+	 * the same invariant stream
+	 */
+	private static boolean isContiguous(long leftStart, long leftWidth, int leftHashId, long rightStart,
+			int rightHashId) {
+		return leftStart > 0 && rightStart > 0 && leftHashId == rightHashId && leftStart + leftWidth == rightStart;
+	}
+
+	/**
+	 * Home document of invariant spans
+	 */
+	private final String documentHash;
+
+	/**
+	 * Interned document and media hashes, by id
+	 */
+	private final List<String> hashes = new ArrayList<>();
+
+	/**
+	 * Ids of the interned document and media hashes
+	 */
+	private final Map<String, Integer> hashIds = new HashMap<>();
+
+	private Page root;
+
+	/**
+	 * Constructs a <code>ChunkedInvariantVariantStream</code>
+	 * 
+	 * @param documentHash
+	 *            the home document of invariant spans
+	 */
+	public ChunkedInvariantVariantStream(String documentHash) {
+		this.documentHash = documentHash;
+	}
+
+	/**
+	 * Builds the tree from the specified elements, replacing the current tree
+	 */
+	private void buildFrom(List<Invariant> elements) {
+		List<Page> leaves = new ArrayList<>();
+		LeafPage leaf = null;
+		for (Invariant element : elements) {
+			if (leaf == null || leaf.size == FILL) {
+				leaf = new LeafPage();
+				leaves.add(leaf);
+			}
+			leaf.insert(leaf.size, startOf(element), element.getWidth(), hashIdOf(element));
+		}
+		for (Page page : leaves) {
+			page.update();
+		}
+		root = build(leaves);
+	}
+
+	private long characterCount() {
+		return root != null ? root.characterCount : 0;
+	}
+
+	/**
+	 * Collects the variant spans under the page that intersect the target span
+	 */
+	private void collectVariantSpans(Page page, long position, long targetStart, long targetEnd, String targetHash,
+			List<VariantSpan> vspans) throws MalformedSpanException {
+		if (!mayIntersect(page, targetStart, targetEnd, targetHash)) {
+			return;
+		}
+		if (page instanceof BranchPage) {
+			BranchPage branch = (BranchPage) page;
+			for (int i = 0; i < branch.size; i++) {
+				collectVariantSpans(branch.children[i], position, targetStart, targetEnd, targetHash, vspans);
+				position += branch.children[i].characterCount;
+			}
+			return;
+		}
+
+		LeafPage leaf = (LeafPage) page;
+		for (int i = 0; i < leaf.size; position += leaf.widths[i++]) {
+			long start = leaf.starts[i];
+			long end = start + leaf.widths[i];
+			String hash = leaf.hashIds[i] >= 0 ? hashes.get(leaf.hashIds[i]) : documentHash;
+			if (start == 0 || (hash != null && !hash.equals(targetHash))
+					|| !RopeUtils.intersects(start, end, targetStart, targetEnd)) {
+				continue;
+			}
+			long a = Math.max(0, targetStart - start);
+			long b = Math.max(0, end - targetEnd);
+			vspans.add(new VariantSpan(position + 1 + a, leaf.widths[i] - b - a, documentHash));
+		}
+	}
+
+	@Override
+	public void compact() throws MalformedSpanException {
+		buildFrom(RopeUtils.coalesce(getStreamElements()));
+	}
+
+	@Override
+	public void copy(long characterPosition, VariantSpan variantSpan) throws MalformedSpanException, IOException {
+		putElements(characterPosition, getStreamElements(variantSpan));
+	}
+
+	@Override
+	public void delete(VariantSpan variantSpan) throws MalformedSpanException {
+		if (variantSpan == null) {
+			throw new MalformedSpanException("Variant span is null for delete operation");
+		}
+		if (root == null || variantSpan.start > root.characterCount) {
+			return;
+		}
+		Page sibling = delete(root, variantSpan.start - 1, variantSpan.start - 1 + variantSpan.width);
+		setRoot(sibling);
+	}
+
+	@Override
+	public String getDocumentHash() {
+		return documentHash;
+	}
+
+	@Override
+	public List<Invariant> getStreamElements() throws MalformedSpanException {
+		List<Invariant> elements = new ArrayList<>();
+		Iterator<Invariant> it = new RangeIterator(0, characterCount());
+		while (it.hasNext()) {
+			elements.add(it.next());
+		}
+		return elements;
+	}
+
+	@Override
+	public List<Invariant> getStreamElements(VariantSpan variantSpan) throws MalformedSpanException {
+		if (root == null) {
+			throw new IllegalStateException("Stream is empty");
+		}
+		List<Invariant> elements = new ArrayList<>();
+		Iterator<Invariant> it = iterator(variantSpan);
+		while (it.hasNext()) {
+			elements.add(it.next());
+		}
+		return elements;
+	}
+
+	/**
+	 * Gets the variant spans that intersect the target span. Each page caches the
+	 * range of invariant positions under it, so pages that can't contain the
+	 * target span are skipped.
+	 */
+	@Override
+	public List<VariantSpan> getVariantSpans(InvariantSpan targetSpan) throws MalformedSpanException {
+		List<VariantSpan> vspans = new ArrayList<>();
+		if (root != null) {
+			String targetHash = targetSpan.getDocumentHash() != null ? targetSpan.getDocumentHash() : documentHash;
+			collectVariantSpans(root, 0, targetSpan.getStart(), targetSpan.getStart() + targetSpan.getWidth(),
+					targetHash, vspans);
+		}
+		return vspans;
+	}
+
+	/**
+	 * Gets the id of the document hash of an invariant span, or of the hash of an
+	 * invariant media, interning the hash if needed. A span without a document hash
+	 * has an id of -1.
+	 */
+	private int hashIdOf(Invariant element) {
+		String hash = element instanceof InvariantMedia ? ((InvariantMedia) element).hash
+				: ((InvariantSpan) element).getDocumentHash();
+		if (hash == null) {
+			return -1;
+		}
+		Integer id = hashIds.get(hash);
+		if (id == null) {
+			id = hashes.size();
+			hashes.add(hash);
+			hashIds.put(hash, id);
+		}
+		return id;
+	}
+
+	private int height() {
+		int height = 0;
+		for (Page x = root; x instanceof BranchPage; x = ((BranchPage) x).children[0]) {
+			height++;
+		}
+		return height;
+	}
+
+	@Override
+	public Invariant index(long characterPosition) {
+		if (root == null) {
+			throw new IllegalStateException("Stream is empty");
+		}
+		if (characterPosition < 1 || characterPosition > root.characterCount) {
+			throw new IndexOutOfBoundsException("Can't find node at position =  " + characterPosition);
+		}
+
+		long offset = characterPosition - 1;
+		Page x = root;
+		while (x instanceof BranchPage) {
+			BranchPage branch = (BranchPage) x;
+			int i = 0;
+			while (offset >= branch.children[i].characterCount) {
+				offset -= branch.children[i++].characterCount;
+			}
+			x = branch.children[i];
+		}
+		LeafPage leaf = (LeafPage) x;
+		int i = 0;
+		while (offset >= leaf.widths[i]) {
+			offset -= leaf.widths[i++];
+		}
+		try {
+			return toInvariant(leaf.starts[i], leaf.widths[i], leaf.hashIds[i]);
+		} catch (MalformedSpanException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public Iterator<Invariant> iterator(VariantSpan variantSpan) {
+		return new RangeIterator(variantSpan.start - 1, variantSpan.start - 1 + variantSpan.width);
+	}
+
+	/**
+	 * Can the page contain spans of the target document that intersect the target
+	 * range. Spans without a document hash are from the home document.
+	 */
+	private boolean mayIntersect(Page page, long targetStart, long targetEnd, String targetHash) {
+		Integer targetId = hashIds.get(targetHash);
+		if (targetId != null && page.invariantBounds.intersects(targetId, targetStart, targetEnd)) {
+			return true;
+		}
+		return (documentHash == null || documentHash.equals(targetHash))
+				&& page.invariantBounds.intersects(-1, targetStart, targetEnd);
+	}
+
+	@Override
+	public void move(long to, VariantSpan v1) throws MalformedSpanException {
+		List<Invariant> elements = removeRange(v1);
+		if (v1.start < to) {
+			to -= v1.width;
+		}
+		putElements(to, elements);
+	}
+
+	@Override
+	public void put(long characterPosition, Invariant val) throws MalformedSpanException {
+		putElements(characterPosition, Collections.singletonList(val));
+	}
+
+	/**
+	 * Puts the stream elements at the specified position. If the stream is empty,
+	 * the tree is built bottom up from the elements.
+	 */
+	@Override
+	public void putElements(long characterPosition, List<Invariant> streamElements) throws MalformedSpanException {
+		if (characterPosition < 1) {
+			throw new IndexOutOfBoundsException("put position must be greater than 0");
+		}
+		for (Invariant val : streamElements) {
+			if (val == null) {
+				throw new IllegalArgumentException("invariant span is null");
+			}
+			if (!(val instanceof InvariantSpan) && !(val instanceof InvariantMedia)) {
+				throw new IllegalArgumentException("Unsupported invariant: " + val);
+			}
+			if (val.getWidth() < 1) {
+				throw new MalformedSpanException("invariant span must have a width greater than 0");
+			}
+		}
+		long charCount = characterCount();
+		if (characterPosition > charCount + 1) {
+			throw new IndexOutOfBoundsException("Attempting to insert in illegal range: Current Max = " + charCount
+					+ ", Attempted insert = " + characterPosition);
+		}
+		if (streamElements.isEmpty()) {
+			return;
+		}
+		if (root == null) {
+			if (characterPosition != 1) {
+				throw new IllegalArgumentException("First node must be inserted at position 1");
+			}
+			buildFrom(RopeUtils.coalesce(streamElements));
+			return;
+		}
+
+		long offset = characterPosition - 1;
+		for (Invariant element : streamElements) {
+			setRoot(insert(root, offset, startOf(element), element.getWidth(), hashIdOf(element)));
+			offset += element.getWidth();
+		}
+	}
+
+	/**
+	 * Repacks the elements into full pages
+	 */
+	@Override
+	public void rebalance() throws MalformedSpanException {
+		buildFrom(getStreamElements());
+	}
+
+	/**
+	 * Removes the elements within the variant span, returning them
+	 */
+	private List<Invariant> removeRange(VariantSpan variantSpan) throws MalformedSpanException {
+		if (root == null || variantSpan.start > root.characterCount) {
+			throw new IllegalStateException("Inserting a null node");
+		}
+		List<Invariant> elements = getStreamElements(variantSpan);
+		delete(variantSpan);
+		return elements;
+	}
+
+	/**
+	 * Updates the root after an edit. A new root is added if the root page
+	 * overflowed, and branch pages with a single child are removed.
+	 */
+	private void setRoot(Page sibling) {
+		if (sibling != null) {
+			BranchPage parent = new BranchPage();
+			parent.insert(0, root);
+			parent.insert(1, sibling);
+			parent.update();
+			root = parent;
+		}
+		while (root instanceof BranchPage && root.size == 1) {
+			root = ((BranchPage) root).children[0];
+		}
+		if (root != null && root.size == 0) {
+			root = null;
+		}
+	}
+
+	@Override
+	public int size() {
+		return root != null ? root.elementCount : 0;
+	}
+
+	private long startOf(Invariant element) {
+		return element instanceof InvariantSpan ? ((InvariantSpan) element).getStart() : 0;
+	}
+
+	@Override
+	public void swap(VariantSpan v1, VariantSpan v2) throws MalformedSpanException {
+		// assume v1 < v2, no overlap
+		List<Invariant> from = removeRange(v1);
+		List<Invariant> to = removeRange(new VariantSpan(v2.start - v1.width, v2.width));
+
+		putElements(v1.start, to);
+		putElements(v2.start, from);
+	}
+
+	private Invariant toInvariant(long start, long width, int hashId) throws MalformedSpanException {
+		String hash = hashId >= 0 ? hashes.get(hashId) : null;
+		return start > 0 ? new InvariantSpan(start, width, hash) : new InvariantMedia(hash);
+	}
+
+	@Override
+	public void toggleOverlay(VariantSpan variantSpan, Overlay linkType) throws MalformedSpanException, IOException {
+		throw new UnsupportedOperationException("Can only toggle overlays on OverlayStreams");
+	}
+}
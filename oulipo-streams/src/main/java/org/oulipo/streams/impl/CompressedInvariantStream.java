@@ -0,0 +1,448 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.oulipo.streams.InvariantStream;
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.types.InvariantSpan;
+
+import com.google.common.base.Strings;
+
+/**
+ * An <code>InvariantStream</code> that stores text in Deflate compressed
+ * blocks. Positions and widths are in characters, as with
+ * <code>FileInvariantStream</code>.
+ * 
+ * Appended text first goes to a tail file, which holds the text that has not
+ * yet been compressed. The tail file is forced on each append. When the tail
+ * reaches <code>blockCharacters</code> characters, it is compressed and
+ * appended to the block file as one block, and the tail file is cleared. A
+ * block is never modified after it is written.
+ * 
+ * Each block starts with a header of its character count, uncompressed length
+ * and compressed length. The block index, which maps character ranges to block
+ * offsets, is built from the headers when the stream is opened. Recently read
+ * blocks are kept decompressed in a small LRU cache.
+ * 
+ * If the process stops between writing a block and clearing the tail, the text
+ * of the block is still in the tail file. The tail file starts with the
+ * character position of its text, so that text is skipped when the stream is
+ * opened. A block that was only partly written is removed.
+ */
+public final class CompressedInvariantStream implements InvariantStream {
+
+	/**
+	 * Immutable snapshot of the block index. Snapshots may share arrays, since
+	 * entries below <code>count</code> are never changed.
+	 */
+	private static final class BlockIndex {
+
+		final int count;
+
+		/**
+		 * Number of characters in all blocks
+		 */
+		final long end;
+
+		/**
+		 * File offsets of the block headers
+		 */
+		final long[] offsets;
+
+		/**
+		 * Character positions (zero based) of the first character of each block
+		 */
+		final long[] starts;
+
+		BlockIndex(long[] starts, long[] offsets, int count, long end) {
+			this.starts = starts;
+			this.offsets = offsets;
+			this.count = count;
+			this.end = end;
+		}
+
+		BlockIndex add(long offset, long characters) {
+			long[] s = starts;
+			long[] o = offsets;
+			if (count == s.length) {
+				s = Arrays.copyOf(s, Math.max(16, count * 2));
+				o = Arrays.copyOf(o, s.length);
+			}
+			s[count] = end;
+			o[count] = offset;
+			return new BlockIndex(s, o, count + 1, end + characters);
+		}
+
+		/**
+		 * Gets the index of the block that contains the specified character position
+		 */
+		int find(long position) {
+			int i = Arrays.binarySearch(starts, 0, count, position);
+			return i >= 0 ? i : -i - 2;
+		}
+	}
+
+	/**
+	 * Default number of characters of text in a block
+	 */
+	public static final int DEFAULT_BLOCK_CHARACTERS = 64 * 1024;
+
+	/**
+	 * Default number of decompressed blocks to cache
+	 */
+	public static final int DEFAULT_CACHED_BLOCKS = 16;
+
+	private static final int HEADER_LENGTH = 12;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+	}
+
+	private final int blockCharacters;
+
+	private final FileChannel blocks;
+
+	/**
+	 * Decompressed blocks, by block number, in access order
+	 */
+	private final Map<Integer, String> cache;
+
+	private final String documentHash;
+
+	private volatile BlockIndex index = new BlockIndex(new long[0], new long[0], 0, 0);
+
+	/**
+	 * Text of the tail file, which has not been compressed yet
+	 */
+	private final StringBuilder pending = new StringBuilder();
+
+	private final FileChannel tail;
+
+	/**
+	 * Constructs an InvariantStream backed by the specified block file, with the
+	 * default block size and cache size. Creates a new file if it does not exist
+	 * 
+	 * @param file
+	 *            the block file. The tail file is stored next to it.
+	 * @param documentHash
+	 *            the home document of the invariant spans
+	 * @throws IOException
+	 *             if there is an I/O exception with the block or tail file
+	 */
+	public CompressedInvariantStream(File file, String documentHash) throws IOException {
+		this(file, documentHash, DEFAULT_BLOCK_CHARACTERS, DEFAULT_CACHED_BLOCKS);
+	}
+
+	/**
+	 * Constructs an InvariantStream backed by the specified block file. Creates a
+	 * new file if it does not exist
+	 * 
+	 * @param file
+	 *            the block file. The tail file is stored next to it.
+	 * @param documentHash
+	 *            the home document of the invariant spans
+	 * @param blockCharacters
+	 *            the number of characters of text to compress into each block
+	 * @param cachedBlocks
+	 *            the number of decompressed blocks to keep in memory
+	 * @throws IOException
+	 *             if there is an I/O exception with the block or tail file
+	 */
+	public CompressedInvariantStream(File file, String documentHash, int blockCharacters, int cachedBlocks)
+			throws IOException {
+		if (blockCharacters < 1) {
+			throw new IllegalArgumentException("blockCharacters must be greater than 0");
+		}
+		this.documentHash = documentHash;
+		this.blockCharacters = blockCharacters;
+		this.cache = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+				return size() > cachedBlocks;
+			}
+		};
+
+		file.getParentFile().mkdirs();
+		blocks = new RandomAccessFile(file, "rw").getChannel();
+		tail = new RandomAccessFile(new File(file.getPath() + ".tail"), "rw").getChannel();
+		openBlocks();
+		openTail();
+	}
+
+	@Override
+	public synchronized InvariantSpan append(String text) throws IOException, MalformedSpanException {
+		if (Strings.isNullOrEmpty(text)) {
+			throw new MalformedSpanException("No text - span length is 0");
+		}
+
+		BlockIndex idx = index;
+		InvariantSpan span = new InvariantSpan(idx.end + pending.length() + 1, text.length(), documentHash);
+		writeFully(tail, ByteBuffer.wrap(text.getBytes(UTF_8)), tail.size());
+		tail.force(true);
+		pending.append(text);
+
+		if (pending.length() >= blockCharacters) {
+			seal();
+		}
+		return span;
+	}
+
+	/**
+	 * Gets the decompressed text of the specified block
+	 */
+	private String block(BlockIndex idx, int i) throws IOException {
+		synchronized (cache) {
+			String text = cache.get(i);
+			if (text != null) {
+				return text;
+			}
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		readFully(header, idx.offsets[i]);
+		int characters = header.getInt(0);
+		byte[] raw = new byte[header.getInt(4)];
+		ByteBuffer compressed = ByteBuffer.allocate(header.getInt(8));
+		readFully(compressed, idx.offsets[i] + HEADER_LENGTH);
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed.array());
+			int n = 0;
+			while (n < raw.length && !inflater.finished()) {
+				n += inflater.inflate(raw, n, raw.length - n);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block " + i, e);
+		} finally {
+			inflater.end();
+		}
+
+		String text = new String(raw, UTF_8);
+		if (text.length() != characters) {
+			throw new IOException("Corrupt block " + i + ": expected " + characters + " characters");
+		}
+		synchronized (cache) {
+			cache.put(i, text);
+		}
+		return text;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		blocks.close();
+		tail.close();
+	}
+
+	@Override
+	public String getText(InvariantSpan ispan) throws IOException {
+		long from = ispan.getStart() - 1;
+		long to = from + ispan.getWidth();
+
+		StringBuilder sb = new StringBuilder((int) ispan.getWidth());
+		long position = from;
+		while (position < to) {
+			BlockIndex idx = index;
+			if (position < idx.end) {
+				int i = idx.find(position);
+				String text = block(idx, i);
+				long start = idx.starts[i];
+				int end = (int) Math.min(text.length(), to - start);
+				sb.append(text, (int) (position - start), end);
+				position = start + end;
+				continue;
+			}
+
+			synchronized (this) {
+				long end = index.end;
+				if (position < end) {
+					// sealed since the index was read
+					continue;
+				}
+				if (to > end + pending.length()) {
+					throw new IOException("Invariant span is past the end of the stream: end = " + to + ", size = "
+							+ (end + pending.length()));
+				}
+				sb.append(pending, (int) (position - end), (int) (to - end));
+				position = to;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Builds the block index from the block headers. A block that was only partly
+	 * written, or whose header is invalid, such as the zero-filled tail of a file
+	 * that was extended but not written, is removed along with the blocks after
+	 * it.
+	 */
+	private void openBlocks() throws IOException {
+		long size = blocks.size();
+		long offset = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		BlockIndex idx = index;
+		while (offset + HEADER_LENGTH <= size) {
+			header.clear();
+			readFully(header, offset);
+			int characters = header.getInt(0);
+			int rawLength = header.getInt(4);
+			int compressedLength = header.getInt(8);
+			if (characters <= 0 || rawLength <= 0 || compressedLength <= 0) {
+				break;
+			}
+			long next = offset + HEADER_LENGTH + compressedLength;
+			if (next > size) {
+				break;
+			}
+			idx = idx.add(offset, characters);
+			offset = next;
+		}
+		if (offset < size) {
+			blocks.truncate(offset);
+		}
+		index = idx;
+	}
+
+	/**
+	 * Loads the text of the tail file that has not been compressed into a block
+	 */
+	private void openTail() throws IOException {
+		long end = index.end;
+		if (tail.size() < 8) {
+			resetTail(end);
+			return;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate((int) tail.size());
+		readFully(tail, buf, 0);
+		long start = buf.getLong(0);
+		if (start > end) {
+			throw new IOException("Tail file starts at " + start + " but blocks end at " + end);
+		}
+
+		// drop a character that was only partly written
+		int limit = 8;
+		while (limit < buf.limit()) {
+			int length = CharacterOffsetIndex.sequenceLength(buf.get(limit));
+			if (limit + length > buf.limit()) {
+				break;
+			}
+			limit += length;
+		}
+		if (limit < buf.limit()) {
+			tail.truncate(limit);
+		}
+
+		String text = new String(buf.array(), 8, limit - 8, UTF_8);
+		if (start + text.length() <= end) {
+			resetTail(end);
+		} else {
+			pending.append(text, (int) (end - start), text.length());
+			if (start < end) {
+				rewriteTail(end);
+			}
+		}
+	}
+
+	private void readFully(ByteBuffer buf, long position) throws IOException {
+		readFully(blocks, buf, position);
+	}
+
+	private void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position + buf.position());
+			if (n < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		buf.flip();
+	}
+
+	/**
+	 * Clears the tail file, setting the character position of its text
+	 */
+	private void resetTail(long start) throws IOException {
+		tail.truncate(0);
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		buf.putLong(0, start);
+		writeFully(tail, buf, 0);
+		tail.force(true);
+	}
+
+	/**
+	 * Rewrites the tail file with the pending text, starting at the specified
+	 * character position
+	 */
+	private void rewriteTail(long start) throws IOException {
+		resetTail(start);
+		writeFully(tail, ByteBuffer.wrap(pending.toString().getBytes(UTF_8)), 8);
+		tail.force(true);
+	}
+
+	/**
+	 * Compresses the pending text into a new block and clears the tail file
+	 */
+	private void seal() throws IOException {
+		byte[] raw = pending.toString().getBytes(UTF_8);
+		Deflater deflater = new Deflater();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			byte[] chunk = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(chunk, 0, deflater.deflate(chunk));
+			}
+		} finally {
+			deflater.end();
+		}
+
+		byte[] compressed = out.toByteArray();
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + compressed.length);
+		buf.putInt(pending.length()).putInt(raw.length).putInt(compressed.length).put(compressed);
+		buf.flip();
+
+		BlockIndex idx = index;
+		long offset = blocks.size();
+		writeFully(blocks, buf, offset);
+		blocks.force(true);
+
+		index = idx.add(offset, pending.length());
+		pending.setLength(0);
+		resetTail(index.end);
+	}
+}
@@ -18,11 +18,18 @@ package org.oulipo.streams.impl;
 import java.io.IOException;
 import java.security.Key;
 import java.security.SignatureException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.oulipo.streams.Checkpoint;
+import org.oulipo.streams.EditBatch;
 import org.oulipo.streams.InvariantStream;
 import org.oulipo.streams.MalformedSpanException;
 import org.oulipo.streams.OulipoMachine;
@@ -55,10 +62,67 @@ import com.google.common.base.Strings;
 /**
  * An OulipoMachine that is backed by a <code>StreamLoader</code>. The
  * StreamLoader can be remote or local.
- *
+ * 
+ * A machine may be used by many threads. Edits of the variant streams are
+ * queued and applied one at a time, in order, by the write queue of the
+ * machine, so an edit that changes both variant streams, and the document file
+ * it is recorded in, is never interleaved with another edit. The calling
+ * thread waits for its edit to be applied. Text is appended to the invariant
+ * stream before the edit is queued, so concurrent inserts still share forces of
+ * the invariant stream. Reads don't go through the queue: the variant streams
+ * of the stream loader serve any number of readers at the same time between
+ * edits.
+ * 
+ * Edits and loads hold the write lock of the variant streams of the machine
+ * while they are applied, and reads hold its read lock, so a read sees an edit
+ * of both variant streams in full or not at all. Text is appended to the
+ * invariant stream before an edit that refers to it, so a read never sees a
+ * span whose text can't be read.
+ * 
+ * A load of a document runs on the write queue, like an edit, so whether the
+ * streams are empty is decided with no other edit or load in between.
+ * Concurrent loads of the same document share one load. Loading a document into
+ * empty streams replays only the blocks of its chain after the newest checkpoint
+ * the stream loader has. A load that replays <code>CHECKPOINT_INTERVAL</code> or
+ * more blocks saves the loaded state as a checkpoint of the last block, so later
+ * loads of the document, or of newer revisions of it, replay at most about that
+ * many blocks.
  */
 public final class DefaultOulipoMachine implements OulipoMachine {
 
+	/**
+	 * A read of the variant streams of the machine
+	 */
+	@FunctionalInterface
+	interface Read<R> {
+
+		R apply() throws MalformedSpanException;
+	}
+
+	/**
+	 * An edit of the streams of the machine
+	 */
+	@FunctionalInterface
+	private interface Write {
+
+		void apply() throws MalformedSpanException, IOException;
+	}
+
+	/**
+	 * Number of blocks replayed by a load, since the genesis block or the last
+	 * checkpoint, after which the loaded state is saved as a checkpoint
+	 */
+	static final int CHECKPOINT_INTERVAL = 64;
+
+	/**
+	 * Threads that run the write queues of all machines
+	 */
+	private static final ExecutorService WRITERS = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "machine-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	private static void assertGreaterThanZero(long to) throws IllegalArgumentException {
 		if (to < 1) {
 			throw new IllegalArgumentException("to must be greater than 0");
@@ -71,6 +135,27 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 		}
 	}
 
+	/**
+	 * Waits for the specified future to complete, rethrowing its exception
+	 */
+	private static <T> T await(CompletableFuture<T> future) throws MalformedSpanException, IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof MalformedSpanException) {
+				throw (MalformedSpanException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
 	public static DefaultOulipoMachine createWritableMachine(StreamLoader loader, RemoteFileManager remoteFileManager,
 			String documentHash) throws IOException, MalformedSpanException {
 		return new DefaultOulipoMachine(loader, remoteFileManager, documentHash, null);
@@ -82,16 +167,34 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 
 	private final InvariantStream iStream;
 
+	/**
+	 * Loads of documents that are queued or running, by hash. Concurrent loads of
+	 * the same document share one load.
+	 */
+	private final ConcurrentMap<String, CompletableFuture<Void>> loads = new ConcurrentHashMap<>();
+
 	private VariantStream<OverlayStream> oStream;
 
 	private final RemoteFileManager remoteFileManager;
 
 	protected final StreamLoader stream;
 
+	/**
+	 * Held for writing while an edit or load is applied to the variant streams,
+	 * and for reading by reads of them, so a read sees an edit of both streams
+	 * either in full or not at all
+	 */
+	private final ReentrantReadWriteLock streams = new ReentrantReadWriteLock();
+
 	private final VariantStream<Invariant> vStream;
 
 	private boolean writeDocFile = false;
 
+	/**
+	 * Write queue of this machine
+	 */
+	private final SerialExecutor writer = new SerialExecutor(WRITERS);
+
 	public DefaultOulipoMachine(StreamLoader stream, RemoteFileManager remoteFileManager, String documentHash,
 			Key privateKey) throws IOException, MalformedSpanException {
 		if (stream == null) {
@@ -110,10 +213,14 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 		this.remoteFileManager = remoteFileManager;
 
 		this.documentBuilder = new DocumentFile.Builder(documentHash);
+		// the variant streams load on the loader's threads while the invariant stream
+		// is opened
+		CompletableFuture<VariantStream<Invariant>> vLoad = stream.openInvariantVariantStreamAsync(documentHash);
+		CompletableFuture<VariantStream<OverlayStream>> oLoad = stream.openOverlayVariantStreamAsync(documentHash);
 		// TODO: stream needs encrypted stream
 		this.iStream = stream.openInvariantStream(documentHash, privateKey);
-		this.vStream = stream.openInvariantVariantStream(documentHash);
-		this.oStream = stream.openOverlayVariantStream(documentHash);
+		this.vStream = await(vLoad);
+		this.oStream = await(oLoad);
 		this.documentHash = documentHash;
 	}
 
@@ -122,6 +229,18 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 		return iStream.append(text);// TODO: encrypted????
 	}
 
+	/**
+	 * Applies the write while holding the write lock of the variant streams
+	 */
+	private void apply(Write write) throws MalformedSpanException, IOException {
+		streams.writeLock().lock();
+		try {
+			write.apply();
+		} finally {
+			streams.writeLock().unlock();
+		}
+	}
+
 	@Override
 	public void applyOverlays(VariantSpan variantSpan, Set<Overlay> links) throws MalformedSpanException, IOException {// links
 																														// are
@@ -135,80 +254,105 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 																														// linkType
 		assertSpanNotNull(variantSpan);
 
-		oStream.applyOverlays(variantSpan, links);
+		write(() -> {
+			oStream.applyOverlays(variantSpan, links);
 
-		if (writeDocFile) {
-			documentBuilder.applyOverlay(variantSpan, links);
-		}
+			if (writeDocFile) {
+				documentBuilder.applyOverlay(variantSpan, links);
+			}
+		});
+	}
+
+	/**
+	 * Closes the invariant stream. The variant streams belong to the stream
+	 * loader, which keeps them open.
+	 */
+	@Override
+	public void close() throws IOException {
+		iStream.close();
 	}
 
 	@Override
 	public void copyVariant(long to, VariantSpan variantSpan) throws MalformedSpanException, IOException {
 		assertGreaterThanZero(to);
 		assertSpanNotNull(variantSpan);
-		vStream.copy(to, variantSpan);
-		oStream.copy(to, variantSpan);
+		write(() -> {
+			vStream.copy(to, variantSpan);
+			oStream.copy(to, variantSpan);
 
-		if (writeDocFile) {
-			documentBuilder.copyVariant(to, variantSpan);
-		}
+			if (writeDocFile) {
+				documentBuilder.copyVariant(to, variantSpan);
+			}
+		});
 	}
 
 	@Override
 	public void deleteVariant(VariantSpan variantSpan) throws MalformedSpanException, IOException {
 		assertSpanNotNull(variantSpan);
-		vStream.delete(variantSpan);
-		oStream.delete(variantSpan);
+		write(() -> {
+			vStream.delete(variantSpan);
+			oStream.delete(variantSpan);
 
-		if (writeDocFile) {
-			documentBuilder.deleteVariant(variantSpan);
-		}
+			if (writeDocFile) {
+				documentBuilder.deleteVariant(variantSpan);
+			}
+		});
 	}
 
-	private void executeOps(DocumentFile document) throws MalformedSpanException, IOException {
+	/**
+	 * Adds the ops of the document to the edit batches of the invariant and
+	 * overlay streams
+	 */
+	private void executeOps(DocumentFile document, EditBatch<Invariant> invariantEdits,
+			EditBatch<OverlayStream> overlayEdits) throws MalformedSpanException, IOException {
 		for (Op op : document.getOps()) {
 			switch (op.getCode()) {
 			case Op.COPY:
 				CopyVariantOp cvo = (CopyVariantOp) op;
-				copyVariant(cvo.to, cvo.variantSpan);
+				invariantEdits.copy(cvo.to, cvo.variantSpan);
+				overlayEdits.copy(cvo.to, cvo.variantSpan);
 				break;
 			case Op.DELETE:
 				DeleteVariantOp dvo = (DeleteVariantOp) op;
-				deleteVariant(dvo.variantSpan);
+				invariantEdits.delete(dvo.variantSpan);
+				overlayEdits.delete(dvo.variantSpan);
 				break;
 			case Op.MOVE:
 				MoveVariantOp mvo = (MoveVariantOp) op;
-				moveVariant(mvo.to, mvo.variantSpan);
+				invariantEdits.move(mvo.to, mvo.variantSpan);
+				overlayEdits.move(mvo.to, mvo.variantSpan);
 				break;
 			case Op.PUT_OVERLAY_MEDIA:
 				PutOverlayMediaOp pmo = (PutOverlayMediaOp) op;
-				putOverlay(pmo.to, new OverlayMedia(document.getString(pmo.hash), document.getOverlays(pmo.linkTypes)));
+				overlayEdits.put(pmo.to,
+						new OverlayMedia(document.getString(pmo.hash), document.getOverlays(pmo.linkTypes)));
 				break;
 			case Op.PUT_INVARIANT_MEDIA:
 				PutInvariantMediaOp pmso = (PutInvariantMediaOp) op;
-				putInvariant(pmso.to, new InvariantMedia(document.getString(pmso.ripIndex)));
+				invariantEdits.put(pmso.to, new InvariantMedia(document.getString(pmso.ripIndex)));
 				break;
 			case Op.PUT_OVERLAY:
 				PutOverlayOp poo = (PutOverlayOp) op;
-				putOverlay(poo.variantSpan.start,
+				overlayEdits.put(poo.variantSpan.start,
 						new OverlayStream(poo.variantSpan.width, document.getOverlays(poo.linkTypes)));
 				break;
 			case Op.PUT_INVARIANT_SPAN:
 				PutInvariantSpanOp pso = (PutInvariantSpanOp) op;
-				putInvariant(pso.to,
+				invariantEdits.put(pso.to,
 						new InvariantSpan(pso.invariantStart, pso.width, document.getString(pso.ripIndex)));
 				break;
 			case Op.SWAP:
 				SwapVariantOp svo = (SwapVariantOp) op;
-				swapVariants(svo.v1, svo.v2);
+				invariantEdits.swap(svo.v1, svo.v2);
+				overlayEdits.swap(svo.v1, svo.v2);
 				break;
 			case Op.APPLY_OVERLAY:
 				ApplyOverlayOp aoo = (ApplyOverlayOp) op;
-				applyOverlays(aoo.variantSpan, document.getOverlays(aoo.linkTypes));
+				overlayEdits.applyOverlays(aoo.variantSpan, document.getOverlays(aoo.linkTypes));
 				break;
 			case Op.TOGGLE_OVERLAY:
 				ToggleOverlayOp too = (ToggleOverlayOp) op;
-				toggleOverlay(too.variantSpan, document.getOverlay(too.linkTypeIndex));
+				overlayEdits.toggleOverlay(too.variantSpan, document.getOverlay(too.linkTypeIndex));
 				break;
 			}
 		}
@@ -226,13 +370,13 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 
 	@Override
 	public List<Invariant> getInvariants() throws MalformedSpanException {
-		return vStream.getStreamElements();
+		return read(() -> vStream.getStreamElements());
 	}
 
 	@Override
 	public List<Invariant> getInvariants(VariantSpan variantSpan) throws MalformedSpanException {
 		assertSpanNotNull(variantSpan);
-		return vStream.getStreamElements(variantSpan);
+		return read(() -> vStream.getStreamElements(variantSpan));
 	}
 
 	@Override
@@ -241,16 +385,30 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 		return iStream.getText(invariantSpan);// TODO: encrypted??
 	}
 
+	@Override
+	public List<String> getTexts(List<InvariantSpan> invariantSpans) throws IOException, MalformedSpanException {
+		assertSpanNotNull(invariantSpans);
+		for (InvariantSpan invariantSpan : invariantSpans) {
+			assertSpanNotNull(invariantSpan);
+		}
+		return iStream.getTexts(invariantSpans);
+	}
+
 	@Override
 	public List<VariantSpan> getVariantSpans(InvariantSpan invariantSpan) throws MalformedSpanException {
 		assertSpanNotNull(invariantSpan);
-		return vStream.getVariantSpans(invariantSpan);
+		return read(() -> vStream.getVariantSpans(invariantSpan));
 	}
 
 	@Override
 	public Invariant index(long characterPosition) {
 		assertGreaterThanZero(characterPosition);
-		return vStream.index(characterPosition);
+		streams.readLock().lock();
+		try {
+			return vStream.index(characterPosition);
+		} finally {
+			streams.readLock().unlock();
+		}
 	}
 
 	@Override
@@ -260,8 +418,10 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 			throw new IllegalArgumentException("Text can't be empty");
 		}
 		InvariantSpan ispan = iStream.append(text);// TODO: encrypted
-		vStream.put(to, ispan);
-		putOverlay(to, new OverlayStream(ispan.getWidth()));
+		write(() -> {
+			vStream.put(to, ispan);
+			putOverlay(to, new OverlayStream(ispan.getWidth()));
+		});
 	}
 
 	@Override
@@ -271,8 +431,53 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 			throw new IllegalArgumentException("Text can't be empty");
 		}
 		InvariantSpan ispan = iStream.append(text);// TODO: encrypted
-		vStream.put(to, ispan);
-		putOverlay(to, new OverlayStream(ispan.getWidth()));
+		write(() -> {
+			vStream.put(to, ispan);
+			putOverlay(to, new OverlayStream(ispan.getWidth()));
+		});
+	}
+
+	/**
+	 * Loads the document into the streams. Runs on the write queue, so the
+	 * streams can't change between the check that they are empty and the edits of
+	 * the load.
+	 */
+	private void load(String hash) throws MalformedSpanException, IOException, SignatureException {
+		// a checkpoint is the state of the document alone, so it only stands in for
+		// the replay of its blocks into empty streams
+		boolean empty = vStream.size() == 0 && oStream.size() == 0;
+		List<DocumentFile> documents = DocumentChainResolver.resolve(hash, remoteFileManager,
+				DocumentChainResolver.DEFAULT_PREFETCH, empty ? stream::hasCheckpoint : blockHash -> false);
+
+		Checkpoint checkpoint = null;
+		String checkpointHash = documents.isEmpty() ? hash : documents.get(0).getHashPreviousBlock();
+		if (empty && !Strings.isNullOrEmpty(checkpointHash)) {
+			checkpoint = stream.readCheckpoint(checkpointHash);
+			if (checkpoint == null) {
+				documents = DocumentChainResolver.resolve(hash, remoteFileManager,
+						DocumentChainResolver.DEFAULT_PREFETCH);
+			}
+		}
+
+		EditBatch<Invariant> invariantEdits = new EditBatch<>();
+		EditBatch<OverlayStream> overlayEdits = new EditBatch<>();
+		if (checkpoint != null) {
+			restore(checkpoint, invariantEdits, overlayEdits);
+		}
+		for (DocumentFile document : documents) {
+			executeOps(document, invariantEdits, overlayEdits);
+		}
+		streams.writeLock().lock();
+		try {
+			vStream.apply(invariantEdits);
+			oStream.apply(overlayEdits);
+		} finally {
+			streams.writeLock().unlock();
+		}
+
+		if (empty && documents.size() >= CHECKPOINT_INTERVAL) {
+			stream.writeCheckpoint(hash, new Checkpoint(vStream.getStreamElements(), oStream.getStreamElements()));
+		}
 	}
 
 	@Override
@@ -280,17 +485,38 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 		if (Strings.isNullOrEmpty(hash)) {
 			throw new IllegalArgumentException("hash is null");
 		}
-		List<DocumentFile> documents;
-		try {
-			documents = processFiles(hash);
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (writer.inTask()) {
+			load(hash);
 			return;
 		}
-		Collections.reverse(documents);
-		for (DocumentFile document : documents) {
-			executeOps(document);
+
+		CompletableFuture<Void> load = new CompletableFuture<>();
+		CompletableFuture<Void> pending = loads.putIfAbsent(hash, load);
+		if (pending == null) {
+			pending = load;
+			writer.execute(() -> {
+				Throwable failure = null;
+				try {
+					load(hash);
+				} catch (Throwable e) {
+					failure = e;
+				}
+				// a load of the document requested from now on is a new load
+				loads.remove(hash, load);
+				if (failure == null) {
+					load.complete(null);
+				} else {
+					load.completeExceptionally(failure);
+				}
+			});
+		}
+		try {
+			await(pending);
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof SignatureException) {
+				throw (SignatureException) e.getCause();
+			}
+			throw e;
 		}
 	}
 
@@ -298,23 +524,14 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 	public void moveVariant(long to, VariantSpan variantSpan) throws MalformedSpanException, IOException {
 		assertGreaterThanZero(to);
 		assertSpanNotNull(variantSpan);
-		vStream.move(to, variantSpan);
-		oStream.move(to, variantSpan);
-
-		if (writeDocFile) {
-			documentBuilder.moveVariant(to, variantSpan);
-		}
-	}
+		write(() -> {
+			vStream.move(to, variantSpan);
+			oStream.move(to, variantSpan);
 
-	private List<DocumentFile> processFiles(String hash)
-			throws IOException, SignatureException, MalformedSpanException, Exception {
-		List<DocumentFile> documents = new ArrayList<>();
-		byte[] doc = remoteFileManager.get(hash);// TODO: check local cache
-		DocumentFile file = DocumentFile.decompiler().decompile(hash, doc);
-		if (!Strings.isNullOrEmpty(file.getHashPreviousBlock())) {
-			documents.addAll(processFiles(file.getHashPreviousBlock()));
-		}
-		return documents;
+			if (writeDocFile) {
+				documentBuilder.moveVariant(to, variantSpan);
+			}
+		});
 	}
 
 	@Override
@@ -330,25 +547,67 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 			}
 		} else if (invariant instanceof InvariantMedia) {
 			InvariantMedia im = (InvariantMedia) invariant;
-			vStream.put(to, im);
-			if (writeDocFile) {
-				documentBuilder.putInvariantMediaOp(to, im.hash);
-			}
+			write(() -> {
+				vStream.put(to, im);
+				if (writeDocFile) {
+					documentBuilder.putInvariantMediaOp(to, im.hash);
+				}
+			});
 		}
 	}
 
 	@Override
 	public void putOverlay(long to, OverlayStream overlayStream) throws MalformedSpanException, IOException {
 		assertGreaterThanZero(to);
-		oStream.put(to, overlayStream);
-
-		if (writeDocFile) {
-			if (overlayStream instanceof OverlayStream) {
-				documentBuilder.putOverlayOp(new VariantSpan(to, overlayStream.getWidth()), overlayStream.linkTypes);
-			} else if (overlayStream instanceof OverlayMedia) {
-				OverlayMedia om = (OverlayMedia) overlayStream;
-				documentBuilder.putOverlayMediaOp(to, om.hash, om.linkTypes);
+		write(() -> {
+			oStream.put(to, overlayStream);
+
+			if (writeDocFile) {
+				if (overlayStream instanceof OverlayStream) {
+					documentBuilder.putOverlayOp(new VariantSpan(to, overlayStream.getWidth()),
+							overlayStream.linkTypes);
+				} else if (overlayStream instanceof OverlayMedia) {
+					OverlayMedia om = (OverlayMedia) overlayStream;
+					documentBuilder.putOverlayMediaOp(to, om.hash, om.linkTypes);
+				}
 			}
+		});
+	}
+
+	/**
+	 * Runs the read while holding the read lock of the variant streams, so it
+	 * sees both streams as of the same edit
+	 * 
+	 * @param read
+	 *            the read of the variant streams
+	 * @return the result of the read
+	 * @throws MalformedSpanException
+	 */
+	<R> R read(Read<R> read) throws MalformedSpanException {
+		streams.readLock().lock();
+		try {
+			return read.apply();
+		} finally {
+			streams.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds puts of the elements of the checkpoint to the edit batches of the
+	 * invariant and overlay streams. The puts of each stream are coalesced into a
+	 * single put.
+	 */
+	private void restore(Checkpoint checkpoint, EditBatch<Invariant> invariantEdits,
+			EditBatch<OverlayStream> overlayEdits) {
+		long to = 1;
+		for (Invariant invariant : checkpoint.getInvariants()) {
+			invariantEdits.put(to, invariant);
+			to += invariant.getWidth();
+		}
+		to = 1;
+		for (OverlayStream overlay : checkpoint.getOverlays()) {
+			overlayEdits.put(to, overlay);
+			to += overlay.getWidth();
 		}
 	}
 
@@ -356,22 +615,48 @@ public final class DefaultOulipoMachine implements OulipoMachine {
 	public void swapVariants(VariantSpan v1, VariantSpan v2) throws MalformedSpanException, IOException {
 		assertSpanNotNull(v1);
 		assertSpanNotNull(v2);
-		vStream.swap(v1, v2);
-		oStream.swap(v1, v2);
+		write(() -> {
+			vStream.swap(v1, v2);
+			oStream.swap(v1, v2);
 
-		if (writeDocFile) {
-			documentBuilder.swapVariant(v1, v2);
-		}
+			if (writeDocFile) {
+				documentBuilder.swapVariant(v1, v2);
+			}
+		});
 	}
 
 	@Override
 	public void toggleOverlay(VariantSpan variantSpan, Overlay link) throws MalformedSpanException, IOException {
 		assertSpanNotNull(variantSpan);
-		oStream.toggleOverlay(variantSpan, link);
+		write(() -> {
+			oStream.toggleOverlay(variantSpan, link);
 
-		if (writeDocFile) {
-			documentBuilder.toggleOverlay(variantSpan, link);
-		}
+			if (writeDocFile) {
+				documentBuilder.toggleOverlay(variantSpan, link);
+			}
+		});
 	}
 
+	/**
+	 * Runs the write on the write queue of this machine and waits for it to
+	 * complete. A write made from within a write runs directly, since it is
+	 * already on the queue.
+	 */
+	private void write(Write write) throws MalformedSpanException, IOException {
+		if (writer.inTask()) {
+			apply(write);
+			return;
+		}
+
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		writer.execute(() -> {
+			try {
+				apply(write);
+				done.complete(null);
+			} catch (Throwable e) {
+				done.completeExceptionally(e);
+			}
+		});
+		await(done);
+	}
 }
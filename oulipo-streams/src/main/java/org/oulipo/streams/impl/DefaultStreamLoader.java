@@ -15,31 +15,118 @@
  *******************************************************************************/
 package org.oulipo.streams.impl;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.security.Key;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.oulipo.streams.Checkpoint;
 import org.oulipo.streams.InvariantStream;
 import org.oulipo.streams.MalformedSpanException;
 import org.oulipo.streams.StreamLoader;
 import org.oulipo.streams.VariantStream;
 import org.oulipo.streams.types.Invariant;
 import org.oulipo.streams.types.OverlayStream;
+import org.oulipo.streams.types.StreamElement;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.CacheStats;
 
 /**
  * An implementation of StreamLoader that is backed by the file system for the
  * variant and invariant streams.
+ * 
+ * Variant streams are persisted write-behind. Each modification marks its
+ * stream dirty, and a background thread writes the dirty streams every
+ * <code>flushIntervalMillis</code>, or as soon as <code>maxDirtyStreams</code>
+ * streams are dirty. The request path only marks the stream dirty; it never
+ * waits for a write. A stream stays dirty until a write of its latest version
+ * has completed, so a dirty stream evicted from the cache is still the one
+ * returned when its document is opened again. Files are replaced atomically,
+ * so a crash leaves the last complete write of each stream.
+ * 
+ * Invariant variant streams are journaled: a write appends the ops of the new
+ * edits to the journal of the stream, and only writes the whole stream, as a
+ * snapshot, once the journal has grown large. Overlay variant streams are
+ * written whole as a snapshot. Streams saved as JSON by earlier versions are
+ * read once and then replaced by a snapshot.
+ * 
+ * Open variant streams of both kinds are kept in a single cache. If the loader
+ * has a heap budget, the cache evicts streams by their estimated size, the
+ * number of elements times the cost of an element, rather than by their number.
+ * A stream is weighed when it is opened and again each time it is written, so
+ * the weight of a stream lags its edits by at most the flush interval. Streams
+ * keep a count of their elements, so weighing a stream takes constant time.
+ * Dirty streams are kept until they are written even if the cache evicts them.
+ * The budget covers only the streams in the cache: a stream the cache has
+ * evicted keeps its heap while a machine or dirty write still holds it, and is
+ * no longer counted against the budget or by <code>getCacheBytes</code>.
+ * 
+ * Loads are single-flight: concurrent opens of a stream that is not cached
+ * share one load and get the same instance. The async open methods load on a
+ * pool of loader threads, so the caller never waits on disk reads.
+ * 
+ * Checkpoints of document states are kept next to the streams, as a pair of
+ * snapshots named by the hash of the block they were taken at.
  */
-public final class DefaultStreamLoader implements StreamLoader {
+public final class DefaultStreamLoader implements StreamLoader, Closeable {
+
+	/**
+	 * Loads a variant stream from disk
+	 */
+	@FunctionalInterface
+	private interface Load {
+
+		WriteBehindVariantStream<?> load() throws IOException, MalformedSpanException;
+	}
+
+	/**
+	 * Default time between writes of dirty streams
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * Default number of dirty streams that starts a write before the flush
+	 * interval has passed
+	 */
+	public static final int DEFAULT_MAX_DIRTY_STREAMS = 64;
+
+	/**
+	 * Estimated bytes per element of an invariant variant stream, which packs its
+	 * elements into arrays
+	 */
+	static final long INVARIANT_ELEMENT_BYTES = 32;
+
+	private static final Logger LOG = Logger.getLogger(DefaultStreamLoader.class.getName());
+
+	/**
+	 * Estimated bytes per element of an overlay variant stream: a leaf node, its
+	 * share of the branch nodes, the overlay stream and its set of overlays
+	 */
+	static final long OVERLAY_ELEMENT_BYTES = 192;
+
+	/**
+	 * Estimated bytes of a stream with no elements
+	 */
+	static final long STREAM_BYTES = 1024;
 
 	/**
 	 * Base directory where the streams are stored
@@ -47,19 +134,48 @@ public final class DefaultStreamLoader implements StreamLoader {
 	private File baseDir;
 
 	/**
-	 * Maps invariant spans to/from JSON format
+	 * Store new invariant streams in compressed blocks
 	 */
-	private ObjectMapper mapper = new ObjectMapper();
+	private final boolean compressInvariantStreams;
+
+	/**
+	 * Streams with modifications that have not been written, by file
+	 */
+	private final ConcurrentMap<File, WriteBehindVariantStream<?>> dirty = new ConcurrentHashMap<>();
 
 	/**
-	 * Variant stream in-memory cache (key = documentHash)
+	 * Is a write of the dirty streams waiting to run, because there are too many
 	 */
-	private final LoadingCache<String, VariantStream<OverlayStream>> overlayCache;
+	private final AtomicBoolean flushPending = new AtomicBoolean();
 
 	/**
-	 * Variant stream in-memory cache (key = documentHash)
+	 * Single thread that writes the dirty streams
 	 */
-	private final LoadingCache<String, VariantStream<Invariant>> spanCache;
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * Threads that load streams for the async open methods
+	 */
+	private final ExecutorService loader;
+
+	/**
+	 * Loads in progress, by file. A load is removed once its stream is in the
+	 * cache.
+	 */
+	private final ConcurrentMap<File, CompletableFuture<WriteBehindVariantStream<?>>> loads = new ConcurrentHashMap<>();
+
+	/**
+	 * Reads variant streams saved as JSON, before snapshots were used
+	 */
+	private ObjectMapper mapper = new ObjectMapper();
+
+	private final int maxDirtyStreams;
+
+	/**
+	 * Invariant and overlay variant stream in-memory cache (key = file of the
+	 * stream)
+	 */
+	private final Cache<File, WriteBehindVariantStream<?>> streams;
 
 	/**
 	 * Constructs a <code>StreamLoader</code> instance backed by the file system and
@@ -72,48 +188,222 @@ public final class DefaultStreamLoader implements StreamLoader {
 	 *            and max size of the cache.
 	 */
 	public DefaultStreamLoader(File baseDir, String spec) {
+		this(baseDir, spec, false);
+	}
+
+	/**
+	 * Constructs a <code>StreamLoader</code> instance backed by the file system and
+	 * in-memory cache.
+	 * 
+	 * @param baseDir
+	 *            the base directory where the streams are stored
+	 * @param spec
+	 *            the spec for the cache. Contains parameters like the expiry time
+	 *            and max size of the cache.
+	 * @param compressInvariantStreams
+	 *            store new invariant streams in compressed blocks. Existing
+	 *            uncompressed invariant streams are still opened as they are.
+	 */
+	public DefaultStreamLoader(File baseDir, String spec, boolean compressInvariantStreams) {
+		this(baseDir, spec, compressInvariantStreams, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_DIRTY_STREAMS);
+	}
+
+	/**
+	 * Constructs a <code>StreamLoader</code> instance backed by the file system and
+	 * in-memory cache.
+	 * 
+	 * @param baseDir
+	 *            the base directory where the streams are stored
+	 * @param spec
+	 *            the spec for the cache. Contains parameters like the expiry time
+	 *            and max size of the cache.
+	 * @param compressInvariantStreams
+	 *            store new invariant streams in compressed blocks. Existing
+	 *            uncompressed invariant streams are still opened as they are.
+	 * @param flushIntervalMillis
+	 *            the time between writes of dirty variant streams. Must be greater
+	 *            than 0.
+	 * @param maxDirtyStreams
+	 *            the number of dirty variant streams that starts a write before
+	 *            the flush interval has passed. Must be greater than 0.
+	 */
+	public DefaultStreamLoader(File baseDir, String spec, boolean compressInvariantStreams, long flushIntervalMillis,
+			int maxDirtyStreams) {
+		this(baseDir, spec, compressInvariantStreams, flushIntervalMillis, maxDirtyStreams, 0);
+	}
+
+	/**
+	 * Constructs a <code>StreamLoader</code> instance backed by the file system and
+	 * an in-memory cache with a heap budget.
+	 * 
+	 * @param baseDir
+	 *            the base directory where the streams are stored
+	 * @param spec
+	 *            the spec for the cache. Contains parameters like the expiry time.
+	 *            Must not set a maximum size or weight if there is a heap budget.
+	 * @param compressInvariantStreams
+	 *            store new invariant streams in compressed blocks. Existing
+	 *            uncompressed invariant streams are still opened as they are.
+	 * @param flushIntervalMillis
+	 *            the time between writes of dirty variant streams. Must be greater
+	 *            than 0.
+	 * @param maxDirtyStreams
+	 *            the number of dirty variant streams that starts a write before
+	 *            the flush interval has passed. Must be greater than 0.
+	 * @param maxCacheBytes
+	 *            the estimated bytes of heap the cached variant streams may take,
+	 *            shared by invariant and overlay streams, or 0 to size the cache by
+	 *            the spec only. Evicted streams that are still referenced are not
+	 *            counted.
+	 */
+	public DefaultStreamLoader(File baseDir, String spec, boolean compressInvariantStreams, long flushIntervalMillis,
+			int maxDirtyStreams, long maxCacheBytes) {
+		if (flushIntervalMillis < 1) {
+			throw new IllegalArgumentException("flushIntervalMillis must be greater than 0");
+		}
+		if (maxDirtyStreams < 1) {
+			throw new IllegalArgumentException("maxDirtyStreams must be greater than 0");
+		}
+		if (maxCacheBytes < 0) {
+			throw new IllegalArgumentException("maxCacheBytes must be non-negative");
+		}
 		this.baseDir = baseDir;
+		this.compressInvariantStreams = compressInvariantStreams;
+		this.maxDirtyStreams = maxDirtyStreams;
 		baseDir.mkdirs();
-		spanCache = CacheBuilder.from(spec).removalListener(new RemovalListener<String, VariantStream<Invariant>>() {
-
-			@Override
-			public void onRemoval(RemovalNotification<String, VariantStream<Invariant>> notification) {
-				try {
-					persistInvariantElements(notification.getKey(), notification.getValue());
-				} catch (IOException | MalformedSpanException e) {
-					e.printStackTrace();
-				}
-			}
-		}).build(new CacheLoader<String, VariantStream<Invariant>>() {
-			@Override
-			public VariantStream<Invariant> load(String key) throws IOException, MalformedSpanException {
-				return openInvariantVariantStream(key);
-			}
+
+		flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "stream-flusher-" + baseDir.getName());
+			thread.setDaemon(true);
+			return thread;
 		});
+		flusher.scheduleWithFixedDelay(this::flushDirtyStreams, flushIntervalMillis, flushIntervalMillis,
+				TimeUnit.MILLISECONDS);
+
+		loader = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread thread = new Thread(r, "stream-loader-" + baseDir.getName());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		if (maxCacheBytes > 0) {
+			streams = CacheBuilder.from(spec).recordStats().maximumWeight(maxCacheBytes)
+					.weigher((File file, WriteBehindVariantStream<?> stream) -> (int) Math.min(stream.estimatedBytes,
+							Integer.MAX_VALUE))
+					.build();
+		} else {
+			streams = CacheBuilder.from(spec).recordStats().build();
+		}
+	}
+
+	/**
+	 * Waits for the specified load to complete, rethrowing its exception
+	 */
+	private static WriteBehindVariantStream<?> await(CompletableFuture<WriteBehindVariantStream<?>> load)
+			throws IOException, MalformedSpanException {
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading stream", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof MalformedSpanException) {
+				throw (MalformedSpanException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
 
-		overlayCache = CacheBuilder.from(spec)
-				.removalListener(new RemovalListener<String, VariantStream<OverlayStream>>() {
+	/**
+	 * Gets the snapshot file of the specified kind of a checkpoint
+	 */
+	private File checkpointFile(String blockHash, String kind) {
+		return new File(baseDir, blockHash + "-checkpoint-" + kind + ".snapshot");
+	}
 
-					@Override
-					public void onRemoval(RemovalNotification<String, VariantStream<OverlayStream>> notification) {
-						try {
-							persistOverlayElements(notification.getKey(), notification.getValue());
-						} catch (IOException | MalformedSpanException e) {
-							e.printStackTrace();
-						}
-					}
-				}).build(new CacheLoader<String, VariantStream<OverlayStream>>() {
-					@Override
-					public VariantStream<OverlayStream> load(String key) throws IOException, MalformedSpanException {
-						return openOverlayVariantStream(key);
-					}
-				});
+	/**
+	 * Writes the dirty streams and stops the background writer and loaders
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flusher.submit(this::flushDirtyStreams).get();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing streams", e);
+		} catch (RejectedExecutionException e) {
+			// already closed
+		} finally {
+			flusher.shutdown();
+			loader.shutdown();
+		}
+	}
 
+	/**
+	 * Writes each dirty stream. A stream that fails to write stays dirty and is
+	 * tried again on the next run. Only runs on the flusher thread.
+	 */
+	private void flushDirtyStreams() {
+		flushPending.set(false);
+		for (WriteBehindVariantStream<?> stream : dirty.values()) {
+			try {
+				persist(stream);
+			} catch (IOException | MalformedSpanException e) {
+				LOG.log(Level.WARNING, "Failed to write stream " + stream.file + ", will retry", e);
+			}
+		}
 	}
 
+	/**
+	 * Clears the cache and waits until all dirty streams have been written
+	 */
 	@Override
 	public void flushVariantCache() {
-		spanCache.invalidateAll();
+		streams.invalidateAll();
+		try {
+			flusher.submit(this::flushDirtyStreams).get();
+		} catch (ExecutionException e) {
+			LOG.log(Level.WARNING, "Failed to flush variant streams", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RejectedExecutionException e) {
+			// closed, so there is no background writer
+			flushDirtyStreams();
+		}
+	}
+
+	/**
+	 * Gets the number of bytes of heap the cached variant streams are estimated to
+	 * take, as of the last time each was weighed. Streams evicted from the cache
+	 * are not counted, even if they are still referenced.
+	 * 
+	 * @return estimated bytes of the cached streams
+	 */
+	public long getCacheBytes() {
+		long bytes = 0;
+		for (WriteBehindVariantStream<?> stream : streams.asMap().values()) {
+			bytes += stream.estimatedBytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Gets the statistics of the variant stream cache, including the number of
+	 * hits, misses and evictions
+	 * 
+	 * @return statistics of the cache
+	 */
+	public CacheStats getCacheStats() {
+		return streams.stats();
 	}
 
 	@Override
@@ -122,65 +412,271 @@ public final class DefaultStreamLoader implements StreamLoader {
 	}
 
 	@Override
-	public InvariantStream openInvariantStream(String documentHash, Key key) throws IOException {
-		return new FileInvariantStream(new File(baseDir, documentHash + "-invariant.txt"),
-				new File(baseDir, documentHash + "-invariant-encrypted.txt"), documentHash, key);
+	public boolean hasCheckpoint(String blockHash) {
+		return checkpointFile(blockHash, "invariants").exists();
+	}
+
+	/**
+	 * Marks the specified stream clean, if it has not been modified since the
+	 * specified version was written
+	 */
+	private void markClean(WriteBehindVariantStream<?> stream, long version) {
+		stream.lock.readLock().lock();
+		try {
+			if (stream.version == version) {
+				dirty.remove(stream.file, stream);
+			}
+		} finally {
+			stream.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks the specified stream dirty. Called while holding the write lock of the
+	 * stream, so it must not block.
+	 */
+	private void markDirty(WriteBehindVariantStream<?> stream) {
+		if (dirty.putIfAbsent(stream.file, stream) == null && dirty.size() >= maxDirtyStreams
+				&& flushPending.compareAndSet(false, true)) {
+			try {
+				flusher.execute(this::flushDirtyStreams);
+			} catch (RejectedExecutionException e) {
+				flushPending.set(false);
+			}
+		}
 	}
 
 	@Override
-	public VariantStream<Invariant> openInvariantVariantStream(String documentHash)
+	public InvariantStream openInvariantStream(String documentHash, Key key) throws IOException {
+		File file = new File(baseDir, documentHash + "-invariant.txt");
+		if (compressInvariantStreams && !file.exists()) {
+			return new CompressedInvariantStream(new File(baseDir, documentHash + "-invariant.blocks"), documentHash);
+		}
+		return new FileInvariantStream(file, new File(baseDir, documentHash + "-invariant-encrypted.txt"),
+				documentHash, key);
+	}
+
+	/**
+	 * Loads the invariant variant stream of the specified document from its
+	 * journal, or migrates it from JSON
+	 */
+	private WriteBehindVariantStream<?> loadInvariantVariantStream(String documentHash, File file)
 			throws IOException, MalformedSpanException {
-		VariantStream<Invariant> stream = spanCache.getIfPresent(documentHash);
-		if (stream != null) {
-			return stream;
+		VariantStream<Invariant> chunked = new ChunkedInvariantVariantStream(documentHash);
+		File journalFile = new File(baseDir, documentHash + "-invariants.journal");
+		boolean journaled = journalFile.exists() || file.exists();
+		VariantStreamJournal journal = VariantStreamJournal.open(journalFile, file,
+				VariantStreamJournal.DEFAULT_SNAPSHOT_BYTES, chunked);
+		File legacyFile = new File(baseDir, documentHash + "-invariants.json");
+		boolean migrate = !journaled && legacyFile.exists();
+		if (migrate) {
+			chunked.load(mapper.readValue(legacyFile, new TypeReference<List<Invariant>>() {
+			}));
+			journal.invalidate();
+		}
+		WriteBehindVariantStream<?> stream = new WriteBehindVariantStream<Invariant>(chunked, file, journal,
+				this::markDirty);
+		if (migrate) {
+			markDirty(stream);
 		}
+		return stream;
+	}
 
-		File file = new File(baseDir, documentHash + "-invariants.json");
-		stream = new RopeVariantStream<Invariant>(documentHash);
+	/**
+	 * Loads the overlay variant stream of the specified document from its
+	 * snapshot, or migrates it from JSON
+	 */
+	private WriteBehindVariantStream<?> loadOverlayVariantStream(String documentHash, File file)
+			throws IOException, MalformedSpanException {
+		VariantStream<OverlayStream> rope = new RopeVariantStream<OverlayStream>(documentHash);
+		File legacyFile = new File(baseDir, documentHash + "-overlays.json");
+		boolean migrate = !file.exists() && legacyFile.exists();
 		if (file.exists()) {
-			List<Invariant> elements = mapper.readValue(file, new TypeReference<List<Invariant>>() {
-			});
-			stream.load(elements);
+			rope.load(SnapshotCodec.readOverlays(file).elements);
+		} else if (migrate) {
+			rope.load(mapper.readValue(legacyFile, new TypeReference<List<OverlayStream>>() {
+			}));
+		}
+		WriteBehindVariantStream<?> stream = new WriteBehindVariantStream<OverlayStream>(rope, file, null,
+				this::markDirty);
+		if (migrate) {
+			markDirty(stream);
 		}
-		spanCache.put(documentHash, stream);
-
 		return stream;
 	}
 
-	@Override
-	public VariantStream<OverlayStream> openOverlayVariantStream(String documentHash)
-			throws IOException, MalformedSpanException {
-		VariantStream<OverlayStream> stream = overlayCache.getIfPresent(documentHash);
+	/**
+	 * Gets the stream of the specified file from the cache, or loads it. Only one
+	 * load of a file runs at a time: an open while the file is loading gets the
+	 * pending load. A stream that is dirty is taken from the dirty streams instead
+	 * of being loaded, since its file is not up to date.
+	 * 
+	 * @param file
+	 *            the file of the stream
+	 * @param load
+	 *            loads the stream from disk
+	 * @param executor
+	 *            runs the load, if one is needed
+	 * @return the stream, or the pending load of the stream
+	 */
+	private CompletableFuture<WriteBehindVariantStream<?>> open(File file, Load load, Executor executor) {
+		WriteBehindVariantStream<?> stream = streams.getIfPresent(file);
 		if (stream != null) {
-			return stream;
+			return CompletableFuture.completedFuture(stream);
 		}
 
-		File file = new File(baseDir, documentHash + "-overlays.json");
-		stream = new RopeVariantStream<OverlayStream>(documentHash);
-		if (file.exists()) {
-			List<OverlayStream> elements = mapper.readValue(file, new TypeReference<List<OverlayStream>>() {
-			});
-			stream.load(elements);
+		CompletableFuture<WriteBehindVariantStream<?>> future = new CompletableFuture<>();
+		CompletableFuture<WriteBehindVariantStream<?>> pending = loads.putIfAbsent(file, future);
+		if (pending != null) {
+			return pending;
 		}
-		overlayCache.put(documentHash, stream);
 
-		return stream;
+		Runnable task = () -> {
+			try {
+				// a load may have completed between the cache lookup and claiming the file
+				WriteBehindVariantStream<?> loaded = streams.getIfPresent(file);
+				if (loaded == null) {
+					loaded = dirty.get(file);
+				}
+				if (loaded == null) {
+					loaded = load.load();
+				}
+				weigh(loaded);
+				streams.put(file, loaded);
+				future.complete(loaded);
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				loads.remove(file, future);
+			}
+		};
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// closed, so there are no loader threads
+			task.run();
+		}
+		return future;
 	}
 
-	private void persistInvariantElements(String documentHash, VariantStream<Invariant> stream)
+	@SuppressWarnings("unchecked")
+	@Override
+	public VariantStream<Invariant> openInvariantVariantStream(String documentHash)
 			throws IOException, MalformedSpanException {
-		File file = new File(baseDir, documentHash + "-invariants.json");
-		mapper.writeValue(file, stream.getStreamElements());
+		File file = new File(baseDir, documentHash + "-invariants.snapshot");
+		return (VariantStream<Invariant>) await(
+				open(file, () -> loadInvariantVariantStream(documentHash, file), Runnable::run));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public CompletableFuture<VariantStream<Invariant>> openInvariantVariantStreamAsync(String documentHash) {
+		File file = new File(baseDir, documentHash + "-invariants.snapshot");
+		return open(file, () -> loadInvariantVariantStream(documentHash, file), loader)
+				.thenApply(stream -> (VariantStream<Invariant>) stream);
 	}
 
-	private void persistOverlayElements(String documentHash, VariantStream<OverlayStream> stream)
+	@SuppressWarnings("unchecked")
+	@Override
+	public VariantStream<OverlayStream> openOverlayVariantStream(String documentHash)
 			throws IOException, MalformedSpanException {
-		File file = new File(baseDir, documentHash + "-overlays.json");
-		mapper.writeValue(file, stream.getStreamElements());
+		File file = new File(baseDir, documentHash + "-overlays.snapshot");
+		return (VariantStream<OverlayStream>) await(
+				open(file, () -> loadOverlayVariantStream(documentHash, file), Runnable::run));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public CompletableFuture<VariantStream<OverlayStream>> openOverlayVariantStreamAsync(String documentHash) {
+		File file = new File(baseDir, documentHash + "-overlays.snapshot");
+		return open(file, () -> loadOverlayVariantStream(documentHash, file), loader)
+				.thenApply(stream -> (VariantStream<OverlayStream>) stream);
+	}
+
+	/**
+	 * Writes the specified stream. The journal records or elements are copied
+	 * while holding the lock of the stream and written without it. A stream
+	 * without a journal is written as a snapshot, which replaces the previous one
+	 * atomically. The stream stays dirty if it was modified during the write.
+	 * 
+	 * Once a snapshot has been written, the JSON file the stream was migrated
+	 * from, if any, is deleted.
+	 */
+	private void persist(WriteBehindVariantStream<?> stream) throws IOException, MalformedSpanException {
+		long version;
+		boolean snapshot;
+		if (stream.journal != null) {
+			VariantStreamJournal.Flush flush;
+			stream.lock.writeLock().lock();
+			try {
+				flush = stream.journal.drain(stream);
+				version = stream.version;
+			} finally {
+				stream.lock.writeLock().unlock();
+			}
+			stream.journal.write(flush);
+			snapshot = flush.elements != null;
+		} else {
+			List<? extends StreamElement> elements;
+			stream.lock.readLock().lock();
+			try {
+				elements = stream.getStreamElements();
+				version = stream.version;
+			} finally {
+				stream.lock.readLock().unlock();
+			}
+			SnapshotCodec.writeOverlays(stream.file, elements, 0);
+			snapshot = true;
+		}
+
+		if (snapshot) {
+			String kind = stream.journal != null ? "-invariants.json" : "-overlays.json";
+			Files.deleteIfExists(new File(baseDir, stream.getDocumentHash() + kind).toPath());
+		}
+		markClean(stream, version);
+
+		weigh(stream);
+		streams.asMap().replace(stream.file, stream, stream);
+	}
+
+	/**
+	 * Reads a checkpoint from its snapshots
+	 */
+	@Override
+	public Checkpoint readCheckpoint(String blockHash) throws IOException, MalformedSpanException {
+		File invariantsFile = checkpointFile(blockHash, "invariants");
+		if (!invariantsFile.exists()) {
+			return null;
+		}
+		SnapshotCodec.Snapshot<Invariant> invariants = SnapshotCodec.readInvariants(invariantsFile);
+		SnapshotCodec.Snapshot<OverlayStream> overlays = SnapshotCodec
+				.readOverlays(checkpointFile(blockHash, "overlays"));
+		return new Checkpoint(invariants.elements, overlays.elements);
 	}
 
 	@Override
 	public void setHash(String hash) {
 
 	}
+
+	/**
+	 * Estimates the bytes of heap the specified stream takes from its number of
+	 * elements, which the stream keeps count of. The cache reads the estimate when
+	 * the stream is put or replaced.
+	 */
+	private void weigh(WriteBehindVariantStream<?> stream) throws MalformedSpanException {
+		long elementBytes = stream.journal != null ? INVARIANT_ELEMENT_BYTES : OVERLAY_ELEMENT_BYTES;
+		stream.estimatedBytes = STREAM_BYTES + stream.size() * elementBytes;
+	}
+
+	/**
+	 * Writes a checkpoint as a snapshot of each variant stream. The invariants
+	 * snapshot is written last, so a checkpoint exists only once both snapshots
+	 * are complete.
+	 */
+	@Override
+	public void writeCheckpoint(String blockHash, Checkpoint checkpoint) throws IOException {
+		SnapshotCodec.writeOverlays(checkpointFile(blockHash, "overlays"), checkpoint.getOverlays(), 0);
+		SnapshotCodec.writeInvariants(checkpointFile(blockHash, "invariants"), checkpoint.getInvariants(), 0);
+	}
 }
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.SignatureException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+import org.oulipo.streams.RemoteFileManager;
+import org.oulipo.streams.document.DocumentFile;
+import org.oulipo.streams.document.DocumentFileDecompiler;
+
+import com.google.common.base.Strings;
+
+/**
+ * Resolves the chain of document files that ends with a block, by following
+ * the hash of the previous block of each file back to the first block of the
+ * document.
+ * 
+ * The chain is walked in a loop, not by recursion, so chains of any length can
+ * be resolved. Blocks are fetched by a thread of their own, which reads the
+ * hash of the previous block from the header of each block it gets and fetches
+ * that block next. The fetcher runs up to <code>prefetch</code> blocks ahead of
+ * the resolving thread, so the next blocks are on their way while the current
+ * one is verified and decompiled.
+ * 
+ * The walk stops early at a block that has a checkpoint of the document state,
+ * so only the blocks after the newest checkpoint are fetched.
+ */
+final class DocumentChainResolver {
+
+	/**
+	 * A fetched block, or the failure to fetch it
+	 */
+	private static final class Block {
+
+		final byte[] bytes;
+
+		final Exception error;
+
+		final String hash;
+
+		Block(String hash, byte[] bytes, Exception error) {
+			this.hash = hash;
+			this.bytes = bytes;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Default number of blocks to fetch ahead of the block being decompiled
+	 */
+	static final int DEFAULT_PREFETCH = 4;
+
+	/**
+	 * Marks the end of the chain
+	 */
+	private static final Block END = new Block(null, null, null);
+
+	/**
+	 * Threads that fetch the blocks of all chains
+	 */
+	private static final ExecutorService FETCHERS = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "block-fetcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static DocumentFile decompile(Block block) throws IOException, SignatureException {
+		try {
+			return DocumentFile.decompiler().decompile(block.hash, block.bytes);
+		} catch (IOException | SignatureException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Can't decompile block " + block.hash, e);
+		}
+	}
+
+	/**
+	 * Fetches the blocks of the chain, newest first, onto the specified queue,
+	 * followed by <code>END</code> or by the failure to fetch a block
+	 */
+	private static void fetch(String hash, RemoteFileManager remoteFileManager, Predicate<String> checkpointed,
+			BlockingQueue<Block> blocks) {
+		Set<String> seen = new HashSet<>();
+		String next = hash;
+		try {
+			try {
+				while (!Strings.isNullOrEmpty(next) && !checkpointed.test(next)) {
+					if (!seen.add(next)) {
+						throw new IOException("Document chain has a cycle at block " + next);
+					}
+					byte[] bytes = remoteFileManager.get(next);
+					if (bytes == null) {
+						throw new IOException("Block not found: " + next);
+					}
+					blocks.put(new Block(next, bytes, null));
+					next = DocumentFileDecompiler.readPreviousHash(bytes);
+				}
+				blocks.put(END);
+			} catch (IOException | RuntimeException e) {
+				blocks.put(new Block(next, null, e));
+			}
+		} catch (InterruptedException e) {
+			// resolver is done with the chain
+		}
+	}
+
+	/**
+	 * Fetches and decompiles every block of the chain that ends with the specified
+	 * block
+	 * 
+	 * @param hash
+	 *            the hash of the last block of the chain
+	 * @param remoteFileManager
+	 *            the source of the blocks
+	 * @param prefetch
+	 *            the number of blocks to fetch ahead of the block being
+	 *            decompiled. Must be greater than 0.
+	 * @return the document files of the chain, first block first
+	 * @throws IOException
+	 *             if a block can't be fetched or decompiled, or the chain has a
+	 *             cycle
+	 * @throws SignatureException
+	 *             if the signature of a block is not valid
+	 */
+	static List<DocumentFile> resolve(String hash, RemoteFileManager remoteFileManager, int prefetch)
+			throws IOException, SignatureException {
+		return resolve(hash, remoteFileManager, prefetch, blockHash -> false);
+	}
+
+	/**
+	 * Fetches and decompiles the blocks of the chain that ends with the specified
+	 * block, back to the newest block that has a checkpoint. The block with the
+	 * checkpoint is not fetched. If the last block has a checkpoint, the chain is
+	 * empty; otherwise the checkpointed block is the previous block of the first
+	 * document file, if it has one.
+	 * 
+	 * @param hash
+	 *            the hash of the last block of the chain
+	 * @param remoteFileManager
+	 *            the source of the blocks
+	 * @param prefetch
+	 *            the number of blocks to fetch ahead of the block being
+	 *            decompiled. Must be greater than 0.
+	 * @param checkpointed
+	 *            tests whether the block with the specified hash has a checkpoint
+	 * @return the document files after the checkpoint, first block first
+	 * @throws IOException
+	 *             if a block can't be fetched or decompiled, or the chain has a
+	 *             cycle
+	 * @throws SignatureException
+	 *             if the signature of a block is not valid
+	 */
+	static List<DocumentFile> resolve(String hash, RemoteFileManager remoteFileManager, int prefetch,
+			Predicate<String> checkpointed) throws IOException, SignatureException {
+		if (prefetch < 1) {
+			throw new IllegalArgumentException("prefetch must be greater than 0");
+		}
+		BlockingQueue<Block> blocks = new ArrayBlockingQueue<>(prefetch);
+		Future<?> fetcher = FETCHERS.submit(() -> fetch(hash, remoteFileManager, checkpointed, blocks));
+
+		Deque<DocumentFile> chain = new ArrayDeque<>();
+		try {
+			Block block;
+			while ((block = blocks.take()) != END) {
+				if (block.error instanceof IOException) {
+					throw new IOException(block.error.getMessage(), block.error);
+				} else if (block.error != null) {
+					throw (RuntimeException) block.error;
+				}
+				chain.addFirst(decompile(block));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while resolving document chain of " + hash);
+		} finally {
+			fetcher.cancel(true);
+		}
+		return new ArrayList<>(chain);
+	}
+
+	private DocumentChainResolver() {
+	}
+}
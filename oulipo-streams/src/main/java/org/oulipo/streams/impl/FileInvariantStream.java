@@ -19,9 +19,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.security.Key;
 
 import org.oulipo.streams.InvariantStream;
@@ -32,15 +37,102 @@ import com.google.common.base.Strings;
 
 /**
  * An <code>InvariantStream</code> that uses the file system for accessing text.
+ * 
+ * Text is stored as UTF-8. Invariant spans are in characters (UTF-16 units, as
+ * counted by <code>String.length</code>), not bytes. A sparse index of byte
+ * offsets, kept in a file next to the stream file, maps a character position
+ * to a nearby byte offset, from which a read decodes at most a few hundred
+ * characters before reaching the requested text.
+ * 
+ * Text is read through a read-only memory mapping of the file, so reads don't
+ * make system calls, copy the file into the heap or take locks. The file is
+ * remapped only once it has grown to twice the size of the current mapping, so
+ * a stream that is appended to and read in turn creates a number of mappings
+ * logarithmic in its size rather than one for each append. Text past the end of
+ * the mapping until then is read through the file channel. Appends are encoded
+ * in chunks into a direct buffer of the appending thread and written through
+ * the file channel, so text of any length can be appended and streams share no
+ * buffers.
+ * 
+ * Appends are group committed: an append returns only after its text has been
+ * forced to disk, but appends from concurrent threads share a single
+ * <code>force</code>. The first appender to need a force waits up to
+ * <code>maxLatencyMillis</code> for up to <code>maxBatchSize</code> appends to
+ * join it, then forces the file for all of them. Offsets are assigned in the
+ * order the texts are written, so the returned spans are the same as for
+ * appends made one at a time.
  */
 public class FileInvariantStream implements InvariantStream {
 
-	private static ByteBuffer buffer = ByteBuffer.allocate(1024);
+	/**
+	 * Direct buffer of each appending thread. Text of any length is encoded and
+	 * written through it in chunks.
+	 */
+	private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(8192));
+
+	/**
+	 * UTF-8 encoder of each appending thread. Unpaired surrogates are replaced with
+	 * '?', as <code>String.getBytes</code> does, which the character offset index
+	 * relies on.
+	 */
+	private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal
+			.withInitial(() -> Charset.forName("UTF-8").newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+	/**
+	 * Number of characters between checkpoints of the character offset index
+	 */
+	private static final int CHECKPOINT_INTERVAL = 256;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 
 	private FileChannel channel;
 
 	private final String documentHash;
 
+	/**
+	 * Read-only mapping of the file. Readers never modify the mapping itself, only
+	 * duplicates of it, so it can be shared across threads.
+	 */
+	private volatile MappedByteBuffer mapped;
+
+	private final Object mapLock = new Object();
+
+	/**
+	 * Maximum number of appends to wait for before forcing the file
+	 */
+	private final int maxBatchSize;
+
+	/**
+	 * Maximum time to wait for other appends before forcing the file
+	 */
+	private final long maxLatencyMillis;
+
+	/**
+	 * Number of appends that have been forced to disk
+	 */
+	private long synced;
+
+	/**
+	 * Is a thread currently forcing the file
+	 */
+	private boolean syncing;
+
+	private final Object syncLock = new Object();
+
+	/**
+	 * Number of appends that have been written to the channel
+	 */
+	private volatile long written;
+
+	private final Object writeLock = new Object();
+
+	/**
+	 * Index from character positions to byte offsets in the file
+	 */
+	private final CharacterOffsetIndex index;
+
 	/**
 	 * Constructs an InvariantStream backed by the specified file. Creates a new
 	 * file if it does not exist
@@ -51,12 +143,41 @@ public class FileInvariantStream implements InvariantStream {
 	 *             if there is an I/O exception with the specified file
 	 */
 	public FileInvariantStream(File file, File encryptedFile, String documentHash, Key key) throws IOException {
+		this(file, encryptedFile, documentHash, key, 1, 0);
+	}
+
+	/**
+	 * Constructs an InvariantStream backed by the specified file, with group
+	 * commit of appends. Creates a new file if it does not exist
+	 * 
+	 * @param file
+	 *            backing file
+	 * @param maxBatchSize
+	 *            the number of appends to wait for before forcing the file. Must be
+	 *            greater than 0.
+	 * @param maxLatencyMillis
+	 *            the longest time an append waits for others before forcing the
+	 *            file. A value of 0 forces immediately.
+	 * @throws IOException
+	 *             if there is an I/O exception with the specified file
+	 */
+	public FileInvariantStream(File file, File encryptedFile, String documentHash, Key key, int maxBatchSize,
+			long maxLatencyMillis) throws IOException {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be greater than 0");
+		}
+		if (maxLatencyMillis < 0) {
+			throw new IllegalArgumentException("maxLatencyMillis must be non-negative");
+		}
+		this.maxBatchSize = maxBatchSize;
+		this.maxLatencyMillis = maxLatencyMillis;
 		file.getParentFile().mkdirs();
 		file.createNewFile();
 		RandomAccessFile f = new RandomAccessFile(file, "rw");
 
 		channel = f.getChannel();
 		channel.position(channel.size());
+		index = new CharacterOffsetIndex(new File(file.getPath() + ".index"), channel, CHECKPOINT_INTERVAL);
 		this.documentHash = documentHash;
 	}
 
@@ -66,22 +187,25 @@ public class FileInvariantStream implements InvariantStream {
 			throw new MalformedSpanException("No text - span length is 0");
 		}
 
-		FileLock lock = channel.lock();
-		try {
-			InvariantSpan span = new InvariantSpan(channel.position() + 1, text.length(), documentHash);
+		InvariantSpan span;
+		long ticket;
+		synchronized (writeLock) {
+			span = new InvariantSpan(index.characterCount() + 1, text.length(), documentHash);
 
-			buffer.clear();
-			buffer.put(text.getBytes());
-			buffer.flip();
+			write(text);
+			index.append(text);
+			ticket = ++written;
+		}
 
-			while (buffer.hasRemaining()) {
-				channel.write(buffer);
-			}
+		sync(ticket);
+		return span;
+	}
 
-			channel.force(true);
-			return span;
-		} finally {
-			lock.release();
+	@Override
+	public void close() throws IOException {
+		synchronized (writeLock) {
+			index.close();
+			channel.close();
 		}
 	}
 
@@ -92,9 +216,173 @@ public class FileInvariantStream implements InvariantStream {
 	}
 
 	private String getText(long position, long width) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate((int) width);
-		channel.read(buf, position - 1);
-		buf.rewind();
-		return Charset.forName("UTF-8").decode(buf).toString();
+		long from = position - 1;
+		long to = from + width;
+		if (to > index.characterCount()) {
+			throw new IOException("Invariant span is past the end of the stream: end = " + to + ", size = "
+					+ index.characterCount());
+		}
+
+		// a character takes at most 3 bytes. A surrogate pair takes 4 bytes and
+		// may straddle the end of the span.
+		long checkpoint = index.byteOffset(from);
+		long character = index.characterOffset(from);
+		ByteBuffer bytes = region(checkpoint, Math.min(index.byteCount(), checkpoint + 3 * (to - character) + 1));
+
+		int i = 0;
+		int length = CharacterOffsetIndex.sequenceLength(bytes.get(i));
+		while (character + CharacterOffsetIndex.sequenceCharacters(length) <= from) {
+			character += CharacterOffsetIndex.sequenceCharacters(length);
+			i += length;
+			length = CharacterOffsetIndex.sequenceLength(bytes.get(i));
+		}
+		int start = i;
+		long skip = from - character;
+		while (character < to) {
+			length = CharacterOffsetIndex.sequenceLength(bytes.get(i));
+			character += CharacterOffsetIndex.sequenceCharacters(length);
+			i += length;
+		}
+		bytes.limit(Math.min(i, bytes.limit())).position(start);
+
+		String text = UTF_8.decode(bytes).toString();
+		return skip == 0 && text.length() == width ? text : text.substring((int) skip, (int) (skip + width));
+	}
+
+	/**
+	 * Gets the bytes of the file between the specified offsets. The returned
+	 * buffer is a view of the memory mapping of the file, unless the region is
+	 * past the largest offset a mapping can address.
+	 */
+	private ByteBuffer region(long from, long to) throws IOException {
+		if (to > Integer.MAX_VALUE) {
+			return read(from, to);
+		}
+
+		MappedByteBuffer map = mapped;
+		if (map == null || to > map.capacity()) {
+			map = remap(to);
+			if (map == null || to > map.capacity()) {
+				return read(from, to);
+			}
+		}
+		ByteBuffer view = map.duplicate();
+		view.limit((int) to).position((int) from);
+		return view.slice();
+	}
+
+	/**
+	 * Encodes the text as UTF-8 and writes it at the end of the file, one buffer
+	 * at a time
+	 */
+	private void write(String text) throws IOException {
+		ByteBuffer buffer = BUFFER.get();
+		CharsetEncoder encoder = ENCODER.get().reset();
+		CharBuffer chars = CharBuffer.wrap(text);
+		boolean flushed = false;
+		while (!flushed) {
+			buffer.clear();
+			CoderResult result = encoder.encode(chars, buffer, true);
+			if (result.isUnderflow()) {
+				result = encoder.flush(buffer);
+				flushed = result.isUnderflow();
+			}
+			if (result.isError()) {
+				result.throwException();
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the append with the specified ticket has been forced to disk. If
+	 * no other thread is forcing the file, this thread forces it for every append
+	 * written so far, after waiting for the batch to fill.
+	 * 
+	 * @param ticket
+	 *            the number of the append, counting from 1
+	 * @throws IOException
+	 *             if the file can't be forced
+	 */
+	private void sync(long ticket) throws IOException {
+		synchronized (syncLock) {
+			// wake a thread that is waiting for the batch to fill
+			syncLock.notifyAll();
+			try {
+				while (synced < ticket) {
+					if (syncing) {
+						syncLock.wait();
+						continue;
+					}
+
+					syncing = true;
+					long deadline = System.currentTimeMillis() + maxLatencyMillis;
+					long remaining = maxLatencyMillis;
+					while (written - synced < maxBatchSize && remaining > 0) {
+						syncLock.wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+
+					long batch = written;
+					try {
+						channel.force(true);
+						synced = batch;
+					} finally {
+						syncing = false;
+						syncLock.notifyAll();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for append to be forced", e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the bytes of the file between the specified offsets through the file
+	 * channel
+	 */
+	private ByteBuffer read(long from, long to) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) (to - from));
+		while (buf.hasRemaining() && channel.read(buf, from + buf.position()) > 0) {
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Maps the whole file, if the current mapping doesn't reach the specified end
+	 * position and the file has grown to at least twice the size of the current
+	 * mapping. Concurrent readers that need a larger mapping wait for a single
+	 * remap.
+	 * 
+	 * @param end
+	 *            the end position (exclusive) that must be mapped
+	 * @return the current mapping, which doesn't include the end position if the
+	 *         file hasn't grown enough to be remapped. May be null.
+	 * @throws IOException
+	 *             if the end position is past the end of the file
+	 */
+	private MappedByteBuffer remap(long end) throws IOException {
+		synchronized (mapLock) {
+			MappedByteBuffer map = mapped;
+			if (map != null && end <= map.capacity()) {
+				return map;
+			}
+			long size = Math.min(channel.size(), Integer.MAX_VALUE);
+			if (end > size) {
+				throw new IOException("Invariant span is past the end of the stream: end = " + end + ", size = " + size);
+			}
+			if (map != null && size < 2L * map.capacity()) {
+				return map;
+			}
+			map = channel.map(MapMode.READ_ONLY, 0, size);
+			mapped = map;
+			return map;
+		}
 	}
 }
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.StreamElement;
+
+/**
+ * The ranges of invariant positions of the invariant spans under a node of a
+ * rope, one range for each document the spans are from. Searches by invariant
+ * position skip subtrees whose range for the target document doesn't intersect
+ * the target span, so a document that transcludes from other documents can
+ * still be searched without visiting every node.
+ * 
+ * A document is identified by any key the rope chooses, such as the document
+ * hash of its spans or an id of the hash. Bounds are immutable, and the union of
+ * bounds that already covers another is reused, so most edits don't allocate.
+ * Bounds are kept in small arrays that are searched linearly, which suits the
+ * few documents a rope usually transcludes from.
+ */
+final class InvariantBounds {
+
+	/**
+	 * Bounds of a node without invariant spans
+	 */
+	static final InvariantBounds EMPTY = new InvariantBounds(new Object[0], new long[0], new long[0]);
+
+	/**
+	 * Gets the bounds of the invariant range of a document
+	 * 
+	 * @param document
+	 *            the key of the document. May be null.
+	 * @param start
+	 *            the lowest invariant start position
+	 * @param end
+	 *            the highest invariant end position (exclusive)
+	 * @return the bounds
+	 */
+	static InvariantBounds of(Object document, long start, long end) {
+		return new InvariantBounds(new Object[] { document }, new long[] { start }, new long[] { end });
+	}
+
+	/**
+	 * Gets the bounds of a stream element, keyed by the document hash of the
+	 * element
+	 * 
+	 * @param value
+	 *            the stream element
+	 * @return the bounds of the element if it is an invariant span, otherwise
+	 *         <code>EMPTY</code>
+	 */
+	static InvariantBounds of(StreamElement value) {
+		if (!(value instanceof InvariantSpan)) {
+			return EMPTY;
+		}
+		InvariantSpan span = (InvariantSpan) value;
+		return of(span.getDocumentHash(), span.getStart(), span.getStart() + span.getWidth());
+	}
+
+	/**
+	 * Gets bounds that cover the ranges of both of the specified bounds
+	 * 
+	 * @return the union of the bounds, which is one of the specified bounds if
+	 *         it already covers the other
+	 */
+	static InvariantBounds union(InvariantBounds a, InvariantBounds b) {
+		if (a.covers(b)) {
+			return a;
+		}
+		if (b.covers(a)) {
+			return b;
+		}
+		int length = a.documents.length + b.documents.length;
+		Object[] documents = Arrays.copyOf(a.documents, length);
+		long[] starts = Arrays.copyOf(a.starts, length);
+		long[] ends = Arrays.copyOf(a.ends, length);
+		int size = a.documents.length;
+		for (int j = 0; j < b.documents.length; j++) {
+			int i = a.indexOf(b.documents[j]);
+			if (i < 0) {
+				documents[size] = b.documents[j];
+				starts[size] = b.starts[j];
+				ends[size] = b.ends[j];
+				size++;
+			} else {
+				starts[i] = Math.min(starts[i], b.starts[j]);
+				ends[i] = Math.max(ends[i], b.ends[j]);
+			}
+		}
+		return new InvariantBounds(Arrays.copyOf(documents, size), Arrays.copyOf(starts, size),
+				Arrays.copyOf(ends, size));
+	}
+
+	private final Object[] documents;
+
+	private final long[] ends;
+
+	private final long[] starts;
+
+	private InvariantBounds(Object[] documents, long[] starts, long[] ends) {
+		this.documents = documents;
+		this.starts = starts;
+		this.ends = ends;
+	}
+
+	/**
+	 * Does every range of the other bounds lie within the range of the same
+	 * document in these bounds
+	 */
+	private boolean covers(InvariantBounds other) {
+		for (int j = 0; j < other.documents.length; j++) {
+			int i = indexOf(other.documents[j]);
+			if (i < 0 || starts[i] > other.starts[j] || ends[i] < other.ends[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets bounds that also cover the specified range of a document
+	 * 
+	 * @param document
+	 *            the key of the document. May be null.
+	 * @param start
+	 *            the invariant start position
+	 * @param end
+	 *            the invariant end position (exclusive)
+	 * @return these bounds if they already cover the range, otherwise the
+	 *         extended bounds
+	 */
+	InvariantBounds include(Object document, long start, long end) {
+		int i = indexOf(document);
+		if (i >= 0) {
+			if (starts[i] <= start && ends[i] >= end) {
+				return this;
+			}
+			long[] newStarts = starts.clone();
+			long[] newEnds = ends.clone();
+			newStarts[i] = Math.min(starts[i], start);
+			newEnds[i] = Math.max(ends[i], end);
+			return new InvariantBounds(documents, newStarts, newEnds);
+		}
+		int length = documents.length + 1;
+		Object[] newDocuments = Arrays.copyOf(documents, length);
+		long[] newStarts = Arrays.copyOf(starts, length);
+		long[] newEnds = Arrays.copyOf(ends, length);
+		newDocuments[length - 1] = document;
+		newStarts[length - 1] = start;
+		newEnds[length - 1] = end;
+		return new InvariantBounds(newDocuments, newStarts, newEnds);
+	}
+
+	private int indexOf(Object document) {
+		for (int i = 0; i < documents.length; i++) {
+			if (Objects.equals(documents[i], document)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Does the range of the specified document intersect the specified range
+	 * 
+	 * @param document
+	 *            the key of the document
+	 * @param start
+	 *            the start of the range
+	 * @param end
+	 *            the end of the range (exclusive)
+	 * @return true if there are spans of the document that may intersect the
+	 *         range
+	 */
+	boolean intersects(Object document, long start, long end) {
+		int i = indexOf(document);
+		return i >= 0 && RopeUtils.intersects(starts[i], ends[i], start, end);
+	}
+}
@@ -15,6 +15,8 @@
  *******************************************************************************/
 package org.oulipo.streams.impl;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -60,37 +62,44 @@ public final class InvariantSpanCollector<S extends StreamElement> {
 	 * @throws MalformedSpanException
 	 */
 	public void collect(Node<S> x, long lo, long hi) throws MalformedSpanException {
-		if (x == null || position > hi) {
-			return;
+		Deque<Node<S>> stack = new ArrayDeque<>();
+		while ((x != null || !stack.isEmpty()) && position <= hi) {
+			if (x == null) {
+				x = stack.pop();
+			}
+			if (x.value != null) {
+				collectValue(x, lo, hi);
+			}
+			if (x.right != null) {
+				stack.push(x.right);
+			}
+			x = x.left;
 		}
+	}
 
-		if (x.value != null) {
-			long start = position;
-			long end = position + x.weight;
-			if (intersects(start, end, lo, hi)) {
-				long a = start <= lo ? lo : start;
-				long b = end <= hi ? end : hi;
+	private void collectValue(Node<S> x, long lo, long hi) throws MalformedSpanException {
+		long start = position;
+		long end = position + x.weight;
+		if (intersects(start, end, lo, hi)) {
+			long a = start <= lo ? lo : start;
+			long b = end <= hi ? end : hi;
 
-				if (a != b) {
-					S copy = (S) x.value.copy();
-					copy.setWidth(b - a);
+			if (a != b) {
+				S copy = (S) x.value.copy();
+				copy.setWidth(b - a);
 
-					if (x.value instanceof InvariantSpan) {
-						InvariantSpan span = (InvariantSpan) copy;
-						InvariantSpan value = (InvariantSpan) x.value;
-						long invariantStart = queue.isEmpty() && position + x.weight - 1 <= hi
-								? value.getStart() + value.getWidth() - (b - a)
-								: value.getStart();
-						span.setStart(invariantStart);
-					}
-					queue.add(copy);
+				if (x.value instanceof InvariantSpan) {
+					InvariantSpan span = (InvariantSpan) copy;
+					InvariantSpan value = (InvariantSpan) x.value;
+					long invariantStart = queue.isEmpty() && position + x.weight - 1 <= hi
+							? value.getStart() + value.getWidth() - (b - a)
+							: value.getStart();
+					span.setStart(invariantStart);
 				}
+				queue.add(copy);
 			}
-			position += x.weight;
 		}
-
-		collect(x.left, lo, hi);
-		collect(x.right, lo, hi);
+		position += x.weight;
 	}
 
 	private boolean intersects(long start, long end, long lo, long hi) {
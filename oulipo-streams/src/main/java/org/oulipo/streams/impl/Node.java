@@ -15,6 +15,9 @@
  *******************************************************************************/
 package org.oulipo.streams.impl;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+
 import org.oulipo.streams.MalformedSpanException;
 import org.oulipo.streams.StreamElementPartition;
 import org.oulipo.streams.types.StreamElement;
@@ -89,6 +92,7 @@ public class Node<T extends StreamElement> {
 			if (right != null) {
 				right.parent = node;
 			}
+			node.update();
 			return node;
 		}
 
@@ -113,8 +117,33 @@ public class Node<T extends StreamElement> {
 		}
 	}
 
+	/**
+	 * Cached number of characters under this node. A value of -1 means the count
+	 * needs to be recalculated.
+	 */
+	private long characterCount = -1;
+
+	/**
+	 * Height of the subtree rooted at this node. A leaf node has a height of 1.
+	 * The rope keeps the heights of sibling subtrees within one of each other
+	 * (AVL balance) so that lookups and edits stay logarithmic.
+	 */
+	public int height = 1;
+
+	/**
+	 * Cached invariant ranges of the spans under this node, by document. Valid
+	 * when the cached character count is valid.
+	 */
+	private InvariantBounds invariantBounds = InvariantBounds.EMPTY;
+
 	public boolean isRed;
 
+	/**
+	 * Cached number of leaf nodes under this node. Valid when the cached character
+	 * count is valid.
+	 */
+	private int leafCount;
+
 	/**
 	 * Left child node
 	 */
@@ -176,12 +205,56 @@ public class Node<T extends StreamElement> {
 	}
 
 	/**
-	 * Gives number of characters under this node
+	 * Gives number of characters under this node. The count is cached on the node,
+	 * so after the first call this is a constant time operation until the subtree
+	 * is modified.
 	 * 
 	 * @return
 	 */
 	public long characterCount() {
-		return RopeUtils.characterCount(this);
+		if (characterCount < 0) {
+			summarizeSubtree();
+		}
+		return characterCount;
+	}
+
+	/**
+	 * Clears the cached character count and invariant range of this node and of
+	 * all of its parents. This must be called after a child node is cut from, or
+	 * attached to, this node by something other than the <code>RopeUtils</code>
+	 * join operations.
+	 */
+	public void invalidateCharacterCount() {
+		for (Node<T> x = this; x != null; x = x.parent) {
+			x.characterCount = -1;
+		}
+	}
+
+	/**
+	 * Gets the invariant ranges of the spans under this node, keyed by the document
+	 * hash of the spans, so searches by invariant position can skip subtrees that
+	 * don't intersect.
+	 * 
+	 * @return the invariant ranges
+	 */
+	InvariantBounds invariantBounds() {
+		if (characterCount < 0) {
+			summarizeSubtree();
+		}
+		return invariantBounds;
+	}
+
+	/**
+	 * Gets the number of leaf nodes under this node, which is cached like the
+	 * character count
+	 * 
+	 * @return the number of leaf nodes
+	 */
+	int leafCount() {
+		if (characterCount < 0) {
+			summarizeSubtree();
+		}
+		return leafCount;
 	}
 
 	/**
@@ -246,12 +319,68 @@ public class Node<T extends StreamElement> {
 
 		parent.left.parent = parent;
 		parent.right.parent = parent;
+		parent.height = 2;
 		if (parent.weight != leftPartitionWidth) {
 			throw new IllegalStateException("node weight must equal variant position cutpoint");
 		}
 		return parent;
 	}
 
+	/**
+	 * Calculates the cached character count, invariant range and leaf count of this
+	 * node from its value or children
+	 */
+	private void summarize() {
+		if (isLeaf()) {
+			characterCount = value.getWidth();
+			invariantBounds = InvariantBounds.of(value);
+			leafCount = 1;
+			return;
+		}
+		characterCount = 0;
+		invariantBounds = InvariantBounds.EMPTY;
+		leafCount = 0;
+		if (left != null) {
+			characterCount += left.characterCount();
+			invariantBounds = left.invariantBounds();
+			leafCount += left.leafCount();
+		}
+		if (right != null) {
+			characterCount += right.characterCount();
+			invariantBounds = InvariantBounds.union(invariantBounds, right.invariantBounds());
+			leafCount += right.leafCount();
+		}
+	}
+
+	/**
+	 * Calculates the cached values of this node and of every node under it whose
+	 * cache has been cleared. Children are summarized before their parents, using
+	 * an explicit stack so a deep subtree can't overflow the call stack.
+	 */
+	private void summarizeSubtree() {
+		Deque<Node<T>> stack = new ArrayDeque<>();
+		stack.push(this);
+		while (!stack.isEmpty()) {
+			Node<T> x = stack.peek();
+			if (x.left != null && x.left.characterCount < 0) {
+				stack.push(x.left);
+			} else if (x.right != null && x.right.characterCount < 0) {
+				stack.push(x.right);
+			} else {
+				stack.pop().summarize();
+			}
+		}
+	}
+
+	/**
+	 * Recalculates the height, character count and invariant range of this node
+	 * from its children
+	 */
+	void update() {
+		height = 1 + Math.max(RopeUtils.height(left), RopeUtils.height(right));
+		summarize();
+	}
+
 	@Override
 	public String toString() {
 		return "Node [tag=" + tag + ", value=" + value + ", weight=" + weight + "]";
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.OulipoMachine;
+import org.oulipo.streams.RemoteFileManager;
+import org.oulipo.streams.StreamLoader;
+
+/**
+ * Keeps one <code>OulipoMachine</code> open per document, so that requests for
+ * the same document share its open invariant stream instead of each opening
+ * the files again.
+ * 
+ * A machine is acquired as a <code>Lease</code>, which is closed when the
+ * request is done with the machine. The registry counts the open leases of
+ * each machine. A machine without open leases is closed, along with the files
+ * of its invariant stream, once it has been idle for <code>idleMillis</code>.
+ * 
+ * A machine is created by the first request for its document. Concurrent
+ * requests for the same document wait for that machine rather than creating
+ * their own. A machine is shared by all the requests of its document, so
+ * concurrent requests may use it at the same time.
+ */
+public final class OulipoMachineRegistry implements Closeable {
+
+	/**
+	 * A machine of the registry and its number of open leases
+	 */
+	private static final class Entry {
+
+		/**
+		 * Time the last lease was closed
+		 */
+		long idleSince;
+
+		final CompletableFuture<DefaultOulipoMachine> machine = new CompletableFuture<>();
+
+		int references;
+	}
+
+	/**
+	 * A reference to a machine of the registry. Closing the lease releases the
+	 * reference; it does not close the machine.
+	 */
+	public final class Lease implements Closeable {
+
+		private boolean closed;
+
+		private final String documentHash;
+
+		private final Entry entry;
+
+		private Lease(String documentHash, Entry entry) {
+			this.documentHash = documentHash;
+			this.entry = entry;
+		}
+
+		@Override
+		public void close() {
+			synchronized (entries) {
+				if (!closed) {
+					closed = true;
+					release(entry);
+				}
+			}
+		}
+
+		public String getDocumentHash() {
+			return documentHash;
+		}
+
+		public OulipoMachine getMachine() {
+			return entry.machine.join();
+		}
+	}
+
+	/**
+	 * Default time a machine without leases is kept open
+	 */
+	public static final long DEFAULT_IDLE_MILLIS = 60000;
+
+	private static final Logger LOG = Logger.getLogger(OulipoMachineRegistry.class.getName());
+
+	private boolean closed;
+
+	/**
+	 * Machines by document hash. Guards the reference counts of the entries.
+	 */
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	private final long idleMillis;
+
+	private final StreamLoader loader;
+
+	private final RemoteFileManager remoteFileManager;
+
+	/**
+	 * Single thread that closes idle machines
+	 */
+	private final ScheduledExecutorService reaper;
+
+	/**
+	 * Constructs a registry that creates machines from the specified stream loader
+	 * 
+	 * @param loader
+	 *            the loader of the streams of the machines
+	 * @param remoteFileManager
+	 *            the remote file manager of the machines
+	 * @param idleMillis
+	 *            the time a machine without leases is kept open. Must be greater
+	 *            than 0.
+	 */
+	public OulipoMachineRegistry(StreamLoader loader, RemoteFileManager remoteFileManager, long idleMillis) {
+		if (loader == null) {
+			throw new IllegalArgumentException("streamLoader is null");
+		}
+		if (idleMillis < 1) {
+			throw new IllegalArgumentException("idleMillis must be greater than 0");
+		}
+		this.loader = loader;
+		this.remoteFileManager = remoteFileManager;
+		this.idleMillis = idleMillis;
+
+		reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "machine-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, idleMillis / 2);
+		reaper.scheduleWithFixedDelay(this::closeIdleMachines, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Acquires the machine of the specified document, creating it if there is none
+	 * 
+	 * @param documentHash
+	 *            the hash of the document
+	 * @return a lease of the machine, which must be closed when the caller is done
+	 *         with the machine
+	 * @throws IOException
+	 *             if the streams of the machine can't be opened
+	 * @throws MalformedSpanException
+	 */
+	public Lease acquire(String documentHash) throws IOException, MalformedSpanException {
+		Entry entry;
+		boolean create = false;
+		synchronized (entries) {
+			if (closed) {
+				throw new IllegalStateException("Registry is closed");
+			}
+			entry = entries.get(documentHash);
+			if (entry == null) {
+				entry = new Entry();
+				entries.put(documentHash, entry);
+				create = true;
+			}
+			entry.references++;
+		}
+		Lease lease = new Lease(documentHash, entry);
+
+		if (create) {
+			try {
+				entry.machine
+						.complete(DefaultOulipoMachine.createWritableMachine(loader, remoteFileManager, documentHash));
+			} catch (IOException | MalformedSpanException | RuntimeException e) {
+				synchronized (entries) {
+					entries.remove(documentHash, entry);
+				}
+				entry.machine.completeExceptionally(e);
+			}
+		}
+
+		try {
+			entry.machine.get();
+		} catch (InterruptedException e) {
+			lease.close();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while opening machine", e);
+		} catch (ExecutionException e) {
+			lease.close();
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof MalformedSpanException) {
+				throw (MalformedSpanException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+		return lease;
+	}
+
+	/**
+	 * Closes all machines and stops closing idle ones. Open leases can still use
+	 * their machines until the files are closed, so close the registry only after
+	 * requests have finished.
+	 */
+	@Override
+	public void close() throws IOException {
+		List<Entry> open;
+		synchronized (entries) {
+			closed = true;
+			open = new ArrayList<>(entries.values());
+			entries.clear();
+		}
+		reaper.shutdown();
+		closeMachines(open);
+	}
+
+	/**
+	 * Closes the machines that have been idle for <code>idleMillis</code>
+	 */
+	private void closeIdleMachines() {
+		long now = System.currentTimeMillis();
+		List<Entry> idle = new ArrayList<>();
+		synchronized (entries) {
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+				Entry entry = it.next();
+				if (entry.references == 0 && now - entry.idleSince >= idleMillis) {
+					it.remove();
+					idle.add(entry);
+				}
+			}
+		}
+		try {
+			closeMachines(idle);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to close idle machine", e);
+		}
+	}
+
+	/**
+	 * Closes the machines of the specified entries, throwing the first failure
+	 * after trying to close all of them. A machine that is still being created
+	 * is closed when its creation completes.
+	 */
+	private void closeMachines(List<Entry> closing) throws IOException {
+		IOException failure = null;
+		for (Entry entry : closing) {
+			DefaultOulipoMachine machine = entry.machine.getNow(null);
+			if (machine == null) {
+				// still being created, so close it once it is
+				entry.machine.thenAccept(created -> {
+					try {
+						created.close();
+					} catch (IOException e) {
+						LOG.log(Level.WARNING, "Failed to close machine", e);
+					}
+				});
+				continue;
+			}
+			try {
+				machine.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Releases a reference to the machine of the specified entry. Called while
+	 * holding the lock of the entries.
+	 */
+	private void release(Entry entry) {
+		if (--entry.references == 0) {
+			entry.idleSince = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Gets the number of open machines
+	 * 
+	 * @return the number of open machines, including idle ones
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+}
@@ -107,6 +107,16 @@ public class Partitioner {
 		}
 	}
 
+	/**
+	 * Detaches the specified node from its parent, returning the node.
+	 */
+	private static <T extends StreamElement> Node<T> detach(Node<T> x) {
+		if (x != null) {
+			x.parent = null;
+		}
+		return x;
+	}
+
 	private static <T extends StreamElement> boolean isSplitInMiddle(NodeIndex<T> nodeIndex, long leftPartitionWidth) {
 		long adjWidth = leftPartitionWidth - nodeIndex.displacement;
 		return adjWidth >= 1 && nodeIndex.node.weight > adjWidth;
@@ -130,6 +140,70 @@ public class Partitioner {
 		}
 	}
 
+	/**
+	 * Splits the specified height-balanced tree into two height-balanced trees,
+	 * with the left tree containing the first <code>leftPartitionWidth</code>
+	 * characters. The tree is walked from the root down to the cut point and the
+	 * subtrees hanging off that path are joined back together on the way up, so
+	 * the cost is logarithmic in the number of nodes.
+	 * 
+	 * Unlike <code>createNodePartition</code>, the resulting partitions keep their
+	 * AVL balance so repeated edits don't degrade the rope.
+	 * 
+	 * @param leftPartitionWidth
+	 *            the number of characters in the left partition
+	 * @param x
+	 *            the root of the tree to split
+	 * @return NodePartition
+	 * @throws MalformedSpanException
+	 *             if the leaf on the cut point can't be split
+	 * @throws IllegalStateException
+	 *             if specified node is null
+	 */
+	public static <T extends StreamElement> NodePartition<T> split(long leftPartitionWidth, Node<T> x)
+			throws MalformedSpanException {
+		if (x == null) {
+			throw new IllegalStateException("Attempting to partition a null node");
+		}
+
+		if (leftPartitionWidth < 0) {
+			throw new IndexOutOfBoundsException(
+					"Width of left partition must be non-negative: width = " + leftPartitionWidth);
+		}
+
+		if (leftPartitionWidth >= x.characterCount()) {
+			return new NodePartition<T>(x, null);
+		} else if (leftPartitionWidth == 0) {
+			return new NodePartition<T>(null, x);
+		}
+		return splitTree(leftPartitionWidth, x);
+	}
+
+	private static <T extends StreamElement> NodePartition<T> splitTree(long leftPartitionWidth, Node<T> x)
+			throws MalformedSpanException {
+		x.parent = null;
+		if (x.isLeaf()) {
+			if (leftPartitionWidth >= x.weight) {
+				return new NodePartition<T>(x, null);
+			}
+			Node<T> split = x.split(leftPartitionWidth);
+			return new NodePartition<T>(detach(split.left), detach(split.right));
+		}
+
+		Node<T> left = detach(x.left);
+		Node<T> right = detach(x.right);
+		if (leftPartitionWidth == x.weight) {
+			return new NodePartition<T>(left, right);
+		} else if (leftPartitionWidth < x.weight) {
+			NodePartition<T> part = splitTree(leftPartitionWidth, left);
+			return new NodePartition<T>(part.left, RopeUtils.join(part.right, right));
+		} else if (right == null) {
+			return new NodePartition<T>(left, null);
+		}
+		NodePartition<T> part = splitTree(leftPartitionWidth - x.weight, right);
+		return new NodePartition<T>(RopeUtils.join(left, part.left), part.right);
+	}
+
 	/**
 	 * Prunes nodes to the right of the specified cut.
 	 * 
@@ -150,32 +224,36 @@ public class Partitioner {
 
 	private static <S extends StreamElement> List<Node<S>> pruneTree(Node<S> x, long orphanedWidth, long leftWidth,
 			long disp, boolean isChildRightLeaningNode) {
-		if (x == null) {
-			return new ArrayList<>();
-		}
-
-		if (!isChildRightLeaningNode) {
-			x.weight -= orphanedWidth;
-		}
+		List<Node<S>> orphans = new ArrayList<>();
+		Node<S> start = x;
+		for (; x != null; x = x.parent) {
+			if (!isChildRightLeaningNode) {
+				x.weight -= orphanedWidth;
+			}
 
-		if (x.isRed) {
-			x.isRed = false;
+			if (x.isRed) {
+				x.isRed = false;
 
-			if (disp != 0) {
-				disp -= x.weight;
-				if (disp < 0) {
-					throw new IllegalStateException("disp must be non-negative: " + disp + ", Node = " + x);
+				if (disp != 0) {
+					disp -= x.weight;
+					if (disp < 0) {
+						throw new IllegalStateException("disp must be non-negative: " + disp + ", Node = " + x);
+					}
 				}
 			}
-		}
 
-		List<Node<S>> orphans = new ArrayList<>();
-		if (x.right != null && x.weight + disp >= leftWidth) {
-			orphanedWidth += x.right.characterCount();
-			RopeUtils.cutRightNode(x, orphans);
+			if (x.right != null && x.weight + disp >= leftWidth) {
+				// the cached counts are cleared once for the whole path below
+				orphanedWidth += x.right.characterCount();
+				orphans.add(x.right);
+				x.right.parent = null;
+				x.right = null;
+			}
+			isChildRightLeaningNode = x.isRightNode();
+		}
+		if (start != null) {
+			start.invalidateCharacterCount();
 		}
-
-		orphans.addAll(pruneTree(x.parent, orphanedWidth, leftWidth, disp, x.isRightNode()));
 		return orphans;
 	}
 }
@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.StreamElementPartition;
+import org.oulipo.streams.types.StreamElement;
+
+/**
+ * An immutable node of a persistent rope. Unlike <code>Node</code>, a
+ * <code>PersistentNode</code> is never modified after construction and has no
+ * parent pointer, so a subtree can be shared by any number of trees. Edits
+ * create new nodes along the path from the root to the edit point (path
+ * copying) and reuse everything else.
+ * 
+ * Trees built with the <code>join</code> and <code>split</code> operations are
+ * AVL balanced.
+ */
+public final class PersistentNode<T extends StreamElement> {
+
+	/**
+	 * Holds the partition of a persistent node into left and right halves. Either
+	 * half may be null.
+	 */
+	public static final class Partition<S extends StreamElement> {
+
+		public final PersistentNode<S> left;
+
+		public final PersistentNode<S> right;
+
+		Partition(PersistentNode<S> left, PersistentNode<S> right) {
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	private static <T extends StreamElement> PersistentNode<T> balance(PersistentNode<T> left,
+			PersistentNode<T> right) {
+		int leftHeight = height(left);
+		int rightHeight = height(right);
+		if (leftHeight > rightHeight + 1) {
+			if (height(left.left) >= height(left.right)) {
+				return new PersistentNode<T>(left.left, new PersistentNode<T>(left.right, right));
+			}
+			return new PersistentNode<T>(new PersistentNode<T>(left.left, left.right.left),
+					new PersistentNode<T>(left.right.right, right));
+		} else if (rightHeight > leftHeight + 1) {
+			if (height(right.right) >= height(right.left)) {
+				return new PersistentNode<T>(new PersistentNode<T>(left, right.left), right.right);
+			}
+			return new PersistentNode<T>(new PersistentNode<T>(left, right.left.left),
+					new PersistentNode<T>(right.left.right, right.right));
+		}
+		return new PersistentNode<T>(left, right);
+	}
+
+	/**
+	 * Builds a perfectly balanced tree from the specified stream elements in linear
+	 * time
+	 * 
+	 * @param elements
+	 *            the stream elements of the leaf nodes, in order
+	 * @return the root of the tree, or null if there are no elements
+	 */
+	public static <T extends StreamElement> PersistentNode<T> build(List<T> elements) {
+		return elements.isEmpty() ? null : build(elements, 0, elements.size());
+	}
+
+	private static <T extends StreamElement> PersistentNode<T> build(List<T> elements, int lo, int hi) {
+		if (hi - lo == 1) {
+			return new PersistentNode<T>(elements.get(lo));
+		}
+		int mid = (lo + hi) >>> 1;
+		return new PersistentNode<T>(build(elements, lo, mid), build(elements, mid, hi));
+	}
+
+	/**
+	 * Gets the number of characters under the specified node, or 0 if the node is
+	 * null
+	 */
+	public static <T extends StreamElement> long characterCount(PersistentNode<T> x) {
+		return x == null ? 0 : x.characterCount;
+	}
+
+	/**
+	 * In-order collection of all stream element values under the specified node
+	 * 
+	 * @param x
+	 *            the node to traverse
+	 * @param elements
+	 *            the list to collect the values
+	 */
+	public static <T extends StreamElement> void collectValues(PersistentNode<T> x, List<T> elements) {
+		Deque<PersistentNode<T>> stack = new ArrayDeque<>();
+		while (x != null || !stack.isEmpty()) {
+			if (x != null) {
+				if (x.isLeaf()) {
+					elements.add(x.value);
+					x = null;
+				} else {
+					stack.push(x);
+					x = x.left;
+				}
+			} else {
+				x = stack.pop().right;
+			}
+		}
+	}
+
+	/**
+	 * Gets the height of the specified node, or 0 if the node is null
+	 */
+	public static <T extends StreamElement> int height(PersistentNode<T> x) {
+		return x == null ? 0 : x.height;
+	}
+
+	/**
+	 * Gets the leaf node at the specified character position
+	 * 
+	 * @param characterPosition
+	 *            the character position, starting at 1
+	 * @param x
+	 *            the node to search from
+	 * @return the leaf node covering the character position
+	 * @throws IndexOutOfBoundsException
+	 *             if the position is not within the specified node
+	 */
+	public static <T extends StreamElement> PersistentNode<T> index(long characterPosition, PersistentNode<T> x) {
+		if (characterPosition < 1 || characterPosition > characterCount(x)) {
+			throw new IndexOutOfBoundsException("Can't find node at position =  " + characterPosition);
+		}
+		while (!x.isLeaf()) {
+			if (characterPosition > x.weight) {
+				characterPosition -= x.weight;
+				x = x.right;
+			} else {
+				x = x.left;
+			}
+		}
+		return x;
+	}
+
+	/**
+	 * Joins the left and right trees into a single AVL balanced tree. Neither tree
+	 * is modified.
+	 * 
+	 * @param left
+	 *            the left tree. May be null.
+	 * @param right
+	 *            the right tree. May be null.
+	 * @return the joined tree, or null if both trees are null
+	 */
+	public static <T extends StreamElement> PersistentNode<T> join(PersistentNode<T> left,
+			PersistentNode<T> right) {
+		if (left == null) {
+			return right;
+		}
+		if (right == null) {
+			return left;
+		}
+
+		if (left.height > right.height + 1) {
+			return balance(left.left, join(left.right, right));
+		} else if (right.height > left.height + 1) {
+			return balance(join(left, right.left), right.right);
+		}
+		return new PersistentNode<T>(left, right);
+	}
+
+	/**
+	 * Replaces the leaf node at the specified character position with a new leaf
+	 * node holding the specified value. Only the nodes on the path to the leaf are
+	 * copied. The height of the tree doesn't change.
+	 * 
+	 * @param characterPosition
+	 *            a character position within the leaf node to replace
+	 * @param value
+	 *            the value of the new leaf node
+	 * @param x
+	 *            the tree to replace the leaf in. Must not be null.
+	 * @return the root of the new tree
+	 */
+	public static <T extends StreamElement> PersistentNode<T> replace(long characterPosition, T value,
+			PersistentNode<T> x) {
+		if (x.isLeaf()) {
+			return new PersistentNode<T>(value);
+		}
+		if (characterPosition > x.weight) {
+			return new PersistentNode<T>(x.left, replace(characterPosition - x.weight, value, x.right));
+		}
+		return new PersistentNode<T>(replace(characterPosition, value, x.left), x.right);
+	}
+
+	/**
+	 * Splits the specified tree into two trees, with the left tree containing the
+	 * first <code>leftPartitionWidth</code> characters. The specified tree is not
+	 * modified.
+	 * 
+	 * @param leftPartitionWidth
+	 *            the number of characters in the left partition
+	 * @param x
+	 *            the tree to split. May be null.
+	 * @return the partition
+	 * @throws MalformedSpanException
+	 *             if the leaf on the cut point can't be split
+	 */
+	public static <T extends StreamElement> Partition<T> split(long leftPartitionWidth, PersistentNode<T> x)
+			throws MalformedSpanException {
+		if (leftPartitionWidth < 0) {
+			throw new IndexOutOfBoundsException(
+					"Width of left partition must be non-negative: width = " + leftPartitionWidth);
+		}
+
+		if (leftPartitionWidth >= characterCount(x)) {
+			return new Partition<T>(x, null);
+		} else if (leftPartitionWidth == 0) {
+			return new Partition<T>(null, x);
+		} else if (x.isLeaf()) {
+			@SuppressWarnings("unchecked")
+			StreamElementPartition<T> values = (StreamElementPartition<T>) x.value.split(leftPartitionWidth);
+			return new Partition<T>(new PersistentNode<T>(values.getLeft()),
+					new PersistentNode<T>(values.getRight()));
+		} else if (leftPartitionWidth == x.weight) {
+			return new Partition<T>(x.left, x.right);
+		} else if (leftPartitionWidth < x.weight) {
+			Partition<T> part = split(leftPartitionWidth, x.left);
+			return new Partition<T>(part.left, join(part.right, x.right));
+		}
+		Partition<T> part = split(leftPartitionWidth - x.weight, x.right);
+		return new Partition<T>(join(x.left, part.left), part.right);
+	}
+
+	/**
+	 * The number of characters under this node
+	 */
+	public final long characterCount;
+
+	/**
+	 * Height of the subtree rooted at this node. A leaf node has a height of 1.
+	 */
+	public final int height;
+
+	/**
+	 * Invariant ranges of the spans under this node, keyed by the document hash of
+	 * the spans
+	 */
+	final InvariantBounds invariantBounds;
+
+	/**
+	 * Left child node
+	 */
+	public final PersistentNode<T> left;
+
+	/**
+	 * Right child node
+	 */
+	public final PersistentNode<T> right;
+
+	/**
+	 * The stream element value of this node. A value can only exist for a leaf node
+	 */
+	public final T value;
+
+	/**
+	 * The number of characters to the left of this node
+	 */
+	public final long weight;
+
+	/**
+	 * Constructs a branch node
+	 * 
+	 * @param left
+	 *            the left child node. Must not be null.
+	 * @param right
+	 *            the right child node. Must not be null.
+	 */
+	public PersistentNode(PersistentNode<T> left, PersistentNode<T> right) {
+		if (left == null || right == null) {
+			throw new IllegalArgumentException("branch node must have both left and right nodes");
+		}
+		this.left = left;
+		this.right = right;
+		this.value = null;
+		this.weight = left.characterCount;
+		this.characterCount = left.characterCount + right.characterCount;
+		this.height = 1 + Math.max(left.height, right.height);
+		this.invariantBounds = InvariantBounds.union(left.invariantBounds, right.invariantBounds);
+	}
+
+	/**
+	 * Constructs a leaf node
+	 * 
+	 * @param value
+	 *            the stream element
+	 */
+	public PersistentNode(T value) {
+		if (value == null) {
+			throw new IllegalArgumentException("value is null");
+		}
+		this.left = null;
+		this.right = null;
+		this.value = value;
+		this.weight = value.getWidth();
+		this.characterCount = value.getWidth();
+		this.height = 1;
+		this.invariantBounds = InvariantBounds.of(value);
+	}
+
+	/**
+	 * Is this node a leaf node, meaning it has a value attached
+	 * 
+	 * @return
+	 */
+	public boolean isLeaf() {
+		return value != null;
+	}
+
+	@Override
+	public String toString() {
+		return "PersistentNode [value=" + value + ", weight=" + weight + ", height=" + height + "]";
+	}
+}
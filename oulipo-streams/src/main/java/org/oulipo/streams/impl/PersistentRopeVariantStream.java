@@ -0,0 +1,537 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.oulipo.streams.EditBatch;
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.VariantStream;
+import org.oulipo.streams.overlays.Overlay;
+import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.OverlayStream;
+import org.oulipo.streams.types.StreamElement;
+
+/**
+ * Persistent rope implementation of the <code>VariantStream</code>. The rope is
+ * built from immutable <code>PersistentNode</code>s, so every edit produces a
+ * new root that shares all untouched subtrees with the previous version.
+ * 
+ * Taking a snapshot is a constant time operation. A snapshot is unaffected by
+ * later edits to this stream, so readers can work from a consistent version
+ * while a writer keeps editing, and older versions can be retained without
+ * copying the document.
+ * 
+ * Reads never block. Writes are serialized on this stream. Each edit builds
+ * its new version from the current root and publishes it with a single write
+ * of the root, so readers never see an edit half done.
+ * 
+ * Stream elements are mutable, so the rope keeps its own copies: elements are
+ * copied when they are put and when they are read, and a caller can't change a
+ * version of the rope through an element it holds.
+ */
+public final class PersistentRopeVariantStream<T extends StreamElement> implements VariantStream<T> {
+
+	/**
+	 * Copies a stream element, so that the rope and the caller don't share it
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends StreamElement> T copyOf(T value) {
+		try {
+			return (T) value.copy();
+		} catch (MalformedSpanException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Home document of invariant spans
+	 */
+	private final String documentHash;
+
+	/**
+	 * Root node of the current version of this rope
+	 */
+	private volatile PersistentNode<T> root;
+
+	/**
+	 * Constructs a <code>PersistentRopeVariantStream</code>
+	 * 
+	 * @param documentHash
+	 *            the home document of invariant spans
+	 */
+	public PersistentRopeVariantStream(String documentHash) {
+		this.documentHash = documentHash;
+	}
+
+	/**
+	 * Constructs a <code>PersistentRopeVariantStream</code> with the specified
+	 * version of a rope
+	 * 
+	 * @param documentHash
+	 *            the home document of invariant spans
+	 * @param root
+	 *            the root node. May be null for an empty stream.
+	 */
+	public PersistentRopeVariantStream(String documentHash, PersistentNode<T> root) {
+		this.documentHash = documentHash;
+		this.root = root;
+	}
+
+	/**
+	 * A rope with a range cut out of it
+	 */
+	private static final class Cut<T extends StreamElement> {
+
+		/**
+		 * The range that was cut out, or null if it was past the end of the rope
+		 */
+		final PersistentNode<T> removed;
+
+		/**
+		 * The rope without the range
+		 */
+		final PersistentNode<T> rest;
+
+		Cut(PersistentNode<T> rest, PersistentNode<T> removed) {
+			this.rest = rest;
+			this.removed = removed;
+		}
+	}
+
+	/**
+	 * Iterates over the leaf values of a version of the rope within a variant range.
+	 * Nodes have no parent links, so the right subtrees still to be visited are
+	 * kept on a stack. Only the O(log n + k) nodes on the path to the range and
+	 * within it are visited.
+	 */
+	private static final class RangeIterator<T extends StreamElement> implements Iterator<T> {
+
+		/**
+		 * End of the range (exclusive)
+		 */
+		private final long hi;
+
+		/**
+		 * Start of the range (inclusive)
+		 */
+		private final long lo;
+
+		/**
+		 * The next leaf node to return or null if there are no more leaves
+		 */
+		private PersistentNode<T> next;
+
+		/**
+		 * Variant position of the first character of the next leaf node
+		 */
+		private long position;
+
+		/**
+		 * Right subtrees that have not yet been visited, nearest on top
+		 */
+		private final Deque<PersistentNode<T>> pending = new ArrayDeque<>();
+
+		RangeIterator(PersistentNode<T> x, long lo, long hi) {
+			this.lo = lo;
+			this.hi = hi;
+			if (x == null || lo > x.characterCount) {
+				return;
+			}
+			long displacement = 0;
+			while (!x.isLeaf()) {
+				if (lo > displacement + x.weight) {
+					displacement += x.weight;
+					x = x.right;
+				} else {
+					pending.push(x.right);
+					x = x.left;
+				}
+			}
+			next = x;
+			position = displacement + 1;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null && position < hi;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T value = next.value;
+			long width = value.getWidth();
+			long a = Math.max(lo, position);
+			long b = Math.min(hi, position + width);
+			long offset = a - position;
+
+			position += width;
+			next = successor();
+
+			if (offset == 0 && b - a == width) {
+				return copyOf(value);
+			}
+			try {
+				return RopeUtils.clip(value, offset, b - a);
+			} catch (MalformedSpanException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Gets the leftmost leaf of the nearest pending subtree
+		 */
+		private PersistentNode<T> successor() {
+			PersistentNode<T> x = pending.poll();
+			if (x == null) {
+				return null;
+			}
+			while (!x.isLeaf()) {
+				pending.push(x.right);
+				x = x.left;
+			}
+			return x;
+		}
+	}
+
+	private boolean addOverlay(Overlay link, List<T> overlays) {
+		for (T overlaySpan : overlays) {
+			if ((overlaySpan instanceof OverlayStream) && !((OverlayStream) overlaySpan).hasLinkType(link)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Collects the variant spans under node x that intersect the target span, in
+	 * variant order
+	 */
+	private void collectVariantSpans(PersistentNode<T> x, long position, InvariantSpan targetSpan,
+			List<VariantSpan> vspans) throws MalformedSpanException {
+		if (x == null || !RopeUtils.mayIntersect(x.invariantBounds, targetSpan, documentHash)) {
+			return;
+		}
+		if (x.isLeaf()) {
+			VariantSpan vs = RopeUtils.intersection(x.value, position, targetSpan, documentHash);
+			if (vs != null) {
+				vspans.add(vs);
+			}
+			return;
+		}
+		collectVariantSpans(x.left, position, targetSpan, vspans);
+		collectVariantSpans(x.right, position + x.weight, targetSpan, vspans);
+	}
+
+	/**
+	 * Applies the batch to a snapshot of this stream and then publishes the result
+	 * as the new version. Readers see the stream either before or after the whole
+	 * batch, and if an edit fails this stream is left unchanged.
+	 */
+	@Override
+	public synchronized void apply(EditBatch<T> batch) throws MalformedSpanException, IOException {
+		PersistentRopeVariantStream<T> working = snapshot();
+		batch.applyTo(working);
+		root = working.root;
+	}
+
+	/**
+	 * Merges the specified value into the leaf of rope x that ends just before
+	 * position i, or into the leaf that starts at position i, if either can be
+	 * merged with it. If the value merges with both leaves, they are merged into
+	 * one. Nothing is merged if position i falls inside a leaf.
+	 * 
+	 * @return the new rope, or null if the value can't be merged into a leaf
+	 */
+	private PersistentNode<T> coalesce(PersistentNode<T> x, long i, T value) throws MalformedSpanException {
+		long charCount = PersistentNode.characterCount(x);
+		if (i > 1) {
+			PersistentNode<T> left = PersistentNode.index(i - 1, x);
+			if (i <= charCount && PersistentNode.index(i, x) == left) {
+				return null;
+			}
+			T merged = RopeUtils.merge(left.value, value);
+			if (merged != null) {
+				T bridged = i <= charCount ? RopeUtils.merge(merged, PersistentNode.index(i, x).value) : null;
+				if (bridged != null) {
+					// value fills the gap between its neighbours, so all three become one leaf
+					x = cut(x, new VariantSpan(i, PersistentNode.index(i, x).value.getWidth())).rest;
+					merged = bridged;
+				}
+				return PersistentNode.replace(i - 1, merged, x);
+			}
+		}
+		if (i <= charCount) {
+			T merged = RopeUtils.merge(value, PersistentNode.index(i, x).value);
+			if (merged != null) {
+				return PersistentNode.replace(i, merged, x);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Rebuilds the rope, merging all adjacent stream elements that can be merged
+	 */
+	@Override
+	public synchronized void compact() throws MalformedSpanException {
+		root = PersistentNode.build(RopeUtils.coalesce(getStreamElements()));
+	}
+
+	@Override
+	public synchronized void copy(long characterPosition, VariantSpan variantSpan)
+			throws MalformedSpanException, IOException {
+		putElements(characterPosition, getStreamElements(variantSpan));
+	}
+
+	/**
+	 * Copies the elements of rope x within the variant span
+	 */
+	private List<T> copyElements(PersistentNode<T> x, VariantSpan variantSpan) throws MalformedSpanException {
+		if (x == null) {
+			throw new IllegalStateException("Stream is empty");
+		}
+		List<T> elements = new ArrayList<>();
+		Iterator<T> it = new RangeIterator<>(x, variantSpan.start, variantSpan.start + variantSpan.width);
+		while (it.hasNext()) {
+			elements.add(it.next());
+		}
+		return elements;
+	}
+
+	/**
+	 * Cuts the elements in the variant span range out of rope x
+	 * 
+	 * @return the rope without the range and the nodes of the range
+	 */
+	private Cut<T> cut(PersistentNode<T> x, VariantSpan variantSpan) throws MalformedSpanException {
+		PersistentNode.Partition<T> partI = PersistentNode.split(variantSpan.start - 1, x);
+		if (partI.right == null) {
+			return new Cut<>(x, null);
+		}
+		PersistentNode.Partition<T> partJ = PersistentNode.split(variantSpan.width, partI.right);
+		return new Cut<>(PersistentNode.join(partI.left, partJ.right), partJ.left);
+	}
+
+	@Override
+	public synchronized void delete(VariantSpan variantSpan) throws MalformedSpanException {
+		if (variantSpan == null) {
+			throw new MalformedSpanException("Variant span is null for delete operation");
+		}
+		root = cut(root, variantSpan).rest;
+	}
+
+	@Override
+	public String getDocumentHash() {
+		return documentHash;
+	}
+
+	/**
+	 * Gets the root node of the current version of this rope
+	 * 
+	 * @return the root node, or null if the stream is empty
+	 */
+	public PersistentNode<T> getRoot() {
+		return root;
+	}
+
+	@Override
+	public List<T> getStreamElements() throws MalformedSpanException {
+		List<T> elements = new ArrayList<>();
+		PersistentNode.collectValues(root, elements);
+		elements.replaceAll(PersistentRopeVariantStream::copyOf);
+		return elements;
+	}
+
+	@Override
+	public List<T> getStreamElements(VariantSpan variantSpan) throws MalformedSpanException {
+		return copyElements(root, variantSpan);
+	}
+
+	/**
+	 * Gets the variant spans that intersect the target span. Each node holds the
+	 * range of invariant positions under it, so subtrees that can't contain the
+	 * target span are skipped.
+	 */
+	@Override
+	public List<VariantSpan> getVariantSpans(InvariantSpan targetSpan) throws MalformedSpanException {
+		List<VariantSpan> vspans = new ArrayList<>();
+		collectVariantSpans(root, 1, targetSpan, vspans);
+		return vspans;
+	}
+
+	@Override
+	public T index(long characterPosition) {
+		PersistentNode<T> x = root;
+		if (x == null) {
+			throw new IllegalStateException("Stream is empty");
+		}
+		return copyOf(PersistentNode.index(characterPosition, x).value);
+	}
+
+	/**
+	 * Gets an iterator over the current version of this rope. Edits made while
+	 * iterating are not visible to the iterator.
+	 */
+	@Override
+	public Iterator<T> iterator(VariantSpan variantSpan) {
+		return new RangeIterator<>(root, variantSpan.start, variantSpan.start + variantSpan.width);
+	}
+
+	/**
+	 * Inserts the specified tree at position i of rope r.
+	 * 
+	 * @return the new rope
+	 * @throws IndexOutOfBoundsException
+	 *             if i > rope.characterCount + 1
+	 * @throws IllegalArgumentException
+	 *             if rope is empty and i != 1
+	 */
+	private PersistentNode<T> insert(PersistentNode<T> r, long i, PersistentNode<T> x) throws MalformedSpanException {
+		if (x == null) {
+			throw new IllegalStateException("Inserting a null node");
+		}
+		long charCount = PersistentNode.characterCount(r);
+		if (i > charCount + 1) {
+			throw new IndexOutOfBoundsException("Attempting to insert in illegal range: Current Max = " + charCount
+					+ ", Attempted insert = " + i + " ,Node" + x);
+		}
+		if (r == null && i != 1) {
+			throw new IllegalArgumentException("First node must be inserted at position 1");
+		}
+
+		if (x.isLeaf()) {
+			PersistentNode<T> merged = coalesce(r, i, x.value);
+			if (merged != null) {
+				return merged;
+			}
+		}
+
+		PersistentNode.Partition<T> partition = PersistentNode.split(i - 1, r);
+		return PersistentNode.join(PersistentNode.join(partition.left, x), partition.right);
+	}
+
+	@Override
+	public synchronized void move(long to, VariantSpan v1) throws MalformedSpanException {
+		Cut<T> cut = cut(root, v1);
+		if (v1.start < to) {
+			to -= v1.width;
+		}
+		root = insert(cut.rest, to, cut.removed);
+	}
+
+	@Override
+	public synchronized void put(long characterPosition, T val) throws MalformedSpanException {
+		if (val == null) {
+			throw new IllegalArgumentException("invariant span is null");
+		}
+
+		if (characterPosition < 1) {
+			throw new IndexOutOfBoundsException("put position must be greater than 0");
+		}
+
+		if (val.getWidth() < 1) {
+			throw new MalformedSpanException("invariant span must have a width greater than 0");
+		}
+
+		root = insert(root, characterPosition, new PersistentNode<T>(copyOf(val)));
+	}
+
+	/**
+	 * Puts the stream elements at the specified position. The elements are built
+	 * into a balanced tree in linear time, which is then inserted with a single
+	 * split and join.
+	 */
+	@Override
+	public synchronized void putElements(long characterPosition, List<T> streamElements)
+			throws MalformedSpanException {
+		if (characterPosition < 1) {
+			throw new IndexOutOfBoundsException("put position must be greater than 0");
+		}
+		List<T> copies = new ArrayList<>(streamElements.size());
+		for (T val : streamElements) {
+			if (val == null) {
+				throw new IllegalArgumentException("invariant span is null");
+			}
+			if (val.getWidth() < 1) {
+				throw new MalformedSpanException("invariant span must have a width greater than 0");
+			}
+			copies.add(copyOf(val));
+		}
+		if (!copies.isEmpty()) {
+			root = insert(root, characterPosition, PersistentNode.build(RopeUtils.coalesce(copies)));
+		}
+	}
+
+	/**
+	 * The rope is balanced on every edit, so there is nothing to do here
+	 */
+	@Override
+	public void rebalance() throws MalformedSpanException {
+
+	}
+
+	/**
+	 * Gets a point-in-time view of this stream. The snapshot shares all of its
+	 * nodes with this stream and is not affected by later edits to this stream.
+	 * Edits to the snapshot are likewise not visible in this stream.
+	 * 
+	 * @return the snapshot
+	 */
+	public PersistentRopeVariantStream<T> snapshot() {
+		return new PersistentRopeVariantStream<T>(documentHash, root);
+	}
+
+	@Override
+	public synchronized void swap(VariantSpan v1, VariantSpan v2) throws MalformedSpanException {
+		// assume v1 < v2, no overlap
+		Cut<T> from = cut(root, v1);
+		Cut<T> to = cut(from.rest, new VariantSpan(v2.start - v1.width, v2.width));
+
+		PersistentNode<T> x = insert(to.rest, v1.start, to.removed);
+		root = insert(x, v2.start, from.removed);
+	}
+
+	@Override
+	public synchronized void toggleOverlay(VariantSpan variantSpan, Overlay linkType)
+			throws MalformedSpanException, IOException {
+		PersistentNode<T> x = root;
+		List<T> overlays = copyElements(x, variantSpan);
+		if (addOverlay(linkType, overlays)) {
+			for (StreamElement span : overlays) {
+				((OverlayStream) span).addLinkType(linkType);
+			}
+		} else {
+			for (StreamElement span : overlays) {
+				((OverlayStream) span).removeLinkType(linkType);
+			}
+		}
+
+		Cut<T> cut = cut(x, variantSpan);
+		root = overlays.isEmpty() ? cut.rest
+				: insert(cut.rest, variantSpan.start, PersistentNode.build(RopeUtils.coalesce(overlays)));
+	}
+}
@@ -16,11 +16,17 @@
 package org.oulipo.streams.impl;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Queue;
 
+import org.oulipo.streams.MalformedSpanException;
 import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.OverlayStream;
 import org.oulipo.streams.types.StreamElement;
 
 public final class RopeUtils {
@@ -35,10 +41,11 @@ public final class RopeUtils {
 	 *            the displacement weights
 	 */
 	public static <T extends StreamElement> long addWeightsOfRightLeaningChildNodes(Node<T> x) {
-		if (x == null || x.right == null) {
-			return 0;
+		long weight = 0;
+		for (; x != null && x.right != null; x = x.right) {
+			weight += x.right.weight;
 		}
-		return x.right.weight + addWeightsOfRightLeaningChildNodes(x.right);
+		return weight;
 	}
 
 	/**
@@ -63,23 +70,65 @@ public final class RopeUtils {
 		if (child == null) {
 			throw new IllegalStateException("child node can't be null");
 		}
-		if (child.parent == null) {
-			return 0;
+		long weight = 0;
+		for (; child.parent != null; child = child.parent) {
+			if (child.isRightNode()) {
+				weight += child.parent.weight;
+			}
 		}
-		return (child.isRightNode() ? child.parent.weight : 0) + addWeightsOfRightLeaningParentNodes(child.parent);
+		return weight;
 	}
 
 	public static <T extends StreamElement> void adjustWeightOfLeftLeaningParents(Node<T> startNode, long weight) {
-		if (startNode == null) {
-			return;
+		for (; startNode != null; startNode = startNode.parent) {
+			if (!startNode.isRightNode()) {
+				startNode.weight -= weight;
+				if (startNode.weight < 0) {
+					throw new IllegalStateException("Can't adjust negative node weight" + startNode);
+				}
+			}
 		}
-		if (!startNode.isRightNode()) {
-			startNode.weight -= weight;
-			if (startNode.weight < 0) {
-				throw new IllegalStateException("Can't adjust negative node weight" + startNode);
+	}
+
+	/**
+	 * Restores the AVL balance of the specified node after one of its children has
+	 * changed height by at most one level. Heights of the children must already be
+	 * correct.
+	 * 
+	 * @param x
+	 *            the node to balance
+	 * @return the root of the balanced subtree. This may be a different node than
+	 *         the one specified.
+	 */
+	static <T extends StreamElement> Node<T> balance(Node<T> x) {
+		x.update();
+		int balanceFactor = height(x.left) - height(x.right);
+		if (balanceFactor > 1) {
+			if (height(x.left.left) < height(x.left.right)) {
+				attachLeft(x, rotateLeft(x.left));
+			}
+			return rotateRight(x);
+		} else if (balanceFactor < -1) {
+			if (height(x.right.right) < height(x.right.left)) {
+				attachRight(x, rotateRight(x.right));
 			}
+			return rotateLeft(x);
+		}
+		return x;
+	}
+
+	private static <T extends StreamElement> void attachLeft(Node<T> parent, Node<T> child) {
+		parent.left = child;
+		if (child != null) {
+			child.parent = parent;
+		}
+	}
+
+	private static <T extends StreamElement> void attachRight(Node<T> parent, Node<T> child) {
+		parent.right = child;
+		if (child != null) {
+			child.parent = parent;
 		}
-		adjustWeightOfLeftLeaningParents(startNode.parent, weight);
 	}
 
 	/**
@@ -87,16 +136,161 @@ public final class RopeUtils {
 	 * the root, then this method returns number of characters in rope. If the node
 	 * is a leaf node, then this method returns the width of the node.
 	 * 
-	 * @return the number of characters in the specified node
+	 * The count is the cached count of the node, so this is a null-safe
+	 * <code>Node.characterCount</code>.
+	 * 
+	 * @return the number of characters in the specified node, or 0 if the node is
+	 *         null
 	 */
 	public static <T extends StreamElement> long characterCount(Node<T> x) {
-		if (x == null) {
-			return 0;
+		return x != null ? x.characterCount() : 0;
+	}
+
+	/**
+	 * Builds a perfectly balanced tree from the specified stream elements, in the
+	 * order of the list. The tree is built bottom-up in linear time, rather than
+	 * by inserting one element at a time.
+	 * 
+	 * @param elements
+	 *            the stream elements of the leaf nodes
+	 * @return the root of the tree, or null if there are no elements
+	 */
+	public static <T extends StreamElement> Node<T> build(List<T> elements) {
+		if (elements.isEmpty()) {
+			return null;
+		}
+		List<Node<T>> leaves = new ArrayList<>(elements.size());
+		for (T element : elements) {
+			leaves.add(new Node<T>(element));
 		}
-		if (x.isLeaf()) {
-			return x.value.getWidth();
+		return rebalance(leaves, 0, leaves.size());
+	}
+
+	/**
+	 * Gets the variant span covering the part of the specified stream element that
+	 * intersects the target invariant span. Invariant spans without a document
+	 * hash belong to the home document. Spans transcluded from another document
+	 * only match a target span from that document.
+	 * 
+	 * @param element
+	 *            the stream element
+	 * @param position
+	 *            the variant position of the stream element
+	 * @param target
+	 *            the invariant span to search for
+	 * @param homeDocumentHash
+	 *            the home document of the variant stream
+	 * @return the variant span or null if the element doesn't intersect the target
+	 * @throws MalformedSpanException
+	 */
+	static VariantSpan intersection(StreamElement element, long position, InvariantSpan target,
+			String homeDocumentHash) throws MalformedSpanException {
+		if (!(element instanceof InvariantSpan)) {
+			return null;
+		}
+		InvariantSpan span = (InvariantSpan) element;
+		String spanHash = span.getDocumentHash() != null ? span.getDocumentHash() : homeDocumentHash;
+		String targetHash = target.getDocumentHash() != null ? target.getDocumentHash() : homeDocumentHash;
+		if (spanHash != null && !spanHash.equals(targetHash)) {
+			return null;
+		}
+
+		long start = span.getStart();
+		long end = start + span.getWidth();
+		long targetStart = target.getStart();
+		long targetEnd = targetStart + target.getWidth();
+		if (!intersects(start, end, targetStart, targetEnd)) {
+			return null;
 		}
-		return x.weight + addWeightsOfRightLeaningChildNodes(x);
+		long a = Math.max(0, targetStart - start);
+		long b = Math.max(0, end - targetEnd);
+		return new VariantSpan(position + a, span.getWidth() - b - a, homeDocumentHash);
+	}
+
+	/**
+	 * Coalesces runs of adjacent stream elements that can be merged into single
+	 * elements
+	 * 
+	 * @param elements
+	 *            the stream elements in variant order
+	 * @return new list of the coalesced stream elements
+	 * @throws MalformedSpanException
+	 * @see #merge(StreamElement, StreamElement)
+	 */
+	public static <T extends StreamElement> List<T> coalesce(List<T> elements) throws MalformedSpanException {
+		List<T> coalesced = new ArrayList<>(elements.size());
+		T last = null;
+		for (T element : elements) {
+			T merged = last != null ? merge(last, element) : null;
+			if (merged != null) {
+				coalesced.set(coalesced.size() - 1, merged);
+				last = merged;
+			} else {
+				coalesced.add(element);
+				last = element;
+			}
+		}
+		return coalesced;
+	}
+
+	/**
+	 * Merges two stream elements that are next to each other in a variant stream
+	 * into a single element. Invariant spans merge if they are from the same
+	 * document and the right span starts where the left span ends in the invariant
+	 * stream. Overlay streams merge if they have the same link types.
+	 * 
+	 * @param left
+	 *            the left stream element
+	 * @param right
+	 *            the right stream element
+	 * @return the merged stream element, or null if the elements can't be merged
+	 * @throws MalformedSpanException
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends StreamElement> T merge(T left, T right) throws MalformedSpanException {
+		if (left instanceof InvariantSpan && right instanceof InvariantSpan) {
+			InvariantSpan l = (InvariantSpan) left;
+			InvariantSpan r = (InvariantSpan) right;
+			if (Objects.equals(l.getDocumentHash(), r.getDocumentHash())
+					&& l.getStart() + l.getWidth() == r.getStart()) {
+				return (T) new InvariantSpan(l.getStart(), l.getWidth() + r.getWidth(), l.getDocumentHash());
+			}
+		} else if (left.getClass() == OverlayStream.class && right.getClass() == OverlayStream.class) {
+			OverlayStream l = (OverlayStream) left;
+			OverlayStream r = (OverlayStream) right;
+			if (Objects.equals(l.linkTypes, r.linkTypes) && Objects.equals(l.tag, r.tag)) {
+				OverlayStream merged = l.copy();
+				merged.setWidth(l.getWidth() + r.getWidth());
+				merged.tag = l.tag;
+				return (T) merged;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a copy of the specified stream element that covers only part of the
+	 * element. An invariant span has its start moved by the specified offset.
+	 * 
+	 * @param value
+	 *            the stream element to clip
+	 * @param offset
+	 *            the number of characters to remove from the start of the element
+	 * @param width
+	 *            the width of the clipped element
+	 * @return the clipped copy of the element
+	 * @throws MalformedSpanException
+	 *             if the clipped element is malformed
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends StreamElement> T clip(T value, long offset, long width) throws MalformedSpanException {
+		T copy = (T) value.copy();
+		copy.setWidth(width);
+		if (copy instanceof InvariantSpan) {
+			InvariantSpan span = (InvariantSpan) copy;
+			span.setStart(span.getStart() + offset);
+		}
+		return copy;
 	}
 
 	/**
@@ -108,16 +302,19 @@ public final class RopeUtils {
 	 *            the queue to collect leaf nodes
 	 */
 	public static <T extends StreamElement> void collectLeafNodes(Node<T> x, Queue<Node<T>> queue) {
-		if (x == null) {
-			return;
-		}
-
-		if (x.value != null) {
-			queue.add(x);
+		Deque<Node<T>> stack = new ArrayDeque<>();
+		while (x != null || !stack.isEmpty()) {
+			if (x == null) {
+				x = stack.pop();
+			}
+			if (x.value != null) {
+				queue.add(x);
+			}
+			if (x.right != null) {
+				stack.push(x.right);
+			}
+			x = x.left;
 		}
-
-		collectLeafNodes(x.left, queue);
-		collectLeafNodes(x.right, queue);
 	}
 
 	public static <T extends StreamElement> Node<T> concat(List<Node<T>> orphans) {
@@ -153,6 +350,7 @@ public final class RopeUtils {
 			parent.right = right;
 			parent.right.parent = parent;
 		}
+		parent.update();
 		return parent;
 	}
 
@@ -168,6 +366,7 @@ public final class RopeUtils {
 			orphans.add(x.left);
 			x.left.parent = null;
 			x.left = null;
+			x.invalidateCharacterCount();
 		}
 	}
 
@@ -183,12 +382,23 @@ public final class RopeUtils {
 			orphans.add(x.right);
 			x.right.parent = null;
 			x.right = null;
+			x.invalidateCharacterCount();
 		}
 	}
 
+	/**
+	 * Gets the height of the specified node, or 0 if the node is null
+	 * 
+	 * @param x
+	 * @return the height of the node
+	 */
+	public static <T extends StreamElement> int height(Node<T> x) {
+		return x == null ? 0 : x.height;
+	}
+
 	public static <T extends StreamElement> Node<T> findRoot(Node<T> child) {
 		while (child.parent != null) {
-			return findRoot(child.parent);
+			child = child.parent;
 		}
 		return child;
 	}
@@ -217,13 +427,12 @@ public final class RopeUtils {
 			throw new IllegalArgumentException("root is null");
 		}
 
-		if (x == null) {
-			return root;
-		}
-		if (x.weight > weight) {
-			return x;
+		for (; x != null; x = x.parent) {
+			if (x.weight > weight) {
+				return x;
+			}
 		}
-		return findSearchNode(x.parent, weight, root);
+		return root;
 	}
 
 	/**
@@ -235,12 +444,12 @@ public final class RopeUtils {
 	 * specified characterPosition, look to the right. If the right node is null,
 	 * then the index node has been found. It covers the character position with its
 	 * width. If the right node is not null, subtract the node.weight from the
-	 * characterPosition and recursively continue the search for the index node.
+	 * characterPosition and continue the search for the index node.
 	 * 
 	 * If the number of characters to the left of the node is greater than the
 	 * specified character position, then we know the index node is somewhere to the
 	 * left if it is a branch node. If the node is a leaf node, then then index node
-	 * has been found. For a branch node, recursively continue looking to the left.
+	 * has been found. For a branch node, continue looking to the left.
 	 * 
 	 * 
 	 * @param characterPosition
@@ -262,50 +471,170 @@ public final class RopeUtils {
 			throw new IndexOutOfBoundsException("characterPosition must be greater than 0");
 		}
 
-		if (x.isLeaf()) {
-			return new NodeIndex<T>(x, disp);
-		}
-
-		if (x.weight < characterPosition) {
-			if (x.right == null) {
-				throw new IndexOutOfBoundsException("Can't find node at position =  " + (characterPosition + disp));
-			}
-			if (x.weight > 0) {
-				disp += x.weight;
-				x.isRed = true;
-			}
-			return index(characterPosition - x.weight, x.right, disp);
-		} else {
-			if (x.left == null) {
-				throw new IndexOutOfBoundsException("Can't find node at position =  " + (characterPosition + disp));
+		while (!x.isLeaf()) {
+			if (x.weight < characterPosition) {
+				if (x.right == null) {
+					throw new IndexOutOfBoundsException(
+							"Can't find node at position =  " + (characterPosition + disp));
+				}
+				if (x.weight > 0) {
+					disp += x.weight;
+					x.isRed = true;
+				}
+				characterPosition -= x.weight;
+				x = x.right;
+			} else {
+				if (x.left == null) {
+					throw new IndexOutOfBoundsException(
+							"Can't find node at position =  " + (characterPosition + disp));
+				}
+				x = x.left;
 			}
-			return index(characterPosition, x.left, disp);
 		}
+		return new NodeIndex<T>(x, disp);
 	}
 
 	public static boolean intersects(long start, long end, long start2, long end2) {
 		return end > start2 && end2 > start;
 	}
 
+	/**
+	 * Joins the left and right nodes into a single height-balanced tree. Unlike
+	 * <code>concat</code>, which always creates a new parent on top of both nodes,
+	 * this method descends the spine of the taller tree until it finds a subtree of
+	 * comparable height, attaches the shorter tree there and rotates back up. The
+	 * cost is proportional to the difference in heights of the two trees.
+	 * 
+	 * Both nodes must be roots (have no parent) of AVL balanced trees.
+	 * 
+	 * @param left
+	 *            the left tree. May be null.
+	 * @param right
+	 *            the right tree. May be null.
+	 * @return the root of the joined tree, or null if both nodes are null
+	 */
+	public static <T extends StreamElement> Node<T> join(Node<T> left, Node<T> right) {
+		if (left == null) {
+			return right;
+		}
+		if (right == null) {
+			return left;
+		}
+		Node<T> joined = join(left, left.characterCount(), right);
+		joined.parent = null;
+		return joined;
+	}
+
+	private static <T extends StreamElement> Node<T> join(Node<T> left, long leftCount, Node<T> right) {
+		if (left == null) {
+			return right;
+		}
+		if (right == null) {
+			return left;
+		}
+
+		if (left.height > right.height + 1) {
+			attachRight(left, join(left.right, leftCount - left.weight, right));
+			return balance(left);
+		} else if (right.height > left.height + 1) {
+			right.weight += leftCount;
+			attachLeft(right, join(left, leftCount, right.left));
+			return balance(right);
+		}
+
+		Node<T> parent = new Node<T>(leftCount);
+		attachLeft(parent, left);
+		attachRight(parent, right);
+		parent.update();
+		return parent;
+	}
+
+	/**
+	 * Can spans under a node with the specified invariant bounds intersect the
+	 * target span. Bounds are keyed by the document hash of the spans, and spans
+	 * without a document hash are in the home document.
+	 * 
+	 * @param bounds
+	 *            the invariant bounds of the node
+	 * @param target
+	 *            the target span
+	 * @param homeDocumentHash
+	 *            the home document of the stream
+	 * @return false if no span under the node can intersect the target span
+	 */
+	static boolean mayIntersect(InvariantBounds bounds, InvariantSpan target, String homeDocumentHash) {
+		String targetHash = target.getDocumentHash() != null ? target.getDocumentHash() : homeDocumentHash;
+		long targetStart = target.getStart();
+		long targetEnd = targetStart + target.getWidth();
+		if (bounds.intersects(targetHash, targetStart, targetEnd)) {
+			return true;
+		}
+		return (homeDocumentHash == null || homeDocumentHash.equals(targetHash))
+				&& bounds.intersects(null, targetStart, targetEnd);
+	}
+
+	/**
+	 * Rebuilds the tree under the specified node into a perfectly balanced tree
+	 * with the same leaf nodes in the same order.
+	 * 
+	 * @param x
+	 *            the node to rebalance
+	 * @return the root of the rebalanced tree, or null if x is null
+	 */
 	public static <T extends StreamElement> Node<T> rebalance(Node<T> x) {
-		Queue<Node<T>> output = new ArrayDeque<Node<T>>();
-		Queue<Node<T>> input = new ArrayDeque<Node<T>>();
-		collectLeafNodes(x, input);
-
-		while (output.size() != 1) {
-			while (true) {
-				Node<T> n1 = input.poll();
-				if (n1 == null) {
-					break;
-				}
-				Node<T> n2 = input.poll();
-				output.add(RopeUtils.concat(n1, n2));
-				if (n2 == null) {
-					break;
-				}
-			}
-			input = output;
+		if (x == null) {
+			return null;
 		}
-		return output.remove();
+		Queue<Node<T>> leaves = new ArrayDeque<Node<T>>();
+		collectLeafNodes(x, leaves);
+		return rebalance(new ArrayList<>(leaves), 0, leaves.size());
+	}
+
+	private static <T extends StreamElement> Node<T> rebalance(List<Node<T>> leaves, int lo, int hi) {
+		if (hi - lo == 1) {
+			Node<T> leaf = leaves.get(lo);
+			leaf.parent = null;
+			return leaf;
+		}
+		int mid = (lo + hi) >>> 1;
+		return concat(rebalance(leaves, lo, mid), rebalance(leaves, mid, hi));
+	}
+
+	/**
+	 * Rotates the left child of the specified node into its place. The weight of
+	 * the specified node shrinks by the weight of its former left child.
+	 * 
+	 * @param x
+	 *            the node to rotate. Must have a left child.
+	 * @return the new root of the rotated subtree
+	 */
+	private static <T extends StreamElement> Node<T> rotateRight(Node<T> x) {
+		Node<T> y = x.left;
+		y.parent = x.parent;
+		attachLeft(x, y.right);
+		attachRight(y, x);
+		x.weight -= y.weight;
+		x.update();
+		y.update();
+		return y;
+	}
+
+	/**
+	 * Rotates the right child of the specified node into its place. The weight of
+	 * the former right child grows by the weight of the specified node.
+	 * 
+	 * @param x
+	 *            the node to rotate. Must have a right child.
+	 * @return the new root of the rotated subtree
+	 */
+	private static <T extends StreamElement> Node<T> rotateLeft(Node<T> x) {
+		Node<T> y = x.right;
+		y.parent = x.parent;
+		attachRight(x, y.left);
+		attachLeft(y, x);
+		y.weight += x.weight;
+		x.update();
+		y.update();
+		return y;
 	}
 }
@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 
 import org.oulipo.streams.MalformedSpanException;
@@ -66,6 +67,8 @@ public final class RopeVariantStream<T extends StreamElement> implements Variant
 
 	/**
 	 * Constructs a <code>RopeVariantStream</code> with a pre-constructed tree.
+	 * The tree is rebuilt into a height-balanced tree containing the same leaf
+	 * nodes.
 	 * 
 	 * @param homeDocument
 	 *            the home document of invariant spans
@@ -74,7 +77,117 @@ public final class RopeVariantStream<T extends StreamElement> implements Variant
 	 */
 	public RopeVariantStream(String documentHash, Node<T> root) {
 		this.documentHash = documentHash;
-		this.root = root;
+		this.root = RopeUtils.rebalance(root);
+	}
+
+	/**
+	 * Constructs a <code>RopeVariantStream</code> containing the specified stream
+	 * elements. The rope is built balanced in linear time.
+	 * 
+	 * @param documentHash
+	 *            the home document of invariant spans
+	 * @param elements
+	 *            the stream elements in variant order
+	 * @throws MalformedSpanException
+	 *             if any element has a width less than 1
+	 */
+	public RopeVariantStream(String documentHash, List<T> elements) throws MalformedSpanException {
+		this.documentHash = documentHash;
+		putElements(1, elements);
+	}
+
+	/**
+	 * Iterates over the leaf values within a variant range. The iterator descends
+	 * once to the leaf containing the start of the range and then walks to each
+	 * successor leaf through the parent links, so it touches O(log n + k) nodes.
+	 */
+	private final class RangeIterator implements Iterator<T> {
+
+		/**
+		 * End of the range (exclusive)
+		 */
+		private final long hi;
+
+		/**
+		 * Start of the range (inclusive)
+		 */
+		private final long lo;
+
+		/**
+		 * The next leaf node to return or null if there are no more leaves
+		 */
+		private Node<T> next;
+
+		/**
+		 * Variant position of the first character of the next leaf node
+		 */
+		private long position;
+
+		RangeIterator(long lo, long hi) {
+			this.lo = lo;
+			this.hi = hi;
+			if (root == null || lo > characterCount()) {
+				return;
+			}
+			Node<T> x = root;
+			long displacement = 0;
+			while (!x.isLeaf()) {
+				if (lo > displacement + x.weight) {
+					displacement += x.weight;
+					x = x.right;
+				} else {
+					x = x.left;
+				}
+			}
+			next = x;
+			position = displacement + 1;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null && position < hi;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T value = next.value;
+			long width = value.getWidth();
+			long a = Math.max(lo, position);
+			long b = Math.min(hi, position + width);
+			long offset = a - position;
+
+			position += width;
+			next = successor(next);
+
+			if (offset == 0 && b - a == width) {
+				return value;
+			}
+			try {
+				return RopeUtils.clip(value, offset, b - a);
+			} catch (MalformedSpanException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the next leaf node to the right of the specified leaf node
+	 */
+	private static <T extends StreamElement> Node<T> successor(Node<T> x) {
+		while (x.parent != null && x.parent.right == x) {
+			x = x.parent;
+		}
+		if (x.parent == null) {
+			return null;
+		}
+		x = x.parent.right;
+		while (!x.isLeaf()) {
+			x = x.left;
+		}
+		return x;
 	}
 
 	private boolean addOverlay(Overlay link, List<T> overlays) {
@@ -86,11 +199,92 @@ public final class RopeVariantStream<T extends StreamElement> implements Variant
 		return false;
 	}
 
+	/**
+	 * Gets the number of characters in this stream
+	 */
+	private long characterCount() {
+		return root != null ? root.characterCount() : 0;
+	}
+
+	/**
+	 * Merges the specified value into the leaf that ends just before position i,
+	 * or into the leaf that starts at position i, if either can be merged with it.
+	 * If the value merges with both leaves, they are merged into one. Nothing is
+	 * merged if position i falls inside a leaf.
+	 * 
+	 * @return true if the value was merged into a leaf
+	 */
+	private boolean coalesce(long i, T value) throws MalformedSpanException {
+		Node<T> left = null;
+		Node<T> right;
+		if (i == 1) {
+			right = leafAt(1).node;
+		} else {
+			NodeIndex<T> index = leafAt(i - 1);
+			if (index.displacement + index.node.value.getWidth() != i - 1) {
+				return false;
+			}
+			left = index.node;
+			right = successor(left);
+		}
+
+		if (left != null) {
+			T merged = RopeUtils.merge(left.value, value);
+			if (merged != null) {
+				T bridged = right != null ? RopeUtils.merge(merged, right.value) : null;
+				if (bridged != null) {
+					// value fills the gap between its neighbours, so all three become one leaf
+					deleteRange(new VariantSpan(i, right.value.getWidth()));
+					left = leafAt(i - 1).node;
+					merged = bridged;
+				}
+				replaceLeaf(left, merged);
+				return true;
+			}
+		}
+		if (right != null) {
+			T merged = RopeUtils.merge(value, right.value);
+			if (merged != null) {
+				replaceLeaf(right, merged);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Rebuilds the rope, merging all adjacent stream elements that can be merged
+	 */
+	@Override
+	public void compact() throws MalformedSpanException {
+		root = RopeUtils.build(RopeUtils.coalesce(getStreamElements()));
+	}
+
 	@Override
 	public void copy(long characterPosition, VariantSpan variantSpan) throws MalformedSpanException, IOException {
 		putElements(characterPosition, getStreamElements(variantSpan));
 	}
 
+	/**
+	 * Collects the variant spans under node x that intersect the target span, in
+	 * variant order
+	 */
+	private void collectVariantSpans(Node<T> x, long position, InvariantSpan targetSpan,
+			List<VariantSpan> vspans) throws MalformedSpanException {
+		if (x == null || !RopeUtils.mayIntersect(x.invariantBounds(), targetSpan, documentHash)) {
+			return;
+		}
+		if (x.isLeaf()) {
+			VariantSpan vs = RopeUtils.intersection(x.value, position, targetSpan, documentHash);
+			if (vs != null) {
+				vspans.add(vs);
+			}
+			return;
+		}
+		collectVariantSpans(x.left, position, targetSpan, vspans);
+		collectVariantSpans(x.right, position + x.weight, targetSpan, vspans);
+	}
+
 	@Override
 	public void delete(VariantSpan variantSpan) throws MalformedSpanException {
 		if (variantSpan == null) {
@@ -100,45 +294,30 @@ public final class RopeVariantStream<T extends StreamElement> implements Variant
 	}
 
 	/*
-	 * Delete InvariantSpans in the variant span range. This partitions the variant
-	 * span twice. First along the start position of the variant span. Then it takes
-	 * the right half of the partition and splits again at the point
-	 * variantSpan.width + 1.
+	 * Delete InvariantSpans in the variant span range. This splits the rope twice.
+	 * First along the start position of the variant span. Then it takes the right
+	 * half of the split and splits again at the variant span width. The outer
+	 * halves are joined back together into a balanced tree.
 	 * 
 	 * @return returns Node containing deleted portion
 	 * 
 	 */
 	private Node<T> deleteRange(VariantSpan variantSpan) throws MalformedSpanException {
-		NodePartition<T> partI = null;
-
-		if (variantSpan.start == RopeUtils.characterCount(root)) {
-			partI = Partitioner.createNodePartition(variantSpan.start - 1, root);
-			root = partI.left;
-			return partI.right;
+		if (root == null) {
+			return null;
 		}
 
 		/**
 		 * Shift partition index left by one, to push target span to right partition
 		 */
-		partI = Partitioner.createNodePartition(variantSpan.start - 1, root);
+		NodePartition<T> partI = Partitioner.split(variantSpan.start - 1, root);
 
 		if (partI.right == null) {
 			return null;
 		}
 
-		NodePartition<T> partJ = Partitioner.createNodePartition(variantSpan.width, partI.right);
-
-		if (partI.left == null && partJ.right == null) {
-			root = null;
-			return partI.right;
-		} else if (partI.left == null) {
-			root = partJ.right;
-		} else if (partJ.right == null) {
-			root = partI.left;
-		} else {
-			root = RopeUtils.concat(partI.left, partJ.right);
-		}
-
+		NodePartition<T> partJ = Partitioner.split(variantSpan.width, partI.right);
+		root = RopeUtils.join(partI.left, partJ.right);
 		return partJ.left;
 	}
 
@@ -172,58 +351,29 @@ public final class RopeVariantStream<T extends StreamElement> implements Variant
 		return elements;
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public List<T> getStreamElements(VariantSpan variantSpan) throws MalformedSpanException {
 		if (root == null) {
 			throw new IllegalStateException("Stream is empty");
 		}
-		Node<T> loNode = RopeUtils.index(variantSpan.start, root, 0).node;
-		Node<T> searchNode = RopeUtils.findSearchNode(loNode, variantSpan.start + variantSpan.width - 1, root);
-
-		InvariantSpanCollector<T> collector = new InvariantSpanCollector<T>(
-				RopeUtils.addWeightsOfRightLeaningParentNodes(searchNode));
-		collector.collect(searchNode, variantSpan.start, variantSpan.start + variantSpan.width);
-
 		List<T> elements = new ArrayList<>();
-
-		Iterator<T> it = collector.iterator();
+		Iterator<T> it = iterator(variantSpan);
 		while (it.hasNext()) {
-			T is = it.next();
-			elements.add(is);
+			elements.add((T) it.next().copy());
 		}
 		return elements;
 	}
 
+	/**
+	 * Gets the variant spans that intersect the target span. Each node caches the
+	 * range of invariant positions under it, so subtrees that can't contain the
+	 * target span are skipped and the search doesn't scan the whole stream.
+	 */
 	@Override
 	public List<VariantSpan> getVariantSpans(InvariantSpan targetSpan) throws MalformedSpanException {
-		// TODO: scans very inefficient
-		long index = 1;
 		List<VariantSpan> vspans = new ArrayList<>();
-		List<T> spans = getStreamElements();
-		for (int i = 0; i < spans.size(); i++) {
-			T element = spans.get(i);
-			long targetStart = targetSpan.getStart();
-			long targetEnd = targetStart + targetSpan.getWidth();
-
-			if (!(element instanceof InvariantSpan)) {
-				// InvariantMedia media = (InvariantMedia) element;
-				continue;
-			}
-			InvariantSpan span = (InvariantSpan) element;
-			long start = span.getStart();
-			long end = start + span.getWidth();
-
-			if (RopeUtils.intersects(start, end, targetStart, targetEnd)) {
-				long a = Math.max(0, targetStart - start);
-				long b = Math.max(0, end - targetEnd);
-
-				VariantSpan vs = new VariantSpan(index + a, span.getWidth() - b - a);
-				vs.documentHash = documentHash;// TODO: transcluded
-				vspans.add(vs);
-			}
-
-			index += span.getWidth();
-		}
+		collectVariantSpans(root, 1, targetSpan, vspans);
 		return vspans;
 	}
 
@@ -232,16 +382,25 @@ public final class RopeVariantStream<T extends StreamElement> implements Variant
 		if (root == null) {
 			throw new IllegalStateException("Stream is empty");
 		}
+		if (characterPosition > characterCount()) {
+			throw new IndexOutOfBoundsException("Can't find node at position =  " + characterPosition);
+		}
 		return RopeUtils.index(characterPosition, root, 0).node.value;
 	}
 
+	@Override
+	public Iterator<T> iterator(VariantSpan variantSpan) {
+		return new RangeIterator(variantSpan.start, variantSpan.start + variantSpan.width);
+	}
+
 	/**
 	 * Inserts specified node x at the specified position 'i'. If 'i' is greater
-	 * than the number of characters in the rope, then the node is concatenated to
-	 * the root node.
+	 * than the number of characters in the rope, then the node is joined to the
+	 * root node.
 	 * 
-	 * If i is less than the number of characters in the rope, then two partition
-	 * and two concat operations are performed as part of the insert.
+	 * If i is less than the number of characters in the rope, then a split and two
+	 * join operations are performed as part of the insert. The rope stays height
+	 * balanced after every insert.
 	 * 
 	 * @param i
 	 *            the position to insert to
@@ -259,7 +418,7 @@ public final class RopeVariantStream<T extends StreamElement> implements Variant
 		if (x == null) {
 			throw new IllegalStateException("Inserting a null node");
 		}
-		long charCount = RopeUtils.characterCount(root);
+		long charCount = characterCount();
 		if (i > charCount + 1) {
 			throw new IndexOutOfBoundsException("Attempting to insert in illegal range: Current Max = " + charCount
 					+ ", Attempted insert = " + i + " ,Node" + x);
@@ -269,22 +428,41 @@ public final class RopeVariantStream<T extends StreamElement> implements Variant
 			if (i != 1) {
 				throw new IllegalArgumentException("First node must be inserted at position 1");
 			}
-			if (x.value == null) {
+			if (x.characterCount() < 1) {
 				throw new IllegalArgumentException("First inserted node must have a span value");
 			}
 			if (x.weight < 1) {
 				throw new IndexOutOfBoundsException("Attempting to assign root with weight less than 1");
 			}
 			root = x;
+		} else if (x.isLeaf() && coalesce(i, x.value)) {
+			return;
 		} else if (i == charCount + 1) {
-			root = RopeUtils.concat(root, x);
+			root = RopeUtils.join(root, x);
 		} else {
-			NodePartition<T> partition = Partitioner.createNodePartition(i - 1, root);
-			Node<T> tmp = partition.left != null ? RopeUtils.concat(partition.left, x) : x;
-			root = (partition.right == null) ? tmp : RopeUtils.concat(tmp, partition.right);
+			NodePartition<T> partition = Partitioner.split(i - 1, root);
+			root = RopeUtils.join(RopeUtils.join(partition.left, x), partition.right);
 		}
 	}
 
+	/**
+	 * Gets the leaf node containing the specified character position and the
+	 * number of characters to the left of that leaf
+	 */
+	private NodeIndex<T> leafAt(long characterPosition) {
+		Node<T> x = root;
+		long displacement = 0;
+		while (!x.isLeaf()) {
+			if (characterPosition > displacement + x.weight) {
+				displacement += x.weight;
+				x = x.right;
+			} else {
+				x = x.left;
+			}
+		}
+		return new NodeIndex<T>(x, displacement);
+	}
+
 	@Override
 	public void move(long to, VariantSpan v1) throws MalformedSpanException {
 		Node<T> deletedRange = deleteRange(v1);
@@ -311,15 +489,76 @@ public final class RopeVariantStream<T extends StreamElement> implements Variant
 		insert(characterPosition, new Node<T>(val));
 	}
 
+	/**
+	 * Puts the stream elements at the specified position. The elements are built
+	 * into a balanced tree in linear time, which is then inserted with a single
+	 * split and join, instead of inserting each element separately.
+	 */
+	@Override
+	public void putElements(long characterPosition, List<T> streamElements) throws MalformedSpanException {
+		if (characterPosition < 1) {
+			throw new IndexOutOfBoundsException("put position must be greater than 0");
+		}
+		for (T val : streamElements) {
+			if (val == null) {
+				throw new IllegalArgumentException("invariant span is null");
+			}
+			if (val.getWidth() < 1) {
+				throw new MalformedSpanException("invariant span must have a width greater than 0");
+			}
+		}
+		if (!streamElements.isEmpty()) {
+			insert(characterPosition, RopeUtils.build(RopeUtils.coalesce(streamElements)));
+		}
+	}
+
+	/**
+	 * Rebuilds the rope into a perfectly balanced tree. Edits already keep the rope
+	 * height balanced, so calling this method is never required.
+	 */
 	@Override
 	public void rebalance() throws MalformedSpanException {
 		root = RopeUtils.rebalance(root);
 	}
 
+	/**
+	 * Replaces the specified leaf node with a new leaf node holding the specified
+	 * value. The weights of the parent nodes are adjusted to the width of the new
+	 * value. The height of the tree doesn't change.
+	 */
+	private void replaceLeaf(Node<T> leaf, T value) {
+		Node<T> x = new Node<T>(value);
+		Node<T> parent = leaf.parent;
+		leaf.parent = null;
+		x.parent = parent;
+		if (parent == null) {
+			root = x;
+			return;
+		}
+
+		if (parent.left == leaf) {
+			parent.left = x;
+		} else {
+			parent.right = x;
+		}
+		long delta = x.weight - leaf.weight;
+		for (Node<T> child = x, p = parent; p != null; child = p, p = p.parent) {
+			if (p.left == child) {
+				p.weight += delta;
+			}
+		}
+		parent.invalidateCharacterCount();
+	}
+
 	public void save(OutputStream os) throws MalformedSpanException, IOException {
 		mapper.writeValue(os, Lists.newArrayList(getAllLeafNodes()));
 	}
 
+	@Override
+	public int size() {
+		return root != null ? root.leafCount() : 0;
+	}
+
 	@Override
 	public void swap(VariantSpan v1, VariantSpan v2) throws MalformedSpanException {
 		// assume v1 < v2, no overlap
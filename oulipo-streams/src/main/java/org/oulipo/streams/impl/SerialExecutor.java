@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on the threads of
+ * another executor. Many serial executors can share the threads of one
+ * executor, so each document can have its own queue of edits without a thread
+ * of its own.
+ */
+final class SerialExecutor implements Executor {
+
+	/**
+	 * The task that is running or about to run, or null if the queue is idle
+	 */
+	private Runnable active;
+
+	private final Executor executor;
+
+	/**
+	 * Thread running the current task
+	 */
+	private volatile Thread runner;
+
+	private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public synchronized void execute(Runnable task) {
+		tasks.add(() -> {
+			runner = Thread.currentThread();
+			try {
+				task.run();
+			} finally {
+				runner = null;
+				scheduleNext();
+			}
+		});
+		if (active == null) {
+			scheduleNext();
+		}
+	}
+
+	/**
+	 * Is the calling thread running a task of this executor
+	 * 
+	 * @return true if called from a task of this executor
+	 */
+	boolean inTask() {
+		return runner == Thread.currentThread();
+	}
+
+	private synchronized void scheduleNext() {
+		active = tasks.poll();
+		if (active != null) {
+			executor.execute(active);
+		}
+	}
+}
@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.overlays.Overlay;
+import org.oulipo.streams.types.Invariant;
+import org.oulipo.streams.types.InvariantMedia;
+import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.OverlayMedia;
+import org.oulipo.streams.types.OverlayStream;
+import org.oulipo.streams.types.StreamElement;
+
+/**
+ * Reads and writes snapshots of the elements of variant streams in a compact
+ * binary format.
+ * 
+ * A snapshot starts with a header of magic bytes, a version, the kind of stream
+ * and a sequence number, which a journal uses to tell which of its ops the
+ * snapshot holds. The header is followed by a table of the strings used by the
+ * elements, such as document hashes and tags, which elements refer to by index.
+ * A snapshot of overlays then has a dictionary of the distinct overlay sets,
+ * which elements also refer to by index. Last come the elements themselves.
+ * Numbers are written as variable length integers. The start of an invariant
+ * span is written as the difference from the end of the previous span, which
+ * is 0 for text that was typed in order.
+ * 
+ * Snapshots are written to a temporary file that then replaces the snapshot
+ * file, so a crash leaves either the old or the new snapshot.
+ */
+final class SnapshotCodec {
+
+	/**
+	 * Writes the body of a snapshot
+	 */
+	@FunctionalInterface
+	private interface Body {
+
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * The elements and sequence number of a snapshot
+	 */
+	static final class Snapshot<T extends StreamElement> {
+
+		final List<T> elements;
+
+		final long sequence;
+
+		Snapshot(List<T> elements, long sequence) {
+			this.elements = elements;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Kind of a snapshot of an invariant variant stream
+	 */
+	static final byte INVARIANTS = 0x0;
+
+	static final byte[] MAGIC = DatatypeConverter.parseHexBinary("dacec0de");
+
+	/**
+	 * Kind of a snapshot of an overlay variant stream
+	 */
+	static final byte OVERLAYS = 0x1;
+
+	private static final short VERSION = 0;
+
+	private static <K> int intern(Map<K, Integer> table, K key) {
+		Integer index = table.get(key);
+		if (index == null) {
+			index = table.size();
+			table.put(key, index);
+		}
+		return index;
+	}
+
+	private static DataInputStream open(File file, byte kind, long[] sequence) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException("Not a snapshot: " + file);
+			}
+			short version = in.readShort();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version: " + version);
+			}
+			byte k = in.readByte();
+			if (k != kind) {
+				throw new IOException("Wrong kind of snapshot: expected " + kind + ", found " + k);
+			}
+			sequence[0] = in.readLong();
+			return in;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads a snapshot of an invariant variant stream
+	 * 
+	 * @param file
+	 *            the snapshot file
+	 * @return the elements and sequence number of the snapshot
+	 * @throws IOException
+	 *             if the file isn't a snapshot of invariants or is truncated
+	 * @throws MalformedSpanException
+	 *             if an element is malformed
+	 */
+	static Snapshot<Invariant> readInvariants(File file) throws IOException, MalformedSpanException {
+		long[] sequence = new long[1];
+		try (DataInputStream in = open(file, INVARIANTS, sequence)) {
+			String[] strings = readStrings(in);
+			int count = readCount(in);
+			List<Invariant> elements = new ArrayList<>(count);
+			long end = 0;
+			for (int i = 0; i < count; i++) {
+				byte type = in.readByte();
+				if (type == StreamElement.SPAN) {
+					String hash = strings[readIndex(in, strings.length)];
+					long start = end + unzigzag(readVarLong(in));
+					long width = readVarLong(in);
+					elements.add(new InvariantSpan(start, width, hash));
+					end = start + width;
+				} else if (type == StreamElement.SPAN_MEDIA) {
+					elements.add(new InvariantMedia(strings[readIndex(in, strings.length)]));
+				} else {
+					throw new IOException("Unknown invariant type: " + type);
+				}
+			}
+			return new Snapshot<>(elements, sequence[0]);
+		}
+	}
+
+	private static int readCount(DataInput in) throws IOException {
+		long count = readVarLong(in);
+		if (count > Integer.MAX_VALUE) {
+			throw new IOException("Count too large: " + count);
+		}
+		return (int) count;
+	}
+
+	private static int readIndex(DataInput in, int size) throws IOException {
+		long index = readVarLong(in);
+		if (index >= size) {
+			throw new IOException("Index out of range: " + index + ", size = " + size);
+		}
+		return (int) index;
+	}
+
+	/**
+	 * Reads a snapshot of an overlay variant stream
+	 * 
+	 * @param file
+	 *            the snapshot file
+	 * @return the elements and sequence number of the snapshot
+	 * @throws IOException
+	 *             if the file isn't a snapshot of overlays or is truncated
+	 * @throws MalformedSpanException
+	 *             if an element is malformed
+	 */
+	static Snapshot<OverlayStream> readOverlays(File file) throws IOException, MalformedSpanException {
+		long[] sequence = new long[1];
+		try (DataInputStream in = open(file, OVERLAYS, sequence)) {
+			String[] strings = readStrings(in);
+
+			int setCount = readCount(in);
+			List<Set<Overlay>> sets = new ArrayList<>(setCount);
+			for (int i = 0; i < setCount; i++) {
+				int size = readCount(in);
+				Set<Overlay> set = new HashSet<>();
+				for (int j = 0; j < size; j++) {
+					byte[] encoded = new byte[readCount(in)];
+					in.readFully(encoded);
+					set.add(Overlay.decode(encoded));
+				}
+				sets.add(set);
+			}
+
+			int count = readCount(in);
+			List<OverlayStream> elements = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				byte type = in.readByte();
+				OverlayStream element;
+				if (type == StreamElement.OVERLAY) {
+					long width = readVarLong(in);
+					element = new OverlayStream(width, readSet(in, sets));
+				} else if (type == StreamElement.OVERLAY_MEDIA) {
+					String hash = strings[readIndex(in, strings.length)];
+					element = new OverlayMedia(hash, readSet(in, sets));
+				} else {
+					throw new IOException("Unknown overlay type: " + type);
+				}
+				element.tag = strings[readIndex(in, strings.length)];
+				elements.add(element);
+			}
+			return new Snapshot<>(elements, sequence[0]);
+		}
+	}
+
+	/**
+	 * Reads the index of an overlay set and returns a copy of the set, since
+	 * overlay streams modify their sets
+	 */
+	private static Set<Overlay> readSet(DataInput in, List<Set<Overlay>> sets) throws IOException {
+		int index = readIndex(in, sets.size() + 1);
+		return index == 0 ? null : new HashSet<>(sets.get(index - 1));
+	}
+
+	private static String[] readStrings(DataInput in) throws IOException {
+		String[] strings = new String[readCount(in)];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = in.readBoolean() ? in.readUTF() : null;
+		}
+		return strings;
+	}
+
+	/**
+	 * Reads an unsigned variable length integer, 7 bits per byte with the lowest
+	 * bits first
+	 */
+	static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes the header and the elements to a temporary file, which then replaces
+	 * the specified file
+	 */
+	private static void write(File file, byte kind, long sequence, Body body) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+			out.write(MAGIC);
+			out.writeShort(VERSION);
+			out.writeByte(kind);
+			out.writeLong(sequence);
+			body.write(out);
+			out.flush();
+			fos.getFD().sync();
+		}
+
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of an invariant variant stream
+	 * 
+	 * @param file
+	 *            the snapshot file
+	 * @param elements
+	 *            the elements of the stream. Each must be an
+	 *            <code>InvariantSpan</code> or <code>InvariantMedia</code>.
+	 * @param sequence
+	 *            the sequence number of the snapshot
+	 * @throws IOException
+	 *             if the file can't be written or an element isn't an invariant
+	 */
+	static void writeInvariants(File file, List<? extends StreamElement> elements, long sequence)
+			throws IOException {
+		write(file, INVARIANTS, sequence, out -> {
+			Map<String, Integer> strings = new HashMap<>();
+			int[] hashes = new int[elements.size()];
+			for (int i = 0; i < hashes.length; i++) {
+				StreamElement element = elements.get(i);
+				if (element instanceof InvariantSpan) {
+					hashes[i] = intern(strings, ((InvariantSpan) element).getDocumentHash());
+				} else if (element instanceof InvariantMedia) {
+					hashes[i] = intern(strings, ((InvariantMedia) element).hash);
+				} else {
+					throw new IOException("Not an invariant: " + element);
+				}
+			}
+			writeStrings(out, strings);
+
+			writeVarLong(out, elements.size());
+			long end = 0;
+			for (int i = 0; i < hashes.length; i++) {
+				StreamElement element = elements.get(i);
+				if (element instanceof InvariantSpan) {
+					InvariantSpan span = (InvariantSpan) element;
+					out.writeByte(StreamElement.SPAN);
+					writeVarLong(out, hashes[i]);
+					writeVarLong(out, zigzag(span.getStart() - end));
+					writeVarLong(out, span.getWidth());
+					end = span.getStart() + span.getWidth();
+				} else {
+					out.writeByte(StreamElement.SPAN_MEDIA);
+					writeVarLong(out, hashes[i]);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes a snapshot of an overlay variant stream
+	 * 
+	 * @param file
+	 *            the snapshot file
+	 * @param elements
+	 *            the elements of the stream. Each must be an
+	 *            <code>OverlayStream</code>.
+	 * @param sequence
+	 *            the sequence number of the snapshot
+	 * @throws IOException
+	 *             if the file can't be written or an element isn't an overlay
+	 */
+	static void writeOverlays(File file, List<? extends StreamElement> elements, long sequence) throws IOException {
+		write(file, OVERLAYS, sequence, out -> {
+			Map<String, Integer> strings = new HashMap<>();
+			Map<List<ByteBuffer>, Integer> sets = new HashMap<>();
+			int[] setIndexes = new int[elements.size()];
+			for (int i = 0; i < setIndexes.length; i++) {
+				StreamElement element = elements.get(i);
+				if (!(element instanceof OverlayStream)) {
+					throw new IOException("Not an overlay: " + element);
+				}
+				OverlayStream overlay = (OverlayStream) element;
+				if (overlay instanceof OverlayMedia) {
+					intern(strings, ((OverlayMedia) overlay).hash);
+				}
+				intern(strings, overlay.tag);
+
+				if (overlay.linkTypes != null) {
+					List<ByteBuffer> encoded = new ArrayList<>(overlay.linkTypes.size());
+					for (Overlay link : overlay.linkTypes) {
+						encoded.add(ByteBuffer.wrap(link.encode()));
+					}
+					Collections.sort(encoded);
+					setIndexes[i] = intern(sets, encoded) + 1;
+				}
+			}
+			writeStrings(out, strings);
+
+			List<Map.Entry<List<ByteBuffer>, Integer>> dictionary = new ArrayList<>(sets.entrySet());
+			dictionary.sort(Map.Entry.comparingByValue());
+			writeVarLong(out, dictionary.size());
+			for (Map.Entry<List<ByteBuffer>, Integer> entry : dictionary) {
+				List<ByteBuffer> set = entry.getKey();
+				writeVarLong(out, set.size());
+				for (ByteBuffer encoded : set) {
+					writeVarLong(out, encoded.remaining());
+					out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+				}
+			}
+
+			writeVarLong(out, elements.size());
+			for (int i = 0; i < setIndexes.length; i++) {
+				OverlayStream overlay = (OverlayStream) elements.get(i);
+				if (overlay instanceof OverlayMedia) {
+					out.writeByte(StreamElement.OVERLAY_MEDIA);
+					writeVarLong(out, strings.get(((OverlayMedia) overlay).hash));
+				} else {
+					out.writeByte(StreamElement.OVERLAY);
+					writeVarLong(out, overlay.getWidth());
+				}
+				writeVarLong(out, setIndexes[i]);
+				writeVarLong(out, strings.get(overlay.tag));
+			}
+		});
+	}
+
+	private static void writeStrings(DataOutput out, Map<String, Integer> strings) throws IOException {
+		String[] table = new String[strings.size()];
+		for (Map.Entry<String, Integer> entry : strings.entrySet()) {
+			table[entry.getValue()] = entry.getKey();
+		}
+		writeVarLong(out, table.length);
+		for (String string : table) {
+			out.writeBoolean(string != null);
+			if (string != null) {
+				out.writeUTF(string);
+			}
+		}
+	}
+
+	/**
+	 * Writes an unsigned variable length integer, 7 bits per byte with the lowest
+	 * bits first
+	 */
+	static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private SnapshotCodec() {
+	}
+}
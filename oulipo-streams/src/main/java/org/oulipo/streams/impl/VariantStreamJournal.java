@@ -0,0 +1,551 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.VariantStream;
+import org.oulipo.streams.opcodes.CopyVariantOp;
+import org.oulipo.streams.opcodes.DeleteVariantOp;
+import org.oulipo.streams.opcodes.MoveVariantOp;
+import org.oulipo.streams.opcodes.Op;
+import org.oulipo.streams.opcodes.PutInvariantMediaOp;
+import org.oulipo.streams.opcodes.PutInvariantSpanOp;
+import org.oulipo.streams.opcodes.SwapVariantOp;
+import org.oulipo.streams.types.Invariant;
+import org.oulipo.streams.types.InvariantMedia;
+import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.StreamElement;
+
+/**
+ * An append-only journal of the edits to an invariant variant stream. Each edit
+ * is recorded as an <code>Op</code>, encoded as in a <code>DocumentFile</code>,
+ * so saving an edit costs in proportion to the edit rather than to the
+ * document.
+ * 
+ * The journal has a header of magic bytes, a version and a sequence number,
+ * followed by records. Each record is its length, type and payload, followed
+ * by a CRC32 of the type and payload. A string record adds a document hash to
+ * the string pool of the file, which ops refer to by index. An op record holds
+ * an encoded op.
+ * 
+ * The snapshot holds the elements of the stream, written by
+ * <code>SnapshotCodec</code>, and its sequence number is the number of ops
+ * recorded when it was taken. The journal holds the ops recorded after its own
+ * sequence number. Once the journal grows past <code>snapshotBytes</code>, the
+ * next flush writes a new snapshot and clears the journal. Ops in the journal that the snapshot already holds, left by a
+ * crash between writing the snapshot and clearing the journal, are skipped on
+ * load. A record that was only partly written is removed.
+ * 
+ * The recording methods and <code>drain</code> must be called while holding
+ * the write lock of the stream. Only one thread may <code>write</code>.
+ */
+final class VariantStreamJournal {
+
+	/**
+	 * The records drained from the journal, or the elements of a snapshot
+	 */
+	static final class Flush {
+
+		/**
+		 * The elements of the stream, if a snapshot is to be written, otherwise null
+		 */
+		final List<? extends StreamElement> elements;
+
+		/**
+		 * The records to append to the journal
+		 */
+		final byte[] records;
+
+		/**
+		 * The number of ops recorded, including those in this flush
+		 */
+		final long sequence;
+
+		Flush(List<? extends StreamElement> elements, byte[] records, long sequence) {
+			this.elements = elements;
+			this.records = records;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Reads the records of a journal or snapshot file
+	 */
+	private static final class RecordReader implements AutoCloseable {
+
+		private final DataInputStream in;
+
+		/**
+		 * Offset of the end of the last complete record
+		 */
+		long end;
+
+		final Map<Integer, String> pool = new HashMap<>();
+
+		/**
+		 * Sequence number of the header
+		 */
+		final long sequence;
+
+		private final long size;
+
+		RecordReader(File file) throws IOException {
+			size = file.length();
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			byte[] magic = new byte[MAGIC.length];
+			try {
+				in.readFully(magic);
+				if (!Arrays.equals(magic, MAGIC)) {
+					throw new IOException("Not a journal: " + file);
+				}
+				short version = in.readShort();
+				if (version != VERSION) {
+					throw new IOException("Unsupported journal version: " + version);
+				}
+				sequence = in.readLong();
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			end = HEADER_LENGTH;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Reads the next op, adding any strings before it to the pool
+		 * 
+		 * @return the next op, or null after the last complete record
+		 */
+		Op next() throws IOException, MalformedSpanException {
+			while (true) {
+				byte[] payload;
+				byte type;
+				try {
+					int length = in.readInt();
+					if (length < 1 || end + length + 8 > size) {
+						return null;
+					}
+					type = in.readByte();
+					payload = new byte[length - 1];
+					in.readFully(payload);
+					if (in.readInt() != checksum(type, payload)) {
+						return null;
+					}
+					end += length + 8;
+				} catch (EOFException e) {
+					return null;
+				}
+
+				DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+				if (type == RECORD_STRING) {
+					int index = dis.readInt();
+					pool.put(index, dis.readBoolean() ? dis.readUTF() : null);
+				} else if (type == RECORD_OP) {
+					return decode(dis);
+				} else {
+					throw new IOException("Unknown journal record type: " + type);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Default size of the journal that causes a snapshot to be written
+	 */
+	static final long DEFAULT_SNAPSHOT_BYTES = 1 << 20;
+
+	private static final int HEADER_LENGTH = 14;
+
+	static final byte[] MAGIC = DatatypeConverter.parseHexBinary("dace0a1e");
+
+	private static final byte RECORD_OP = 0x2;
+
+	private static final byte RECORD_STRING = 0x1;
+
+	private static final short VERSION = 0;
+
+	private static void apply(Op op, Map<Integer, String> pool, VariantStream<Invariant> stream)
+			throws MalformedSpanException, IOException {
+		switch (op.getCode()) {
+		case Op.COPY:
+			CopyVariantOp cvo = (CopyVariantOp) op;
+			stream.copy(cvo.to, cvo.variantSpan);
+			break;
+		case Op.DELETE:
+			stream.delete(((DeleteVariantOp) op).variantSpan);
+			break;
+		case Op.MOVE:
+			MoveVariantOp mvo = (MoveVariantOp) op;
+			stream.move(mvo.to, mvo.variantSpan);
+			break;
+		case Op.PUT_INVARIANT_MEDIA:
+		case Op.PUT_INVARIANT_SPAN:
+			stream.put(putPosition(op), element(op, pool));
+			break;
+		case Op.SWAP:
+			SwapVariantOp svo = (SwapVariantOp) op;
+			stream.swap(svo.v1, svo.v2);
+			break;
+		}
+	}
+
+	private static int checksum(byte type, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	private static Op decode(DataInputStream dis) throws IOException, MalformedSpanException {
+		byte code = dis.readByte();
+		switch (code) {
+		case Op.COPY:
+			return new CopyVariantOp(dis);
+		case Op.DELETE:
+			return new DeleteVariantOp(dis);
+		case Op.MOVE:
+			return new MoveVariantOp(dis);
+		case Op.PUT_INVARIANT_MEDIA:
+			return new PutInvariantMediaOp(dis);
+		case Op.PUT_INVARIANT_SPAN:
+			return new PutInvariantSpanOp(dis);
+		case Op.SWAP:
+			return new SwapVariantOp(dis);
+		default:
+			throw new IOException("Unsupported op in journal: " + code);
+		}
+	}
+
+	private static Invariant element(Op op, Map<Integer, String> pool) throws IOException, MalformedSpanException {
+		if (op.getCode() == Op.PUT_INVARIANT_SPAN) {
+			PutInvariantSpanOp pso = (PutInvariantSpanOp) op;
+			return new InvariantSpan(pso.invariantStart, pso.width, string(pool, pso.ripIndex));
+		}
+		return new InvariantMedia(string(pool, ((PutInvariantMediaOp) op).ripIndex));
+	}
+
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Loads the specified stream from its snapshot and journal files, and opens
+	 * the journal for recording. If neither file exists, the stream is left empty
+	 * and an empty journal is created.
+	 * 
+	 * @param file
+	 *            the journal file
+	 * @param snapshotFile
+	 *            the snapshot file
+	 * @param snapshotBytes
+	 *            the size of the journal that causes a snapshot to be written
+	 * @param stream
+	 *            the empty stream to load
+	 * @return the journal
+	 * @throws IOException
+	 *             if the files can't be read, or the journal doesn't follow the
+	 *             snapshot
+	 * @throws MalformedSpanException
+	 *             if an op can't be applied to the stream
+	 */
+	static VariantStreamJournal open(File file, File snapshotFile, long snapshotBytes,
+			VariantStream<Invariant> stream) throws IOException, MalformedSpanException {
+		long snapshotSequence = 0;
+		if (snapshotFile.exists()) {
+			SnapshotCodec.Snapshot<Invariant> snapshot = SnapshotCodec.readInvariants(snapshotFile);
+			stream.load(snapshot.elements);
+			snapshotSequence = snapshot.sequence;
+		}
+
+		VariantStreamJournal journal = new VariantStreamJournal(file, snapshotFile, snapshotBytes);
+		journal.sequence = snapshotSequence;
+		if (!file.exists() || file.length() < HEADER_LENGTH) {
+			journal.reset(snapshotSequence);
+			return journal;
+		}
+
+		long end;
+		try (RecordReader reader = new RecordReader(file)) {
+			if (reader.sequence > snapshotSequence) {
+				throw new IOException("Journal starts at op " + reader.sequence + " but snapshot ends at op "
+						+ snapshotSequence + ": " + file);
+			}
+			long sequence = reader.sequence;
+			for (Op op = reader.next(); op != null; op = reader.next()) {
+				if (sequence++ >= snapshotSequence) {
+					apply(op, reader.pool, stream);
+				}
+			}
+			end = reader.end;
+			journal.sequence = sequence;
+			for (Map.Entry<Integer, String> entry : reader.pool.entrySet()) {
+				journal.pool.put(entry.getValue(), entry.getKey());
+			}
+		}
+
+		if (end < file.length()) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(end);
+			}
+		}
+		journal.journalBytes = end;
+		return journal;
+	}
+
+	private static long putPosition(Op op) {
+		return op.getCode() == Op.PUT_INVARIANT_SPAN ? ((PutInvariantSpanOp) op).to : ((PutInvariantMediaOp) op).to;
+	}
+
+	private static String string(Map<Integer, String> pool, int index) throws IOException {
+		if (!pool.containsKey(index)) {
+			throw new IOException("No string in journal pool at index " + index);
+		}
+		return pool.get(index);
+	}
+
+	/**
+	 * Encodes a string record, which adds a document hash to the string pool. The
+	 * hash may be null.
+	 */
+	private static byte[] stringPayload(int index, String hash) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try (DataOutputStream dos = new DataOutputStream(os)) {
+			dos.writeInt(index);
+			dos.writeBoolean(hash != null);
+			if (hash != null) {
+				dos.writeUTF(hash);
+			}
+		}
+		return os.toByteArray();
+	}
+
+	private static void writeHeader(DataOutputStream out, long sequence) throws IOException {
+		out.write(MAGIC);
+		out.writeShort(VERSION);
+		out.writeLong(sequence);
+	}
+
+	private static void writeRecord(DataOutputStream out, byte type, byte[] payload) throws IOException {
+		out.writeInt(payload.length + 1);
+		out.writeByte(type);
+		out.write(payload);
+		out.writeInt(checksum(type, payload));
+	}
+
+	private final File file;
+
+	/**
+	 * Number of bytes in the journal file and the pending records
+	 */
+	private long journalBytes;
+
+	/**
+	 * Records that have not been drained
+	 */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	private final DataOutputStream pendingOut = new DataOutputStream(pending);
+
+	/**
+	 * String pool of the journal file and the pending records
+	 */
+	private final Map<String, Integer> pool = new HashMap<>();
+
+	/**
+	 * Number of ops recorded
+	 */
+	private long sequence;
+
+	private final long snapshotBytes;
+
+	/**
+	 * Is a snapshot needed, because the stream was changed in a way that can't be
+	 * recorded or a write failed
+	 */
+	private volatile boolean snapshotDue;
+
+	private final File snapshotFile;
+
+	private VariantStreamJournal(File file, File snapshotFile, long snapshotBytes) {
+		this.file = file;
+		this.snapshotFile = snapshotFile;
+		this.snapshotBytes = snapshotBytes;
+	}
+
+	void copy(long to, VariantSpan variantSpan) throws IOException {
+		record(new CopyVariantOp(to, variantSpan));
+	}
+
+	void delete(VariantSpan variantSpan) throws IOException {
+		record(new DeleteVariantOp(variantSpan));
+	}
+
+	/**
+	 * Takes the pending records, or the elements of the stream if a snapshot is
+	 * due. Must be called while holding the write lock of the stream.
+	 * 
+	 * @param stream
+	 *            the stream this journal records
+	 * @return the records or elements to write
+	 * @throws MalformedSpanException
+	 */
+	Flush drain(VariantStream<?> stream) throws MalformedSpanException {
+		if (snapshotDue || journalBytes > snapshotBytes) {
+			snapshotDue = false;
+			pending.reset();
+			pool.clear();
+			journalBytes = HEADER_LENGTH;
+			return new Flush(stream.getStreamElements(), null, sequence);
+		}
+		byte[] records = pending.toByteArray();
+		pending.reset();
+		return new Flush(null, records, sequence);
+	}
+
+	/**
+	 * Marks the journal as not matching the stream, so that the next flush writes
+	 * a snapshot
+	 */
+	void invalidate() {
+		snapshotDue = true;
+	}
+
+	private int intern(String hash) throws IOException {
+		Integer index = pool.get(hash);
+		if (index == null) {
+			index = pool.size();
+			pool.put(hash, index);
+
+			writePending(RECORD_STRING, stringPayload(index, hash));
+		}
+		return index;
+	}
+
+	void move(long to, VariantSpan variantSpan) throws IOException {
+		record(new MoveVariantOp(to, variantSpan));
+	}
+
+	/**
+	 * Records a put of the specified element. An element that isn't an invariant
+	 * can't be recorded, so it invalidates the journal instead.
+	 */
+	void put(long to, StreamElement element) throws IOException {
+		if (element instanceof InvariantSpan) {
+			InvariantSpan span = (InvariantSpan) element;
+			int index = intern(span.getDocumentHash());
+			record(new PutInvariantSpanOp(to, span.getStart(), span.getWidth(), index));
+		} else if (element instanceof InvariantMedia) {
+			record(new PutInvariantMediaOp(to, intern(((InvariantMedia) element).hash)));
+		} else {
+			invalidate();
+		}
+	}
+
+	private void record(Op op) throws IOException {
+		writePending(RECORD_OP, op.encode());
+		sequence++;
+	}
+
+	/**
+	 * Replaces the journal file with an empty journal that follows the specified
+	 * sequence number
+	 */
+	private void reset(long sequence) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temp)) {
+			DataOutputStream out = new DataOutputStream(fos);
+			writeHeader(out, sequence);
+			out.flush();
+			fos.getFD().sync();
+		}
+		move(temp, file);
+		journalBytes = HEADER_LENGTH;
+	}
+
+	void swap(VariantSpan v1, VariantSpan v2) throws IOException {
+		record(new SwapVariantOp(v1, v2));
+	}
+
+	/**
+	 * Writes the drained records to the end of the journal, or writes the snapshot
+	 * and clears the journal. Only called by one thread. If the write fails, the
+	 * next flush writes a snapshot.
+	 * 
+	 * @param flush
+	 *            the records or elements to write
+	 * @throws IOException
+	 *             if the journal or snapshot can't be written
+	 */
+	void write(Flush flush) throws IOException {
+		try {
+			if (flush.elements != null) {
+				SnapshotCodec.writeInvariants(snapshotFile, flush.elements, flush.sequence);
+				reset(flush.sequence);
+			} else if (flush.records.length > 0) {
+				try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+					ByteBuffer buf = ByteBuffer.wrap(flush.records);
+					long position = channel.size();
+					while (buf.hasRemaining()) {
+						position += channel.write(buf, position);
+					}
+					channel.force(false);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			snapshotDue = true;
+			throw e;
+		}
+	}
+
+	private void writePending(byte type, byte[] payload) throws IOException {
+		writeRecord(pendingOut, type, payload);
+		journalBytes += payload.length + 9;
+	}
+}
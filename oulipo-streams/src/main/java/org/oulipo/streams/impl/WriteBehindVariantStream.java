@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import org.oulipo.streams.EditBatch;
+import org.oulipo.streams.MalformedSpanException;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.VariantStream;
+import org.oulipo.streams.overlays.Overlay;
+import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.StreamElement;
+
+/**
+ * A <code>VariantStream</code> that tells its listener each time it is
+ * modified, so that it can be persisted in the background. If the stream has a
+ * journal, each edit is also recorded in the journal once it has been applied.
+ * An edit that fails may have partly modified the stream, so it invalidates the
+ * journal instead.
+ * 
+ * Edits hold the write lock of this stream, and reads share its read lock, so
+ * any number of readers run at the same time between edits. Iterators are
+ * served from a copy of the elements taken under the read lock. A background
+ * writer takes the lock only to copy the elements or journal records of the
+ * stream, and writes the copy without holding it.
+ *
+ * @param <T>
+ *            the stream element type contained in this stream
+ */
+final class WriteBehindVariantStream<T extends StreamElement> implements VariantStream<T> {
+
+	/**
+	 * An edit of the delegate stream
+	 */
+	@FunctionalInterface
+	private interface Edit {
+
+		void apply() throws MalformedSpanException, IOException;
+	}
+
+	/**
+	 * A read of the delegate stream
+	 */
+	@FunctionalInterface
+	private interface Read<R> {
+
+		R apply() throws MalformedSpanException;
+	}
+
+	/**
+	 * Records an applied edit in the journal
+	 */
+	@FunctionalInterface
+	private interface Record {
+
+		void apply(VariantStreamJournal journal) throws IOException;
+	}
+
+	private final VariantStream<T> delegate;
+
+	/**
+	 * Estimated number of bytes of heap the stream takes, as of the last time the
+	 * loader weighed it
+	 */
+	volatile long estimatedBytes;
+
+	/**
+	 * The file the stream is persisted to, if it has no journal. Also identifies
+	 * the stream to the listener.
+	 */
+	final File file;
+
+	/**
+	 * The journal of edits, or null if the stream is persisted as a whole
+	 */
+	final VariantStreamJournal journal;
+
+	private final Consumer<WriteBehindVariantStream<T>> listener;
+
+	/**
+	 * Held for writing by edits and for reading by reads. Reentrant, since an edit
+	 * batch applies its edits through this stream.
+	 */
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Number of modifications made to the stream. Guarded by the lock of this
+	 * stream.
+	 */
+	long version;
+
+	/**
+	 * Constructs a stream that wraps the specified stream
+	 * 
+	 * @param delegate
+	 *            the stream to wrap
+	 * @param file
+	 *            the file the stream is persisted to
+	 * @param journal
+	 *            the journal to record edits in, or null if the stream is
+	 *            persisted as a whole
+	 * @param listener
+	 *            called after each modification, while holding the write lock of
+	 *            this stream
+	 */
+	WriteBehindVariantStream(VariantStream<T> delegate, File file, VariantStreamJournal journal,
+			Consumer<WriteBehindVariantStream<T>> listener) {
+		this.delegate = delegate;
+		this.file = file;
+		this.journal = journal;
+		this.listener = listener;
+	}
+
+	@Override
+	public void apply(EditBatch<T> batch) throws MalformedSpanException, IOException {
+		lock.writeLock().lock();
+		try {
+			// each edit goes through this stream, so that it is recorded
+			batch.applyTo(this);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void applyOverlays(VariantSpan variantSpan, Set<Overlay> links)
+			throws MalformedSpanException, IOException {
+		edit(() -> delegate.applyOverlays(variantSpan, links), VariantStreamJournal::invalidate);
+	}
+
+	@Override
+	public void compact() throws MalformedSpanException {
+		lock.writeLock().lock();
+		try {
+			delegate.compact();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void copy(long characterPosition, List<VariantSpan> vspans)
+			throws MalformedSpanException, IOException {
+		edit(() -> delegate.copy(characterPosition, vspans), journal -> {
+			long start = characterPosition;
+			for (VariantSpan vspan : vspans) {
+				journal.copy(start, vspan);
+				start += vspan.width;
+			}
+		});
+	}
+
+	@Override
+	public void copy(long characterPosition, VariantSpan variantSpan)
+			throws MalformedSpanException, IOException {
+		edit(() -> delegate.copy(characterPosition, variantSpan),
+				journal -> journal.copy(characterPosition, variantSpan));
+	}
+
+	@Override
+	public void delete(VariantSpan variantSpan) throws MalformedSpanException, IOException {
+		edit(() -> delegate.delete(variantSpan), journal -> journal.delete(variantSpan));
+	}
+
+	/**
+	 * Applies the edit to the delegate, records it and tells the listener
+	 */
+	private void edit(Edit edit, Record record) throws MalformedSpanException, IOException {
+		lock.writeLock().lock();
+		try {
+			edit.apply();
+			if (journal != null) {
+				record.apply(journal);
+			}
+		} catch (Throwable e) {
+			if (journal != null) {
+				journal.invalidate();
+			}
+			throw e;
+		} finally {
+			version++;
+			listener.accept(this);
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String getDocumentHash() {
+		return delegate.getDocumentHash();
+	}
+
+	@Override
+	public List<T> getStreamElements() throws MalformedSpanException {
+		return read(() -> delegate.getStreamElements());
+	}
+
+	@Override
+	public List<T> getStreamElements(VariantSpan variantSpan) throws MalformedSpanException {
+		return read(() -> delegate.getStreamElements(variantSpan));
+	}
+
+	@Override
+	public List<VariantSpan> getVariantSpans(InvariantSpan spanElement) throws MalformedSpanException {
+		return read(() -> delegate.getVariantSpans(spanElement));
+	}
+
+	@Override
+	public T index(long characterPosition) {
+		lock.readLock().lock();
+		try {
+			return delegate.index(characterPosition);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets an iterator over copies of the elements within the span. The elements
+	 * are copied while holding the read lock, since the delegate iterator walks
+	 * the nodes of the stream lazily and an edit may restructure them, so the
+	 * iterator is unaffected by edits made while iterating.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Iterator<T> iterator(VariantSpan variantSpan) {
+		lock.readLock().lock();
+		try {
+			List<T> elements = new ArrayList<>();
+			Iterator<T> it = delegate.iterator(variantSpan);
+			while (it.hasNext()) {
+				elements.add((T) it.next().copy());
+			}
+			return elements.iterator();
+		} catch (MalformedSpanException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void load(List<T> elements) throws MalformedSpanException, IOException {
+		edit(() -> delegate.load(elements), journal -> record(journal, 1, elements));
+	}
+
+	@Override
+	public void move(long to, VariantSpan variantSpan) throws MalformedSpanException, IOException {
+		edit(() -> delegate.move(to, variantSpan), journal -> journal.move(to, variantSpan));
+	}
+
+	@Override
+	public void put(long characterPosition, T streamElement) throws MalformedSpanException, IOException {
+		edit(() -> delegate.put(characterPosition, streamElement),
+				journal -> journal.put(characterPosition, streamElement));
+	}
+
+	@Override
+	public void putElements(long characterPosition, List<T> streamElements)
+			throws MalformedSpanException, IOException {
+		edit(() -> delegate.putElements(characterPosition, streamElements),
+				journal -> record(journal, characterPosition, streamElements));
+	}
+
+	/**
+	 * Runs the read while holding the read lock
+	 */
+	private <R> R read(Read<R> read) throws MalformedSpanException {
+		lock.readLock().lock();
+		try {
+			return read.apply();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void rebalance() throws MalformedSpanException {
+		lock.writeLock().lock();
+		try {
+			delegate.rebalance();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Records puts of the elements in order, starting at the specified position
+	 */
+	private void record(VariantStreamJournal journal, long characterPosition, List<T> elements) throws IOException {
+		long start = characterPosition;
+		for (T element : elements) {
+			journal.put(start, element);
+			start += element.getWidth();
+		}
+	}
+
+	@Override
+	public int size() throws MalformedSpanException {
+		return read(() -> delegate.size());
+	}
+
+	@Override
+	public void swap(VariantSpan v1, VariantSpan v2) throws MalformedSpanException, IOException {
+		edit(() -> delegate.swap(v1, v2), journal -> journal.swap(v1, v2));
+	}
+
+	@Override
+	public void toggleOverlay(VariantSpan variantSpan, Overlay link)
+			throws MalformedSpanException, IOException {
+		edit(() -> delegate.toggleOverlay(variantSpan, link), VariantStreamJournal::invalidate);
+	}
+}
@@ -1,5 +1,7 @@
 package org.oulipo.streams.overlays;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class OntologicalOverlay implements Overlay {
@@ -14,7 +16,36 @@ public class OntologicalOverlay implements Overlay {
 
 	@Override
 	public byte[] encode() throws IOException {
-		// TODO Auto-generated method stub
-		return null;
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try (DataOutputStream dos = new DataOutputStream(os)) {
+			dos.writeByte(ONTOLOGICAL);
+			Overlay.writeString(dos, type);
+		}
+		return os.toByteArray();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		OntologicalOverlay other = (OntologicalOverlay) obj;
+		if (type == null) {
+			if (other.type != null)
+				return false;
+		} else if (!type.equals(other.type))
+			return false;
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((type == null) ? 0 : type.hashCode());
+		return result;
 	}
 }
@@ -1,5 +1,8 @@
 package org.oulipo.streams.overlays;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 public interface Overlay {
@@ -10,6 +13,60 @@ public interface Overlay {
 
 	public static final byte TOPOLOGICAL = 0x2;
 
+	/**
+	 * Decodes an overlay encoded by <code>encode</code>
+	 * 
+	 * @param encoded
+	 *            the encoded overlay
+	 * @return the overlay
+	 * @throws IOException
+	 *             if the overlay type is unknown or the encoding is truncated
+	 */
+	static Overlay decode(byte[] encoded) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(encoded));
+		byte type = dis.readByte();
+		switch (type) {
+		case PRESENTER:
+			int code = dis.readInt();
+			byte valueType = dis.readByte();
+			if (valueType == PresenterOverlay.VALUE_INTEGER) {
+				return new PresenterIntegerOverlay(code, dis.readInt());
+			} else if (valueType == PresenterOverlay.VALUE_STRING) {
+				return new PresenterStringOverlay(code, readString(dis));
+			}
+			return new PresenterOverlay(code);
+		case ONTOLOGICAL:
+			return new OntologicalOverlay(readString(dis));
+		case TOPOLOGICAL:
+			return new TopologicalOverlay(readString(dis), readString(dis));
+		default:
+			throw new IOException("Unknown overlay type: " + type);
+		}
+	}
+
+	/**
+	 * Reads a string written by <code>writeString</code>
+	 */
+	static String readString(DataInputStream dis) throws IOException {
+		return dis.readBoolean() ? dis.readUTF() : null;
+	}
+
+	/**
+	 * Writes a string that may be null
+	 */
+	static void writeString(DataOutputStream dos, String value) throws IOException {
+		dos.writeBoolean(value != null);
+		if (value != null) {
+			dos.writeUTF(value);
+		}
+	}
+
+	/**
+	 * Encodes this overlay as a byte array, starting with the overlay type
+	 * 
+	 * @return the encoded overlay
+	 * @throws IOException
+	 */
 	byte[] encode() throws IOException;
 
 }
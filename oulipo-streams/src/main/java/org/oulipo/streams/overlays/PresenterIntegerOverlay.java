@@ -1,5 +1,8 @@
 package org.oulipo.streams.overlays;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 public final class PresenterIntegerOverlay extends PresenterOverlay {
 
 	public final int value;
@@ -9,4 +12,28 @@ public final class PresenterIntegerOverlay extends PresenterOverlay {
 		this.value = value;
 	}
 
+	@Override
+	protected void encodeValue(DataOutputStream dos) throws IOException {
+		dos.writeByte(VALUE_INTEGER);
+		dos.writeInt(value);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!super.equals(obj))
+			return false;
+		PresenterIntegerOverlay other = (PresenterIntegerOverlay) obj;
+		if (value != other.value)
+			return false;
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + value;
+		return result;
+	}
+
 }
@@ -1,5 +1,7 @@
 package org.oulipo.streams.overlays;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class PresenterOverlay implements Overlay {
@@ -24,6 +26,21 @@ public class PresenterOverlay implements Overlay {
 
 	public static final PresenterOverlay UNDERLINE_OVERLAY = new PresenterOverlay(UNDERLINE);
 
+	/**
+	 * Encoded value type of an overlay with an integer value
+	 */
+	static final byte VALUE_INTEGER = 0x1;
+
+	/**
+	 * Encoded value type of an overlay without a value
+	 */
+	static final byte VALUE_NONE = 0x0;
+
+	/**
+	 * Encoded value type of an overlay with a string value
+	 */
+	static final byte VALUE_STRING = 0x2;
+
 	public final int code;
 
 	public PresenterOverlay(int code) {
@@ -32,7 +49,42 @@ public class PresenterOverlay implements Overlay {
 
 	@Override
 	public byte[] encode() throws IOException {
-		return null;
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try (DataOutputStream dos = new DataOutputStream(os)) {
+			dos.writeByte(PRESENTER);
+			dos.writeInt(code);
+			encodeValue(dos);
+		}
+		return os.toByteArray();
+	}
+
+	/**
+	 * Writes the value type and value of this overlay
+	 */
+	protected void encodeValue(DataOutputStream dos) throws IOException {
+		dos.writeByte(VALUE_NONE);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		PresenterOverlay other = (PresenterOverlay) obj;
+		if (code != other.code)
+			return false;
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + code;
+		return result;
 	}
 
 }
@@ -1,5 +1,8 @@
 package org.oulipo.streams.overlays;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 public final class PresenterStringOverlay extends PresenterOverlay {
 
 	public final String value;
@@ -11,4 +14,31 @@ public final class PresenterStringOverlay extends PresenterOverlay {
 		this.value = value;
 	}
 
+	@Override
+	protected void encodeValue(DataOutputStream dos) throws IOException {
+		dos.writeByte(VALUE_STRING);
+		Overlay.writeString(dos, value);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!super.equals(obj))
+			return false;
+		PresenterStringOverlay other = (PresenterStringOverlay) obj;
+		if (value == null) {
+			if (other.value != null)
+				return false;
+		} else if (!value.equals(other.value))
+			return false;
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + ((value == null) ? 0 : value.hashCode());
+		return result;
+	}
+
 }
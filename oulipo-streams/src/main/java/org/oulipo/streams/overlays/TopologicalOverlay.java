@@ -1,5 +1,7 @@
 package org.oulipo.streams.overlays;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class TopologicalOverlay implements Overlay {
@@ -19,6 +21,43 @@ public class TopologicalOverlay implements Overlay {
 
 	@Override
 	public byte[] encode() throws IOException {
-		return null;
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try (DataOutputStream dos = new DataOutputStream(os)) {
+			dos.writeByte(TOPOLOGICAL);
+			Overlay.writeString(dos, toHash);
+			Overlay.writeString(dos, type);
+		}
+		return os.toByteArray();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TopologicalOverlay other = (TopologicalOverlay) obj;
+		if (toHash == null) {
+			if (other.toHash != null)
+				return false;
+		} else if (!toHash.equals(other.toHash))
+			return false;
+		if (type == null) {
+			if (other.type != null)
+				return false;
+		} else if (!type.equals(other.type))
+			return false;
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((toHash == null) ? 0 : toHash.hashCode());
+		result = prime * result + ((type == null) ? 0 : type.hashCode());
+		return result;
 	}
 }
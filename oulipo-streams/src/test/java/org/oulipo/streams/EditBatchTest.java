@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.oulipo.streams.impl.PersistentRopeVariantStream;
+import org.oulipo.streams.impl.RopeVariantStream;
+import org.oulipo.streams.overlays.PresenterOverlay;
+import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.OverlayStream;
+
+public class EditBatchTest {
+
+	public static final String documentHash = "fakeHash";
+
+	@Test
+	public void applyInOrder() throws Exception {
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		EditBatch<InvariantSpan> batch = new EditBatch<>();
+		batch.put(1, new InvariantSpan(100, 10, documentHash)).delete(new VariantSpan(3, 2))
+				.put(1, new InvariantSpan(200, 1, documentHash)).move(9, new VariantSpan(1, 1));
+		stream.apply(batch);
+
+		List<InvariantSpan> spans = stream.getStreamElements();
+		assertEquals(4, spans.size());
+		assertEquals(new InvariantSpan(100, 2, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(104, 5, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(200, 1, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(109, 1, documentHash), spans.get(3));
+	}
+
+	@Test
+	public void applyOverlays() throws Exception {
+		VariantStream<OverlayStream> stream = new RopeVariantStream<>(documentHash);
+		EditBatch<OverlayStream> batch = new EditBatch<>();
+		batch.put(1, new OverlayStream(10)).toggleOverlay(new VariantSpan(1, 5), PresenterOverlay.BOLD_OVERLAY);
+		stream.apply(batch);
+
+		List<OverlayStream> results = stream.getStreamElements();
+		assertEquals(2, results.size());
+		assertTrue(results.get(0).hasLinkType(PresenterOverlay.BOLD_OVERLAY));
+	}
+
+	@Test
+	public void coalesceBackspaces() throws Exception {
+		EditBatch<InvariantSpan> batch = new EditBatch<>();
+		batch.delete(new VariantSpan(10, 1)).delete(new VariantSpan(9, 1)).delete(new VariantSpan(8, 1))
+				.delete(new VariantSpan(8, 2));
+		assertEquals(1, batch.size());
+
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		stream.put(1, new InvariantSpan(1, 20, documentHash));
+		stream.apply(batch);
+
+		List<InvariantSpan> spans = stream.getStreamElements();
+		assertEquals(new InvariantSpan(1, 7, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(13, 8, documentHash), spans.get(1));
+	}
+
+	@Test
+	public void coalesceTyping() throws Exception {
+		EditBatch<InvariantSpan> batch = new EditBatch<>();
+		for (int i = 1; i <= 100; i++) {
+			batch.put(i, new InvariantSpan(2 * i, 1, documentHash));
+		}
+		assertEquals(1, batch.size());
+
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		stream.apply(batch);
+		assertEquals(100, stream.getStreamElements().size());
+		assertEquals(new InvariantSpan(100, 1, documentHash), stream.index(50));
+	}
+
+	@Test
+	public void persistentBatchIsAtomic() throws Exception {
+		PersistentRopeVariantStream<InvariantSpan> stream = new PersistentRopeVariantStream<>(documentHash);
+		stream.put(1, new InvariantSpan(1, 10, documentHash));
+
+		EditBatch<InvariantSpan> batch = new EditBatch<>();
+		batch.delete(new VariantSpan(1, 5)).put(100, new InvariantSpan(50, 1, documentHash));
+		try {
+			stream.apply(batch);
+			fail("put beyond end of stream");
+		} catch (IndexOutOfBoundsException e) {
+		}
+		assertEquals(new InvariantSpan(1, 10, documentHash), stream.getStreamElements().get(0));
+	}
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.oulipo.streams.types.InvariantSpan;
+
+public class InvariantStreamTest {
+
+	/**
+	 * In-memory stream that records the spans it is asked to read
+	 */
+	private static class RecordingStream implements InvariantStream {
+
+		final List<InvariantSpan> reads = new ArrayList<>();
+
+		final StringBuilder text = new StringBuilder();
+
+		@Override
+		public InvariantSpan append(String s) throws MalformedSpanException {
+			InvariantSpan span = new InvariantSpan(text.length() + 1, s.length(), "fakeHash");
+			text.append(s);
+			return span;
+		}
+
+		@Override
+		public String getText(InvariantSpan span) throws IOException {
+			reads.add(span);
+			return text.substring((int) span.getStart() - 1, (int) (span.getStart() - 1 + span.getWidth()));
+		}
+	}
+
+	@Test
+	public void getTexts() throws Exception {
+		RecordingStream stream = new RecordingStream();
+		stream.append("Hello World, this is a test");
+
+		List<String> texts = stream.getTexts(Arrays.asList(new InvariantSpan(24, 4, "fakeHash"),
+				new InvariantSpan(7, 5, "fakeHash"), new InvariantSpan(1, 5, "fakeHash"),
+				new InvariantSpan(3, 6, "fakeHash"), new InvariantSpan(12, 1, "fakeHash")));
+
+		assertEquals(Arrays.asList("test", "World", "Hello", "llo Wo", ","), texts);
+		assertEquals(Arrays.asList(new InvariantSpan(1, 12, "fakeHash"), new InvariantSpan(24, 4, "fakeHash")),
+				stream.reads);
+	}
+
+	@Test
+	public void getTextsEmpty() throws Exception {
+		RecordingStream stream = new RecordingStream();
+		assertEquals(Collections.emptyList(), stream.getTexts(Collections.emptyList()));
+		assertEquals(0, stream.reads.size());
+	}
+
+	@Test
+	public void getTextsSingleSpan() throws Exception {
+		RecordingStream stream = new RecordingStream();
+		stream.append("Hello");
+		InvariantSpan span = new InvariantSpan(2, 3, "fakeHash");
+		assertEquals(Arrays.asList("ell"), stream.getTexts(Arrays.asList(span)));
+		assertEquals(Arrays.asList(span), stream.reads);
+	}
+}
@@ -1,6 +1,49 @@
 package org.oulipo.streams.document;
 
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.bitcoinj.core.ECKey;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
 public class DocumentFileDecompilerTest {
 
 	private DocumentFileDecompiler decompiler = new DocumentFileDecompiler();
+
+	@Test
+	public void readPreviousHash() throws Exception {
+		DocumentFile.Builder builder = new DocumentFile.Builder("fakeHash");
+		builder.previousHashBlock("sadasdsad");
+		builder.appendText(Strings.repeat("Xanadu", 1000));
+		byte[] compiled = DocumentFile.compiler().compile(builder.build(), new ECKey()).getBytes();
+
+		assertEquals("sadasdsad", DocumentFileDecompiler.readPreviousHash(compiled));
+		assertEquals("sadasdsad", decompiler.decompile("fakeHash", compiled).getHashPreviousBlock());
+	}
+
+	@Test
+	public void readPreviousHashFirstBlock() throws Exception {
+		byte[] compiled = DocumentFile.compiler().compile(new DocumentFile.Builder("fakeHash").build(), new ECKey())
+				.getBytes();
+		assertEquals("", DocumentFileDecompiler.readPreviousHash(compiled));
+	}
+
+	@Test
+	public void readPreviousHashLongHeader() throws Exception {
+		String hash = Strings.repeat("a", 2000);
+		DocumentFile.Builder builder = new DocumentFile.Builder("fakeHash");
+		builder.previousHashBlock(hash);
+		builder.appendText("Xanadu");
+		byte[] compiled = DocumentFile.compiler().compile(builder.build(), new ECKey()).getBytes();
+
+		assertEquals(hash, DocumentFileDecompiler.readPreviousHash(compiled));
+	}
+
+	@Test(expected = IOException.class)
+	public void readPreviousHashNotDocumentFile() throws Exception {
+		DocumentFileDecompiler.readPreviousHash("AAAAAAAA.b.c".getBytes());
+	}
 }
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.oulipo.streams.RemoteFileManager;
+
+public class CachingRemoteFileManagerTest {
+
+	private static class CountingRemoteFileManager implements RemoteFileManager {
+
+		final Map<String, byte[]> blocks = new HashMap<>();
+
+		int gets;
+
+		@Override
+		public String add(File file) throws IOException {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			String hash = HASH.apply(bytes);
+			blocks.put(hash, bytes);
+			return hash;
+		}
+
+		@Override
+		public byte[] get(String hash) throws IOException {
+			gets++;
+			return blocks.get(hash);
+		}
+	}
+
+	/**
+	 * Stands in for the content hash of a real file manager
+	 */
+	private static final Function<byte[], String> HASH = bytes -> "h" + Integer.toHexString(Arrays.hashCode(bytes));
+
+	private static final String HASH_123 = HASH.apply(new byte[] { 1, 2, 3 });
+
+	private File dir;
+
+	private CountingRemoteFileManager remote;
+
+	@Test
+	public void addCaches() throws Exception {
+		CachingRemoteFileManager cache = new CachingRemoteFileManager(remote, dir, HASH);
+		File file = new File(dir.getParentFile(), "block-" + System.nanoTime());
+		Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+
+		String hash = cache.add(file);
+		assertTrue(new File(dir, hash).exists());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get(hash));
+		assertEquals(0, remote.gets);
+	}
+
+	@Test
+	public void getCaches() throws Exception {
+		remote.blocks.put(HASH_123, new byte[] { 1, 2, 3 });
+		CachingRemoteFileManager cache = new CachingRemoteFileManager(remote, dir, HASH);
+
+		assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get(HASH_123));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get(HASH_123));
+		assertEquals(1, remote.gets);
+
+		// survives a restart
+		CachingRemoteFileManager reopened = new CachingRemoteFileManager(remote, dir, HASH);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, reopened.get(HASH_123));
+		assertEquals(1, remote.gets);
+	}
+
+	@Test
+	public void getEvictsDamagedBlock() throws Exception {
+		remote.blocks.put(HASH_123, new byte[] { 1, 2, 3 });
+		CachingRemoteFileManager cache = new CachingRemoteFileManager(remote, dir, HASH);
+		cache.get(HASH_123);
+		Files.write(new File(dir, HASH_123).toPath(), new byte[] { 1, 2 });
+
+		assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get(HASH_123));
+		assertEquals(2, remote.gets);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(new File(dir, HASH_123).toPath()));
+	}
+
+	@Test(expected = IOException.class)
+	public void getRejectsMismatchedBlock() throws Exception {
+		remote.blocks.put(HASH_123, new byte[] { 4, 5, 6 });
+		CachingRemoteFileManager cache = new CachingRemoteFileManager(remote, dir, HASH);
+		try {
+			cache.get(HASH_123);
+		} finally {
+			assertFalse(new File(dir, HASH_123).exists());
+		}
+	}
+
+	@Test
+	public void missingNotCached() throws Exception {
+		CachingRemoteFileManager cache = new CachingRemoteFileManager(remote, dir, HASH);
+		assertNull(cache.get("abc"));
+		assertFalse(new File(dir, "abc").exists());
+		assertEquals(0, dir.list().length);
+	}
+
+	@Before
+	public void setup() throws Exception {
+		dir = new File("target/streams-junit/CachingRemoteFileManager-" + System.nanoTime());
+		remote = new CountingRemoteFileManager();
+	}
+
+	@Test
+	public void unsafeHashNotCached() throws Exception {
+		remote.blocks.put("../abc", new byte[] { 1 });
+		CachingRemoteFileManager cache = new CachingRemoteFileManager(remote, dir, HASH);
+
+		assertArrayEquals(new byte[] { 1 }, cache.get("../abc"));
+		assertArrayEquals(new byte[] { 1 }, cache.get("../abc"));
+		assertEquals(2, remote.gets);
+		assertEquals(0, dir.list().length);
+	}
+}
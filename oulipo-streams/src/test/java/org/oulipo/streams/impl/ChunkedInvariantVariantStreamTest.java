@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.VariantStream;
+import org.oulipo.streams.overlays.PresenterOverlay;
+import org.oulipo.streams.types.Invariant;
+import org.oulipo.streams.types.InvariantMedia;
+import org.oulipo.streams.types.InvariantSpan;
+
+/**
+ * 
+ * [100, 6], [200,3], [250, 2], [300, 4], [350, 1], [360, 6]
+ */
+public class ChunkedInvariantVariantStreamTest {
+
+	public static final String documentHash = "fakeHash";
+
+	private static ChunkedInvariantVariantStream getA() throws Exception {
+		ChunkedInvariantVariantStream stream = new ChunkedInvariantVariantStream(documentHash);
+		stream.putElements(1,
+				Arrays.asList(new InvariantSpan(100, 6, documentHash), new InvariantSpan(200, 3, documentHash),
+						new InvariantSpan(250, 2, documentHash), new InvariantSpan(300, 4, documentHash),
+						new InvariantSpan(350, 1, documentHash), new InvariantSpan(360, 6, documentHash)));
+		return stream;
+	}
+
+	@Test
+	public void compact() throws Exception {
+		ChunkedInvariantVariantStream stream = new ChunkedInvariantVariantStream(documentHash);
+		stream.putElements(1, Arrays.asList(new InvariantSpan(1, 5, documentHash),
+				new InvariantSpan(100, 3, documentHash), new InvariantSpan(6, 5, documentHash)));
+		stream.delete(new VariantSpan(6, 3));
+		assertEquals(2, stream.getStreamElements().size());
+
+		stream.compact();
+		List<Invariant> spans = stream.getStreamElements();
+		assertEquals(1, spans.size());
+		assertEquals(new InvariantSpan(1, 10, documentHash), spans.get(0));
+	}
+
+	@Test
+	public void delete() throws Exception {
+		VariantStream<Invariant> stream = getA();
+		stream.delete(new VariantSpan(12, 4));
+		List<Invariant> spans = stream.getStreamElements();
+
+		assertEquals(new InvariantSpan(100, 6, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(350, 1, documentHash), spans.get(3));
+		assertEquals(new InvariantSpan(360, 6, documentHash), spans.get(4));
+
+		assertEquals(5, spans.size());
+	}
+
+	@Test
+	public void deleteAcrossPages() throws Exception {
+		ChunkedInvariantVariantStream stream = new ChunkedInvariantVariantStream(documentHash);
+		for (int i = 1; i <= 10000; i++) {
+			stream.put(i, new InvariantSpan(2 * i, 1, documentHash));
+		}
+		stream.delete(new VariantSpan(11, 9980));
+
+		List<Invariant> spans = stream.getStreamElements();
+		assertEquals(20, spans.size());
+		assertEquals(new InvariantSpan(20, 1, documentHash), spans.get(9));
+		assertEquals(new InvariantSpan(19982, 1, documentHash), spans.get(10));
+
+		stream.delete(new VariantSpan(1, 20));
+		assertEquals(0, stream.getStreamElements().size());
+	}
+
+	@Test
+	public void deleteWithSplit() throws Exception {
+		VariantStream<Invariant> stream = getA();
+		stream.delete(new VariantSpan(12, 6));
+		List<Invariant> spans = stream.getStreamElements();
+
+		assertEquals(new InvariantSpan(100, 6, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(361, 5, documentHash), spans.get(3));
+
+		assertEquals(4, spans.size());
+	}
+
+	@Test
+	public void getStreamElementsMiddle() throws Exception {
+		VariantStream<Invariant> stream = getA();
+		List<Invariant> spans = stream.getStreamElements(new VariantSpan(5, 9));
+
+		assertEquals(new InvariantSpan(104, 2, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(300, 2, documentHash), spans.get(3));
+		assertEquals(4, spans.size());
+	}
+
+	@Test
+	public void getVariantSpansTranscluded() throws Exception {
+		VariantStream<Invariant> stream = new ChunkedInvariantVariantStream(documentHash);
+		List<Invariant> spans = Arrays.asList(new InvariantSpan(1, 5, documentHash),
+				new InvariantSpan(1, 5, "otherHash"), new InvariantSpan(6, 5, documentHash));
+		stream.putElements(1, spans);
+
+		List<VariantSpan> result = stream.getVariantSpans(new InvariantSpan(3, 2, "otherHash"));
+		assertEquals(1, result.size());
+		assertEquals(new VariantSpan(8, 2, documentHash), result.get(0));
+	}
+
+	@Test
+	public void getVariantSpansTwo() throws Exception {
+		VariantStream<Invariant> stream = new ChunkedInvariantVariantStream(documentHash);
+		List<Invariant> spans = Arrays.asList(new InvariantSpan(7, 5, documentHash),
+				new InvariantSpan(4, 3, documentHash), new InvariantSpan(1, 3, documentHash));
+		stream.putElements(1, spans);
+		List<VariantSpan> result = stream.getVariantSpans(new InvariantSpan(1, 6, documentHash));
+		assertEquals(2, result.size());
+		assertEquals(new VariantSpan(6, 3, documentHash), result.get(0));
+		assertEquals(new VariantSpan(9, 3, documentHash), result.get(1));
+	}
+
+	@Test
+	public void index() throws Exception {
+		VariantStream<Invariant> stream = getA();
+		assertEquals(new InvariantSpan(300, 4, documentHash), stream.index(12));
+		assertEquals(new InvariantSpan(250, 2, documentHash), stream.index(11));
+	}
+
+	@Test
+	public void indexManyPages() throws Exception {
+		ChunkedInvariantVariantStream stream = new ChunkedInvariantVariantStream(documentHash);
+		for (int i = 1; i <= 10000; i++) {
+			stream.put(1, new InvariantSpan(2 * i, 1, documentHash));
+		}
+		assertEquals(new InvariantSpan(20000, 1, documentHash), stream.index(1));
+		assertEquals(new InvariantSpan(2, 1, documentHash), stream.index(10000));
+		assertEquals(new InvariantSpan(10000, 1, documentHash), stream.index(5001));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void indexOutOfRange() throws Exception {
+		getA().index(23);
+	}
+
+	@Test
+	public void iterator() throws Exception {
+		Iterator<Invariant> it = getA().iterator(new VariantSpan(5, 9));
+		assertEquals(new InvariantSpan(104, 2, documentHash), it.next());
+		assertEquals(new InvariantSpan(200, 3, documentHash), it.next());
+		assertEquals(new InvariantSpan(250, 2, documentHash), it.next());
+		assertEquals(new InvariantSpan(300, 2, documentHash), it.next());
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void media() throws Exception {
+		VariantStream<Invariant> stream = getA();
+		stream.put(7, new InvariantMedia("mediaHash"));
+
+		assertEquals(new InvariantMedia("mediaHash"), stream.index(7));
+		assertEquals(new InvariantSpan(200, 3, documentHash), stream.index(8));
+		assertEquals(7, stream.getStreamElements().size());
+
+		List<VariantSpan> result = stream.getVariantSpans(new InvariantSpan(200, 3, documentHash));
+		assertEquals(new VariantSpan(8, 3, documentHash), result.get(0));
+	}
+
+	@Test
+	public void moveSpan() throws Exception {
+		VariantStream<Invariant> stream = getA();
+		stream.move(2, new VariantSpan(12, 3));
+		List<Invariant> spans = stream.getStreamElements();
+		assertEquals(new InvariantSpan(100, 1, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(300, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(101, 5, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(3));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(4));
+		assertEquals(new InvariantSpan(303, 1, documentHash), spans.get(5));
+		assertEquals(new InvariantSpan(350, 1, documentHash), spans.get(6));
+		assertEquals(new InvariantSpan(360, 6, documentHash), spans.get(7));
+	}
+
+	@Test
+	public void putCoalescesWithNeighbours() throws Exception {
+		ChunkedInvariantVariantStream stream = new ChunkedInvariantVariantStream(documentHash);
+		for (int i = 1; i <= 1000; i++) {
+			stream.put(i, new InvariantSpan(i, 1, documentHash));
+		}
+		List<Invariant> spans = stream.getStreamElements();
+		assertEquals(1, spans.size());
+		assertEquals(new InvariantSpan(1, 1000, documentHash), spans.get(0));
+	}
+
+	@Test
+	public void putElementsMiddle() throws Exception {
+		ChunkedInvariantVariantStream stream = getA();
+		stream.putElements(4,
+				Arrays.asList(new InvariantSpan(500, 2, documentHash), new InvariantSpan(600, 1, documentHash)));
+
+		List<Invariant> spans = stream.getStreamElements();
+		assertEquals(9, spans.size());
+		assertEquals(new InvariantSpan(100, 3, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(500, 2, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(600, 1, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(103, 3, documentHash), spans.get(3));
+	}
+
+	@Test
+	public void putWithSplit() throws Exception {
+		VariantStream<Invariant> stream = getA();
+		stream.put(5, new InvariantSpan(500, 34, documentHash));
+		List<Invariant> spans = stream.getStreamElements();
+
+		assertEquals(new InvariantSpan(100, 4, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(500, 34, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(104, 2, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(3));
+	}
+
+	@Test
+	public void size() throws Exception {
+		ChunkedInvariantVariantStream stream = new ChunkedInvariantVariantStream(documentHash);
+		assertEquals(0, stream.size());
+		for (int i = 1; i <= 1000; i++) {
+			stream.put(i, new InvariantSpan(2 * i, 1, documentHash));
+		}
+		assertEquals(1000, stream.size());
+		stream.delete(new VariantSpan(11, 980));
+		assertEquals(stream.getStreamElements().size(), stream.size());
+	}
+
+	@Test
+	public void sizeAfterEdits() throws Exception {
+		VariantStream<Invariant> stream = new ChunkedInvariantVariantStream(documentHash);
+		for (int i = 0; i < 500; i++) {
+			stream.put(1, new InvariantSpan(1 + 2 * i, 1, documentHash));
+		}
+		assertEquals(500, stream.size());
+
+		stream.delete(new VariantSpan(101, 100));
+		stream.put(50, new InvariantSpan(5000, 10, documentHash));
+		assertEquals(stream.getStreamElements().size(), stream.size());
+	}
+
+	@Test
+	public void swap() throws Exception {
+		VariantStream<Invariant> stream = getA();
+		stream.swap(new VariantSpan(1, 3), new VariantSpan(12, 3));
+		List<Invariant> spans = stream.getStreamElements();
+
+		assertEquals(new InvariantSpan(300, 3, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(103, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(3));
+		assertEquals(new InvariantSpan(100, 3, documentHash), spans.get(4));
+		assertEquals(new InvariantSpan(303, 1, documentHash), spans.get(5));
+		assertEquals(8, spans.size());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void toggleOverlay() throws Exception {
+		getA().toggleOverlay(new VariantSpan(1, 2), PresenterOverlay.BOLD_OVERLAY);
+	}
+}
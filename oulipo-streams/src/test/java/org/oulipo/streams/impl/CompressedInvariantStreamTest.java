@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.oulipo.streams.InvariantStream;
+import org.oulipo.streams.types.InvariantSpan;
+
+public class CompressedInvariantStreamTest {
+
+	private static File newFile() {
+		return new File("target/streams-junit/CompressedInvariantStream-" + System.nanoTime() + ".blocks");
+	}
+
+	@Test
+	public void closeReopen() throws Exception {
+		File file = newFile();
+		InvariantStream stream = new CompressedInvariantStream(file, "fakeHash", 4, 2);
+		InvariantSpan span = stream.append("Hello World");
+		stream.close();
+
+		InvariantStream reopened = new CompressedInvariantStream(file, "fakeHash", 4, 2);
+		assertEquals("Hello World", reopened.getText(span));
+		reopened.close();
+	}
+
+	@Test
+	public void compresses() throws Exception {
+		File file = newFile();
+		InvariantStream stream = new CompressedInvariantStream(file, "fakeHash", 1000, 4);
+		for (int i = 0; i < 100; i++) {
+			stream.append("Hello World. Hello World. Hello World. ");
+		}
+		assertTrue(file.length() > 0);
+		assertTrue(file.length() < 100 * 39 / 4);
+	}
+
+	@Test
+	public void getText() throws Exception {
+		InvariantStream stream = new CompressedInvariantStream(newFile(), "fakeHash");
+		stream.append("Hello");
+		InvariantSpan span = stream.append("World");
+		assertEquals(new InvariantSpan(6, 5, "fakeHash"), span);
+		assertEquals("World", stream.getText(span));
+		assertEquals("loWo", stream.getText(new InvariantSpan(4, 4, "fakeHash")));
+	}
+
+	@Test
+	public void getTextAcrossBlocks() throws Exception {
+		InvariantStream stream = new CompressedInvariantStream(newFile(), "fakeHash", 10, 2);
+		StringBuilder all = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			String text = "block" + i + "-";
+			stream.append(text);
+			all.append(text);
+		}
+
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			int start = random.nextInt(all.length());
+			int width = 1 + random.nextInt(all.length() - start);
+			assertEquals(all.substring(start, start + width),
+					stream.getText(new InvariantSpan(start + 1, width, "fakeHash")));
+		}
+	}
+
+	@Test
+	public void getTextMultibyte() throws Exception {
+		InvariantStream stream = new CompressedInvariantStream(newFile(), "fakeHash", 8, 2);
+		InvariantSpan a = stream.append("\u00E9t\u00E9 \u6F22\u5B57 ");
+		InvariantSpan b = stream.append("\uD83D\uDE00 caf\u00E9");
+		assertEquals("\u00E9t\u00E9 \u6F22\u5B57 ", stream.getText(a));
+		assertEquals("\uD83D\uDE00 caf\u00E9", stream.getText(b));
+		assertEquals("\u5B57 \uD83D", stream.getText(new InvariantSpan(6, 3, "fakeHash")));
+	}
+
+	@Test(expected = IOException.class)
+	public void getTextPastEnd() throws Exception {
+		InvariantStream stream = new CompressedInvariantStream(newFile(), "fakeHash", 4, 2);
+		stream.append("Hello World");
+		stream.getText(new InvariantSpan(10, 5, "fakeHash"));
+	}
+
+	@Test
+	public void getTexts() throws Exception {
+		InvariantStream stream = new CompressedInvariantStream(newFile(), "fakeHash", 100, 2);
+		List<InvariantSpan> spans = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			String text = "span" + i + "\u6F22";
+			spans.add(stream.append(text));
+			expected.add(text);
+		}
+		Collections.reverse(spans);
+		Collections.reverse(expected);
+		spans.remove(10);
+		expected.remove(10);
+
+		assertEquals(expected, stream.getTexts(spans));
+	}
+
+	@Test
+	public void reopen() throws Exception {
+		File file = newFile();
+		InvariantStream stream = new CompressedInvariantStream(file, "fakeHash", 16, 2);
+		List<InvariantSpan> spans = new ArrayList<>();
+		List<String> texts = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			String text = "text " + i + " \u6F22";
+			spans.add(stream.append(text));
+			texts.add(text);
+		}
+
+		stream = new CompressedInvariantStream(file, "fakeHash", 16, 2);
+		for (int i = 0; i < spans.size(); i++) {
+			assertEquals(texts.get(i), stream.getText(spans.get(i)));
+		}
+		InvariantSpan span = stream.append("more");
+		assertEquals(spans.get(39).getStart() + spans.get(39).getWidth(), span.getStart());
+		assertEquals("more", stream.getText(span));
+	}
+
+	@Test(timeout = 10000)
+	public void reopenAfterNegativeBlockLength() throws Exception {
+		File file = newFile();
+		InvariantStream stream = new CompressedInvariantStream(file, "fakeHash", 10, 2);
+		InvariantSpan a = stream.append("0123456789");
+		InvariantSpan b = stream.append("abc");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(raf.length());
+			raf.writeInt(3);
+			raf.writeInt(3);
+			raf.writeInt(-100);
+			raf.write(new byte[100]);
+		}
+
+		stream = new CompressedInvariantStream(file, "fakeHash", 10, 2);
+		assertEquals("0123456789", stream.getText(a));
+		assertEquals("abc", stream.getText(b));
+		assertEquals(new InvariantSpan(14, 1, "fakeHash"), stream.append("d"));
+	}
+
+	@Test
+	public void reopenAfterPartialBlock() throws Exception {
+		File file = newFile();
+		InvariantStream stream = new CompressedInvariantStream(file, "fakeHash", 10, 2);
+		InvariantSpan a = stream.append("0123456789");
+		InvariantSpan b = stream.append("abc");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(raf.length());
+			raf.writeInt(3);
+			raf.writeInt(3);
+			raf.writeInt(100);
+		}
+
+		stream = new CompressedInvariantStream(file, "fakeHash", 10, 2);
+		assertEquals("0123456789", stream.getText(a));
+		assertEquals("abc", stream.getText(b));
+		assertEquals(new InvariantSpan(14, 1, "fakeHash"), stream.append("d"));
+	}
+
+	@Test
+	public void reopenAfterSealedTail() throws Exception {
+		File file = newFile();
+		File tail = new File(file.getPath() + ".tail");
+		InvariantStream stream = new CompressedInvariantStream(file, "fakeHash", 10, 2);
+		stream.append("01234");
+
+		// the tail as it was before the block was written
+		byte[] before = Files.readAllBytes(tail.toPath());
+		stream.append("56789xy");
+		Files.write(tail.toPath(), before);
+		try (RandomAccessFile raf = new RandomAccessFile(tail, "rw")) {
+			raf.seek(raf.length());
+			raf.write("56789xy".getBytes("UTF-8"));
+		}
+
+		stream = new CompressedInvariantStream(file, "fakeHash", 10, 2);
+		assertEquals("0123456789xy", stream.getText(new InvariantSpan(1, 12, "fakeHash")));
+		assertEquals(new InvariantSpan(13, 1, "fakeHash"), stream.append("z"));
+	}
+
+	@Test
+	public void reopenAfterTruncatedCharacter() throws Exception {
+		File file = newFile();
+		File tail = new File(file.getPath() + ".tail");
+		InvariantStream stream = new CompressedInvariantStream(file, "fakeHash", 100, 2);
+		stream.append("ab\u6F22");
+		try (RandomAccessFile raf = new RandomAccessFile(tail, "rw")) {
+			raf.setLength(raf.length() - 1);
+		}
+
+		stream = new CompressedInvariantStream(file, "fakeHash", 100, 2);
+		assertEquals(new InvariantSpan(3, 1, "fakeHash"), stream.append("c"));
+		assertEquals("abc", stream.getText(new InvariantSpan(1, 3, "fakeHash")));
+	}
+
+	@Test(timeout = 10000)
+	public void reopenAfterZeroFilledBlocks() throws Exception {
+		File file = newFile();
+		InvariantStream stream = new CompressedInvariantStream(file, "fakeHash", 10, 2);
+		InvariantSpan a = stream.append("0123456789");
+		InvariantSpan b = stream.append("abc");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() + 4096);
+		}
+
+		stream = new CompressedInvariantStream(file, "fakeHash", 10, 2);
+		assertEquals("0123456789", stream.getText(a));
+		assertEquals("abc", stream.getText(b));
+		assertEquals(new InvariantSpan(14, 1, "fakeHash"), stream.append("d"));
+		assertEquals("0123456789abcd", stream.getText(new InvariantSpan(1, 14, "fakeHash")));
+	}
+}
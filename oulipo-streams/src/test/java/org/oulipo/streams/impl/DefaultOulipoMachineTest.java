@@ -16,10 +16,16 @@
 package org.oulipo.streams.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Before;
@@ -27,9 +33,12 @@ import org.junit.Test;
 import org.oulipo.streams.MalformedSpanException;
 import org.oulipo.streams.OulipoMachine;
 import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.VariantStream;
 import org.oulipo.streams.VirtualContent;
+import org.oulipo.streams.types.Invariant;
 import org.oulipo.streams.types.InvariantSpan;
 import org.oulipo.streams.types.OverlayStream;
+import org.oulipo.streams.types.StreamElement;
 
 public class DefaultOulipoMachineTest {
 
@@ -44,6 +53,14 @@ public class DefaultOulipoMachineTest {
 		dir.delete();
 	}
 
+	private static long width(VariantStream<?> stream) throws MalformedSpanException {
+		long width = 0;
+		for (StreamElement element : stream.getStreamElements()) {
+			width += element.getWidth();
+		}
+		return width;
+	}
+
 	private DefaultStreamLoader streamLoader;
 
 	private File testDir;
@@ -63,10 +80,48 @@ public class DefaultOulipoMachineTest {
 	}
 
 	@After
-	public void cleanup() {
+	public void cleanup() throws IOException {
+		streamLoader.close();
 		deleteDir(new File("target/test-streams"));
 	}
 
+	@Test
+	public void concurrentInserts() throws Exception {
+		DefaultOulipoMachine machine = DefaultOulipoMachine.createWritableMachine(streamLoader,
+				new MockRemoteFileManager(), documentHash);
+		machine.insert(1, "|");
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+		for (int t = 0; t < 8; t++) {
+			String letter = String.valueOf((char) ('a' + t));
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 50; i++) {
+						machine.insert(1, letter);
+						getText(machine);
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(Collections.emptyList(), failures);
+		String text = getText(machine);
+		assertEquals(401, text.length());
+		assertTrue(text.endsWith("|"));
+		for (int t = 0; t < 8; t++) {
+			char letter = (char) ('a' + t);
+			assertEquals(50, text.chars().filter(c -> c == letter).count());
+		}
+	}
+
 	@Test
 	public void deleteRange() throws Exception {
 		DefaultOulipoMachine som = DefaultOulipoMachine.createWritableMachine(streamLoader, new MockRemoteFileManager(),
@@ -106,6 +161,64 @@ public class DefaultOulipoMachineTest {
 		assertEquals("first", som.getText(new InvariantSpan(4, 5, documentHash)));
 	}
 
+	@Test
+	public void loadDocumentConcurrently() throws Exception {
+		int length = DefaultOulipoMachine.CHECKPOINT_INTERVAL + 3;
+		DocumentChainResolverTest.MapRemoteFileManager remoteFileManager = DocumentChainResolverTest.chain(length);
+		String last = "block-" + (length - 1);
+		DefaultOulipoMachine machine = new DefaultOulipoMachine(streamLoader, remoteFileManager, "docA", null);
+
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+		for (int t = 0; t < 8; t++) {
+			threads.add(new Thread(() -> {
+				try {
+					machine.loadDocument(last);
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// loaded once, not once per request
+		assertEquals(Collections.emptyList(), failures);
+		assertEquals(length, machine.getInvariants().size());
+		assertEquals(new InvariantSpan(length, 1, "fakeHash"), machine.getInvariants().get(0));
+	}
+
+	@Test
+	public void loadDocumentFromCheckpoint() throws Exception {
+		int length = DefaultOulipoMachine.CHECKPOINT_INTERVAL + 3;
+		DocumentChainResolverTest.MapRemoteFileManager remoteFileManager = DocumentChainResolverTest.chain(length);
+		String lastCheckpointed = "block-" + (length - 4);
+		String last = "block-" + (length - 1);
+
+		DefaultOulipoMachine machine = new DefaultOulipoMachine(streamLoader, remoteFileManager, "docA", null);
+		machine.loadDocument(lastCheckpointed);
+		assertTrue(streamLoader.hasCheckpoint(lastCheckpointed));
+
+		// replays only the blocks after the checkpoint
+		remoteFileManager.gets.set(0);
+		DefaultOulipoMachine reloaded = new DefaultOulipoMachine(streamLoader, remoteFileManager, "docB", null);
+		reloaded.loadDocument(last);
+		assertEquals(3, remoteFileManager.gets.get());
+
+		DefaultStreamLoader replayLoader = new DefaultStreamLoader(new File(testDir, "replay"),
+				"maximumSize=10000,expireAfterWrite=10m");
+		DefaultOulipoMachine replayed = new DefaultOulipoMachine(replayLoader, remoteFileManager, "docC", null);
+		replayed.loadDocument(last);
+		assertEquals(replayed.getInvariants(), reloaded.getInvariants());
+		assertEquals(length, reloaded.getInvariants().size());
+		assertEquals(new InvariantSpan(length, 1, "fakeHash"), reloaded.getInvariants().get(0));
+		replayLoader.close();
+	}
+
 	@Test
 	public void mixTest() throws Exception {
 		DefaultOulipoMachine machine = DefaultOulipoMachine.createWritableMachine(streamLoader,
@@ -146,4 +259,34 @@ public class DefaultOulipoMachineTest {
 		testDir = new File("target/test-streams-" + System.currentTimeMillis());
 		streamLoader = new DefaultStreamLoader(testDir, spec);
 	}
+
+	@Test
+	public void readsSeeWholeEdits() throws Exception {
+		DefaultOulipoMachine machine = DefaultOulipoMachine.createWritableMachine(streamLoader,
+				new MockRemoteFileManager(), documentHash);
+		machine.insert(1, "|");
+		VariantStream<Invariant> vStream = streamLoader.openInvariantVariantStream(documentHash);
+		VariantStream<OverlayStream> oStream = streamLoader.openOverlayVariantStream(documentHash);
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread reader = new Thread(() -> {
+			try {
+				while (!done.get()) {
+					// the width of the invariants and of the overlays as of one edit
+					long[] widths = machine.read(() -> new long[] { width(vStream), width(oStream) });
+					assertEquals(widths[0], widths[1]);
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		reader.start();
+		for (int i = 0; i < 2000 && failure.get() == null; i++) {
+			machine.insert(1, "a");
+		}
+		done.set(true);
+		reader.join();
+		assertNull(failure.get());
+		assertEquals(2001, getText(machine).length());
+	}
 }
@@ -15,12 +15,35 @@
  *******************************************************************************/
 package org.oulipo.streams.impl;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
+import org.junit.Test;
+import org.oulipo.streams.Checkpoint;
 import org.oulipo.streams.StreamLoader;
+import org.oulipo.streams.VariantSpan;
 import org.oulipo.streams.VariantStream;
 import org.oulipo.streams.types.Invariant;
+import org.oulipo.streams.types.InvariantMedia;
 import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.OverlayStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class DefaultStreamsLoaderTest {
 	public static final String documentHash = "fakeHash";
@@ -34,4 +57,202 @@ public class DefaultStreamsLoaderTest {
 		vs.put(1, new InvariantSpan(1, 10, documentHash));
 		streamLoader.flushVariantCache();
 	}
+
+	private static File newDir() {
+		return new File("target/streams-junit/DefaultStreamLoader-" + System.nanoTime());
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void checkpoint() throws Exception {
+		File dir = newDir();
+		DefaultStreamLoader loader = new DefaultStreamLoader(dir, "maximumSize=100");
+		assertFalse(loader.hasCheckpoint("block"));
+		assertNull(loader.readCheckpoint("block"));
+
+		loader.writeCheckpoint("block", new Checkpoint(Arrays.asList(new InvariantSpan(1, 10, documentHash)),
+				Arrays.asList(new OverlayStream(10))));
+		assertTrue(loader.hasCheckpoint("block"));
+		loader.close();
+
+		DefaultStreamLoader reopened = new DefaultStreamLoader(dir, "maximumSize=100");
+		Checkpoint checkpoint = reopened.readCheckpoint("block");
+		assertEquals(Arrays.asList(new InvariantSpan(1, 10, documentHash)), checkpoint.getInvariants());
+		assertEquals(Arrays.asList(new OverlayStream(10)), checkpoint.getOverlays());
+		reopened.close();
+	}
+
+	@Test
+	public void closeWritesDirtyStreams() throws Exception {
+		File dir = newDir();
+		DefaultStreamLoader loader = new DefaultStreamLoader(dir, "maximumSize=100", false, 60000, 100);
+		loader.openOverlayVariantStream(documentHash).put(1, new OverlayStream(10));
+		assertFalse(new File(dir, documentHash + "-overlays.snapshot").exists());
+		loader.close();
+
+		DefaultStreamLoader reopened = new DefaultStreamLoader(dir, "maximumSize=100");
+		assertEquals(Arrays.asList(new OverlayStream(10)),
+				reopened.openOverlayVariantStream(documentHash).getStreamElements());
+		reopened.close();
+	}
+
+	@Test
+	public void concurrentOpensShareLoad() throws Exception {
+		File dir = newDir();
+		DefaultStreamLoader writer = new DefaultStreamLoader(dir, "maximumSize=100");
+		writer.openOverlayVariantStream(documentHash).put(1, new OverlayStream(10));
+		writer.close();
+
+		DefaultStreamLoader loader = new DefaultStreamLoader(dir, "maximumSize=100");
+		List<CompletableFuture<VariantStream<OverlayStream>>> opens = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			opens.add(loader.openOverlayVariantStreamAsync(documentHash));
+		}
+		VariantStream<OverlayStream> stream = loader.openOverlayVariantStream(documentHash);
+		for (CompletableFuture<VariantStream<OverlayStream>> open : opens) {
+			assertSame(stream, open.get());
+		}
+		assertEquals(Arrays.asList(new OverlayStream(10)), stream.getStreamElements());
+		loader.close();
+	}
+
+	@Test
+	public void evictByWeight() throws Exception {
+		long budget = 8 * DefaultStreamLoader.STREAM_BYTES;
+		DefaultStreamLoader loader = new DefaultStreamLoader(newDir(), "concurrencyLevel=1", false, 60000, 100,
+				budget);
+		for (int i = 0; i < 20; i++) {
+			loader.openInvariantVariantStream("hash" + i);
+		}
+		assertTrue(loader.getCacheBytes() <= budget);
+		assertTrue(loader.getCacheStats().evictionCount() >= 12);
+		loader.close();
+	}
+
+	@Test
+	public void flushVariantCacheWritesDirtyStreams() throws Exception {
+		File dir = newDir();
+		DefaultStreamLoader loader = new DefaultStreamLoader(dir, "maximumSize=100", false, 60000, 100);
+		loader.openInvariantVariantStream(documentHash).put(1, new InvariantSpan(1, 10, documentHash));
+		loader.flushVariantCache();
+
+		DefaultStreamLoader reopened = new DefaultStreamLoader(dir, "maximumSize=100");
+		assertEquals(Arrays.asList(new InvariantSpan(1, 10, documentHash)),
+				reopened.openInvariantVariantStream(documentHash).getStreamElements());
+		reopened.close();
+		loader.close();
+	}
+
+	@Test
+	public void journalEditsAcrossLoaders() throws Exception {
+		File dir = newDir();
+		DefaultStreamLoader loader = new DefaultStreamLoader(dir, "maximumSize=100", false, 60000, 100);
+		VariantStream<Invariant> vs = loader.openInvariantVariantStream(documentHash);
+		vs.put(1, new InvariantSpan(1, 10, documentHash));
+		vs.put(11, new InvariantMedia("media"));
+		vs.put(1, new InvariantSpan(100, 5, "other"));
+		vs.delete(new VariantSpan(3, 2));
+		List<Invariant> expected = vs.getStreamElements();
+		loader.close();
+
+		DefaultStreamLoader reopened = new DefaultStreamLoader(dir, "maximumSize=100");
+		assertEquals(expected, reopened.openInvariantVariantStream(documentHash).getStreamElements());
+		reopened.close();
+	}
+
+	@Test
+	public void migrateJsonOverlays() throws Exception {
+		File dir = newDir();
+		dir.mkdirs();
+		File json = new File(dir, documentHash + "-overlays.json");
+		List<OverlayStream> elements = Arrays.asList(new OverlayStream(10), new OverlayStream(5, "tag"));
+		new ObjectMapper().writeValue(json, elements);
+
+		DefaultStreamLoader loader = new DefaultStreamLoader(dir, "maximumSize=100");
+		assertEquals(elements, loader.openOverlayVariantStream(documentHash).getStreamElements());
+		loader.close();
+		assertFalse(json.exists());
+		assertTrue(new File(dir, documentHash + "-overlays.snapshot").exists());
+
+		DefaultStreamLoader reopened = new DefaultStreamLoader(dir, "maximumSize=100");
+		assertEquals(elements, reopened.openOverlayVariantStream(documentHash).getStreamElements());
+		reopened.close();
+	}
+
+	@Test
+	public void openAsyncFailure() throws Exception {
+		File dir = newDir();
+		dir.mkdirs();
+		Files.write(new File(dir, documentHash + "-overlays.snapshot").toPath(), new byte[] { 1, 2, 3 });
+
+		DefaultStreamLoader loader = new DefaultStreamLoader(dir, "maximumSize=100");
+		try {
+			loader.openOverlayVariantStreamAsync(documentHash).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		try {
+			loader.openOverlayVariantStream(documentHash);
+			fail();
+		} catch (IOException e) {
+		}
+		loader.close();
+	}
+
+	@Test
+	public void reopenDirtyEvictedStream() throws Exception {
+		DefaultStreamLoader loader = new DefaultStreamLoader(newDir(), "maximumSize=0", false, 60000, 100);
+		VariantStream<Invariant> vs = loader.openInvariantVariantStream(documentHash);
+		vs.put(1, new InvariantSpan(1, 10, documentHash));
+		assertSame(vs, loader.openInvariantVariantStream(documentHash));
+		loader.close();
+	}
+
+	@Test
+	public void weighOnWrite() throws Exception {
+		DefaultStreamLoader loader = new DefaultStreamLoader(newDir(), "concurrencyLevel=1", false, 10, 100,
+				1 << 20);
+		VariantStream<Invariant> vs = loader.openInvariantVariantStream(documentHash);
+		assertEquals(DefaultStreamLoader.STREAM_BYTES, loader.getCacheBytes());
+		for (int i = 0; i < 100; i++) {
+			vs.put(1 + i, new InvariantSpan(1 + 2 * i, 1, documentHash));
+		}
+		long expected = DefaultStreamLoader.STREAM_BYTES + 100 * DefaultStreamLoader.INVARIANT_ELEMENT_BYTES;
+		waitFor(() -> loader.getCacheBytes() == expected);
+		assertEquals(expected, loader.getCacheBytes());
+		assertSame(vs, loader.openInvariantVariantStream(documentHash));
+		assertEquals(1, loader.getCacheStats().hitCount());
+		loader.close();
+	}
+
+	@Test
+	public void writeBehindOnInterval() throws Exception {
+		File dir = newDir();
+		DefaultStreamLoader loader = new DefaultStreamLoader(dir, "maximumSize=100", false, 10, 100);
+		loader.openOverlayVariantStream(documentHash).put(1, new OverlayStream(5));
+		waitFor(() -> new File(dir, documentHash + "-overlays.snapshot").exists());
+		assertTrue(new File(dir, documentHash + "-overlays.snapshot").exists());
+		loader.close();
+	}
+
+	@Test
+	public void writeBehindOnMaxDirtyStreams() throws Exception {
+		File dir = newDir();
+		DefaultStreamLoader loader = new DefaultStreamLoader(dir, "maximumSize=100", false, 60000, 2);
+		loader.openInvariantVariantStream("a").put(1, new InvariantSpan(1, 10, "a"));
+		loader.openInvariantVariantStream("b").put(1, new InvariantSpan(1, 10, "b"));
+		File a = new File(dir, "a-invariants.journal");
+		File b = new File(dir, "b-invariants.journal");
+		waitFor(() -> a.length() > 14 && b.length() > 14);
+		assertTrue(a.length() > 14);
+		assertTrue(b.length() > 14);
+		loader.close();
+	}
 }
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitcoinj.core.ECKey;
+import org.junit.Test;
+import org.oulipo.streams.RemoteFileManager;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.document.DocumentFile;
+
+public class DocumentChainResolverTest {
+
+	static class MapRemoteFileManager implements RemoteFileManager {
+
+		final Map<String, byte[]> blocks = new HashMap<>();
+
+		final AtomicInteger gets = new AtomicInteger();
+
+		@Override
+		public String add(File file) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public byte[] get(String hash) throws IOException {
+			gets.incrementAndGet();
+			return blocks.get(hash);
+		}
+	}
+
+	/**
+	 * Creates a chain of blocks, "block-0" to "block-(length - 1)". Each block
+	 * puts one character of invariant text, and an overlay, at the start of the
+	 * document.
+	 */
+	static MapRemoteFileManager chain(int length) throws Exception {
+		MapRemoteFileManager remoteFileManager = new MapRemoteFileManager();
+		ECKey key = new ECKey();
+		for (int i = 0; i < length; i++) {
+			DocumentFile.Builder builder = new DocumentFile.Builder("fakeHash");
+			builder.genesisHash("block-0");
+			if (i > 0) {
+				builder.previousHashBlock("block-" + (i - 1));
+			}
+			builder.appendText("text-" + i);
+			builder.putInvariantSpan(1, i + 1, 1, "fakeHash");
+			builder.putOverlayOp(new VariantSpan(1, 1), Collections.emptySet());
+			remoteFileManager.blocks.put("block-" + i, DocumentFile.compiler().compile(builder.build(), key).getBytes());
+		}
+		return remoteFileManager;
+	}
+
+	@Test(expected = IOException.class)
+	public void cycle() throws Exception {
+		MapRemoteFileManager remoteFileManager = new MapRemoteFileManager();
+		ECKey key = new ECKey();
+		for (int i = 0; i < 2; i++) {
+			DocumentFile.Builder builder = new DocumentFile.Builder("fakeHash");
+			builder.previousHashBlock("block-" + (1 - i));
+			remoteFileManager.blocks.put("block-" + i, DocumentFile.compiler().compile(builder.build(), key).getBytes());
+		}
+		DocumentChainResolver.resolve("block-1", remoteFileManager, 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPrefetch() throws Exception {
+		DocumentChainResolver.resolve("block-0", chain(1), 0);
+	}
+
+	@Test
+	public void longChain() throws Exception {
+		MapRemoteFileManager remoteFileManager = chain(500);
+		List<DocumentFile> files = DocumentChainResolver.resolve("block-499", remoteFileManager, 4);
+		assertEquals(500, files.size());
+		for (int i = 0; i < files.size(); i++) {
+			assertEquals("text-" + i, files.get(i).getInvariantStream());
+		}
+		assertEquals(500, remoteFileManager.gets.get());
+	}
+
+	@Test(expected = IOException.class)
+	public void missingBlock() throws Exception {
+		MapRemoteFileManager remoteFileManager = chain(3);
+		remoteFileManager.blocks.remove("block-1");
+		DocumentChainResolver.resolve("block-2", remoteFileManager, 2);
+	}
+
+	@Test
+	public void resolve() throws Exception {
+		List<DocumentFile> files = DocumentChainResolver.resolve("block-2", chain(3), 1);
+		assertEquals(3, files.size());
+		assertEquals("block-0", files.get(0).getDocumentHash());
+		assertEquals("block-1", files.get(1).getDocumentHash());
+		assertEquals("block-2", files.get(2).getDocumentHash());
+		assertEquals("", files.get(0).getHashPreviousBlock());
+		assertEquals("block-1", files.get(2).getHashPreviousBlock());
+	}
+
+	@Test
+	public void resolveSingleBlock() throws Exception {
+		List<DocumentFile> files = DocumentChainResolver.resolve("block-0", chain(1), 4);
+		assertEquals(1, files.size());
+		assertEquals("text-0", files.get(0).getInvariantStream());
+	}
+
+	@Test
+	public void stopAtCheckpoint() throws Exception {
+		MapRemoteFileManager remoteFileManager = chain(5);
+		List<DocumentFile> files = DocumentChainResolver.resolve("block-4", remoteFileManager, 2,
+				blockHash -> blockHash.equals("block-1"));
+		assertEquals(3, files.size());
+		assertEquals("block-2", files.get(0).getDocumentHash());
+		assertEquals("block-1", files.get(0).getHashPreviousBlock());
+		assertEquals(3, remoteFileManager.gets.get());
+
+		assertEquals(0, DocumentChainResolver.resolve("block-4", remoteFileManager, 2, blockHash -> true).size());
+	}
+}
@@ -15,13 +15,300 @@
  *******************************************************************************/
 package org.oulipo.streams.impl;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 import org.oulipo.streams.InvariantStream;
+import org.oulipo.streams.types.InvariantSpan;
 
 public class FileInvariantStreamTest {
 
+	private static InvariantStream newStream() throws IOException {
+		File file = new File("target/streams-junit/FileInvariantStream-" + System.nanoTime() + ".txt");
+		return new FileInvariantStream(file, null, "fakeHash", null);
+	}
+
+	@Test
+	public void appendConcurrentlyToManyStreams() throws Exception {
+		List<InvariantStream> streams = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			File file = new File("target/streams-junit/FileInvariantStream-" + System.nanoTime() + ".txt");
+			streams.add(new FileInvariantStream(file, null, String.valueOf(i), null));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Map<InvariantSpan, String>>> writers = new ArrayList<>();
+			for (int w = 0; w < 8; w++) {
+				int seed = w;
+				writers.add(executor.submit(() -> {
+					Random random = new Random(seed);
+					Map<InvariantSpan, String> texts = new HashMap<>();
+					for (int i = 0; i < 100; i++) {
+						InvariantStream stream = streams.get(random.nextInt(streams.size()));
+						StringBuilder text = new StringBuilder();
+						for (int j = random.nextInt(i % 10 == 0 ? 5000 : 20); j >= 0; j--) {
+							text.append(j % 3 == 0 ? "\u6F22" : "w" + seed);
+						}
+						texts.put(stream.append(text.toString()), text.toString());
+					}
+					return texts;
+				}));
+			}
+
+			Map<InvariantSpan, String> texts = new HashMap<>();
+			for (Future<Map<InvariantSpan, String>> writer : writers) {
+				texts.putAll(writer.get());
+			}
+			assertEquals(800, texts.size());
+			for (Map.Entry<InvariantSpan, String> entry : texts.entrySet()) {
+				InvariantStream stream = streams.get(Integer.parseInt(entry.getKey().getDocumentHash()));
+				assertEquals(entry.getValue(), stream.getText(entry.getKey()));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void appendLongText() throws Exception {
+		InvariantStream stream = newStream();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			text.append(i % 7 == 0 ? "\uD83D\uDE00" : "Ξ");
+		}
+		InvariantSpan span = stream.append(text.toString());
+		assertEquals(text.length(), span.getWidth());
+		assertEquals(text.toString(), stream.getText(span));
+		assertEquals("ok", stream.getText(stream.append("ok")));
+	}
+
+	@Test
+	public void closeReopen() throws Exception {
+		File file = new File("target/streams-junit/FileInvariantStream-" + System.nanoTime() + ".txt");
+		InvariantStream stream = new FileInvariantStream(file, null, "fakeHash", null);
+		InvariantSpan span = stream.append("Hello");
+		stream.close();
+
+		InvariantStream reopened = new FileInvariantStream(file, null, "fakeHash", null);
+		assertEquals("Hello", reopened.getText(span));
+		reopened.close();
+	}
+
+	@Test
+	public void getText() throws Exception {
+		InvariantStream stream = newStream();
+		InvariantSpan hello = stream.append("Hello");
+		InvariantSpan xanadu = stream.append("Xanadu");
+
+		assertEquals("Hello", stream.getText(hello));
+		assertEquals("Xanadu", stream.getText(xanadu));
+		assertEquals("loXan", stream.getText(new InvariantSpan(4, 5, "fakeHash")));
+	}
+
+	@Test
+	public void getTextAfterGrowth() throws Exception {
+		InvariantStream stream = newStream();
+		InvariantSpan hello = stream.append("Hello");
+		assertEquals("Hello", stream.getText(hello));
+
+		InvariantSpan xanadu = stream.append("Xanadu");
+		assertEquals("Xanadu", stream.getText(xanadu));
+		assertEquals("Hello", stream.getText(hello));
+	}
+
+	@Test
+	public void getTextAfterSmallGrowth() throws Exception {
+		InvariantStream stream = newStream();
+		InvariantSpan hello = stream.append("Hello");
+		assertEquals("Hello", stream.getText(hello));
+
+		// Too small a growth to remap: read past the mapping
+		InvariantSpan bang = stream.append("!");
+		assertEquals("!", stream.getText(bang));
+		assertEquals("lo!", stream.getText(new InvariantSpan(4, 3, "fakeHash")));
+
+		InvariantSpan xanadu = stream.append("Xanadu");
+		assertEquals("Xanadu", stream.getText(xanadu));
+		assertEquals("Hello!", stream.getText(new InvariantSpan(1, 6, "fakeHash")));
+	}
+
+	@Test
+	public void getTextMultibyte() throws Exception {
+		InvariantStream stream = newStream();
+		InvariantSpan greek = stream.append("Ξανάδου");
+		InvariantSpan mixed = stream.append("a\u6F22\uD83D\uDE00b");
+
+		assertEquals(new InvariantSpan(1, 7, "fakeHash"), greek);
+		assertEquals(new InvariantSpan(8, 5, "fakeHash"), mixed);
+		assertEquals("Ξανάδου", stream.getText(greek));
+		assertEquals("a\u6F22\uD83D\uDE00b", stream.getText(mixed));
+		assertEquals("ου\u0061\u6F22", stream.getText(new InvariantSpan(6, 4, "fakeHash")));
+	}
+
+	@Test
+	public void getTextRandomAccess() throws Exception {
+		InvariantStream stream = newStream();
+		String alphabet = "aZ5 éßΩж\u6F22\u5B57\uD83D\uDE00";
+		StringBuilder model = new StringBuilder();
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			StringBuilder text = new StringBuilder();
+			for (int j = random.nextInt(20); j >= 0; j--) {
+				int k = random.nextInt(alphabet.length() - 1);
+				text.append(Character.isHighSurrogate(alphabet.charAt(k)) ? alphabet.substring(k, k + 2)
+						: Character.isLowSurrogate(alphabet.charAt(k)) ? "x" : alphabet.substring(k, k + 1));
+			}
+			InvariantSpan span = stream.append(text.toString());
+			assertEquals(model.length() + 1, span.getStart());
+			model.append(text);
+		}
+
+		for (int i = 0; i < 500; i++) {
+			int from = random.nextInt(model.length());
+			int width = 1 + random.nextInt(Math.min(600, model.length() - from));
+			assertEquals(model.substring(from, from + width),
+					stream.getText(new InvariantSpan(from + 1, width, "fakeHash")));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void getTextPastEnd() throws Exception {
+		InvariantStream stream = newStream();
+		stream.append("Hello");
+		stream.getText(new InvariantSpan(3, 10, "fakeHash"));
+	}
+
+	@Test
+	public void getTextWhileAppending() throws Exception {
+		InvariantStream stream = newStream();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<List<InvariantSpan>> writer = executor.submit(() -> {
+				List<InvariantSpan> spans = new ArrayList<>();
+				for (int i = 0; i < 200; i++) {
+					spans.add(stream.append(String.format("%03d", i)));
+				}
+				return spans;
+			});
+			List<Future<?>> readers = new ArrayList<>();
+			for (int r = 0; r < 3; r++) {
+				readers.add(executor.submit(() -> {
+					InvariantSpan first = new InvariantSpan(1, 3, "fakeHash");
+					while (!writer.isDone()) {
+						try {
+							assertEquals("000", stream.getText(first));
+						} catch (IOException e) {
+							// nothing appended yet
+						}
+					}
+					return null;
+				}));
+			}
+			List<InvariantSpan> spans = writer.get();
+			for (Future<?> reader : readers) {
+				reader.get();
+			}
+			for (int i = 0; i < spans.size(); i++) {
+				assertEquals(String.format("%03d", i), stream.getText(spans.get(i)));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void getTexts() throws Exception {
+		InvariantStream stream = newStream();
+		List<InvariantSpan> spans = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			String text = "span" + i + "\u6F22";
+			spans.add(stream.append(text));
+			expected.add(text);
+		}
+		Collections.reverse(spans);
+		Collections.reverse(expected);
+		spans.remove(10);
+		expected.remove(10);
+
+		assertEquals(expected, stream.getTexts(spans));
+	}
+
+	@Test
+	public void groupCommit() throws Exception {
+		File file = new File("target/streams-junit/FileInvariantStream-" + System.nanoTime() + ".txt");
+		InvariantStream stream = new FileInvariantStream(file, null, "fakeHash", null, 8, 5);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<List<InvariantSpan>>> writers = new ArrayList<>();
+			for (int w = 0; w < 8; w++) {
+				String text = "writer" + w;
+				writers.add(executor.submit(() -> {
+					List<InvariantSpan> spans = new ArrayList<>();
+					for (int i = 0; i < 50; i++) {
+						spans.add(stream.append(text));
+					}
+					return spans;
+				}));
+			}
+
+			Set<Long> starts = new HashSet<>();
+			for (int w = 0; w < writers.size(); w++) {
+				for (InvariantSpan span : writers.get(w).get()) {
+					assertEquals("writer" + w, stream.getText(span));
+					assertTrue(starts.add(span.getStart()));
+				}
+			}
+			assertEquals(8 * 50 * 7, file.length());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void groupCommitSingleWriter() throws Exception {
+		File file = new File("target/streams-junit/FileInvariantStream-" + System.nanoTime() + ".txt");
+		InvariantStream stream = new FileInvariantStream(file, null, "fakeHash", null, 100, 1);
+		assertEquals(new InvariantSpan(1, 5, "fakeHash"), stream.append("Hello"));
+		assertEquals(new InvariantSpan(6, 6, "fakeHash"), stream.append("Xanadu"));
+	}
+
+	@Test
+	public void reopenRebuildsIndex() throws Exception {
+		File file = new File("target/streams-junit/FileInvariantStream-" + System.nanoTime() + ".txt");
+		StringBuilder model = new StringBuilder();
+		InvariantStream stream = new FileInvariantStream(file, null, "fakeHash", null);
+		for (int i = 0; i < 100; i++) {
+			String text = "ж" + i + "\u6F22";
+			stream.append(text);
+			model.append(text);
+		}
+
+		InvariantStream reopened = new FileInvariantStream(file, null, "fakeHash", null);
+		assertEquals(model.substring(300, 320), reopened.getText(new InvariantSpan(301, 20, "fakeHash")));
+
+		new File(file.getPath() + ".index").delete();
+		reopened = new FileInvariantStream(file, null, "fakeHash", null);
+		assertEquals(model.substring(300, 320), reopened.getText(new InvariantSpan(301, 20, "fakeHash")));
+		assertEquals(new InvariantSpan(model.length() + 1, 2, "fakeHash"), reopened.append("ok"));
+	}
+
 	@Test
 	public void streamLoadable() throws Exception {
 		File file = new File("target/streams-junit/FileInvariantStream-" + System.currentTimeMillis() + ".txt");
@@ -15,6 +15,27 @@
  *******************************************************************************/
 package org.oulipo.streams.impl;
 
+import static org.junit.Assert.assertEquals;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+import org.oulipo.streams.types.InvariantSpan;
+
 public class InvariantSpanCollectorTest {
 
+	public static final String documentHash = "fakeHash";
+
+	@Test
+	public void collectLinearList() throws Exception {
+		InvariantSpanCollector<InvariantSpan> collector = new InvariantSpanCollector<>(1);
+		collector.collect(NodeFactory.createLinearList(100000), 1, 100001);
+
+		int count = 0;
+		Iterator<InvariantSpan> it = collector.iterator();
+		while (it.hasNext()) {
+			assertEquals(++count, it.next().getStart());
+		}
+		assertEquals(100000, count);
+	}
 }
@@ -97,6 +97,20 @@ public final class NodeFactory {
 		return A;
 	}
 
+	/**
+	 * Creates a degenerate rope of the specified number of leaves, each of width 1,
+	 * as produced by appending leaves one at a time without rebalancing. Every
+	 * branch node has the previous rope as its left child.
+	 */
+	public static Node<InvariantSpan> createLinearList(int leaves) throws MalformedSpanException {
+		Node<InvariantSpan> x = new Node<>(new InvariantSpan(1, 1, documentHash));
+		for (int i = 2; i <= leaves; i++) {
+			Node<InvariantSpan> leaf = new Node<>(new InvariantSpan(i, 1, documentHash));
+			x = new Node.Builder<InvariantSpan>(i - 1).left(x).right(leaf).build();
+		}
+		return x;
+	}
+
 	public static Node<InvariantSpan> getA() throws MalformedSpanException {
 		return createTestNode();
 	}
@@ -16,12 +16,15 @@
 package org.oulipo.streams.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.oulipo.streams.impl.NodeFactory.getE;
 import static org.oulipo.streams.impl.NodeFactory.getF;
 import static org.oulipo.streams.impl.NodeFactory.getK;
 
+import java.util.ArrayList;
+
 import org.junit.Test;
 import org.oulipo.streams.MalformedSpanException;
 import org.oulipo.streams.types.InvariantSpan;
@@ -30,6 +33,59 @@ public class NodeTest {
 
 	public static final String documentHash = "fakeHash";
 
+	@Test
+	public void characterCount() throws Exception {
+		Node<InvariantSpan> left = new Node<>(new InvariantSpan(1, 10, documentHash));
+		Node<InvariantSpan> right = new Node<>(new InvariantSpan(11, 5, documentHash));
+		Node<InvariantSpan> x = new Node.Builder<InvariantSpan>(10).left(left).right(right).build();
+		assertEquals(15, x.characterCount());
+	}
+
+	@Test
+	public void characterCountAfterCut() throws Exception {
+		Node<InvariantSpan> a = new Node<>(new InvariantSpan(1, 10, documentHash));
+		Node<InvariantSpan> b = new Node<>(new InvariantSpan(11, 5, documentHash));
+		Node<InvariantSpan> c = new Node<>(new InvariantSpan(16, 3, documentHash));
+		Node<InvariantSpan> ab = new Node.Builder<InvariantSpan>(10).left(a).right(b).build();
+		Node<InvariantSpan> abc = new Node.Builder<InvariantSpan>(15).left(ab).right(c).build();
+		assertEquals(18, abc.characterCount());
+
+		RopeUtils.cutRightNode(ab, new ArrayList<>());
+		assertEquals(10, ab.characterCount());
+		assertEquals(13, abc.characterCount());
+	}
+
+	@Test
+	public void characterCountRawTree() throws Exception {
+		assertEquals(22, NodeFactory.getA().characterCount());
+	}
+
+	@Test
+	public void invariantRange() throws Exception {
+		Node<InvariantSpan> left = new Node<>(new InvariantSpan(100, 10, documentHash));
+		Node<InvariantSpan> right = new Node<>(new InvariantSpan(11, 5, documentHash));
+		Node<InvariantSpan> x = new Node.Builder<InvariantSpan>(10).left(left).right(right).build();
+		assertTrue(x.invariantBounds().intersects(documentHash, 109, 110));
+		assertTrue(x.invariantBounds().intersects(documentHash, 11, 12));
+		assertFalse(x.invariantBounds().intersects(documentHash, 110, 120));
+		assertFalse(x.invariantBounds().intersects(documentHash, 1, 11));
+
+		RopeUtils.cutLeftNode(x, new ArrayList<>());
+		assertTrue(x.invariantBounds().intersects(documentHash, 11, 16));
+		assertFalse(x.invariantBounds().intersects(documentHash, 100, 110));
+	}
+
+	@Test
+	public void invariantRangeTranscluded() throws Exception {
+		Node<InvariantSpan> left = new Node<>(new InvariantSpan(100, 10, documentHash));
+		Node<InvariantSpan> right = new Node<>(new InvariantSpan(11, 5, "otherHash"));
+		Node<InvariantSpan> x = new Node.Builder<InvariantSpan>(10).left(left).right(right).build();
+		assertTrue(x.invariantBounds().intersects(documentHash, 100, 110));
+		assertFalse(x.invariantBounds().intersects(documentHash, 11, 16));
+		assertTrue(x.invariantBounds().intersects("otherHash", 11, 16));
+		assertFalse(x.invariantBounds().intersects("otherHash", 100, 110));
+	}
+
 	@Test
 	public void isRight() throws Exception {
 		Node<InvariantSpan> right = new Node<InvariantSpan>(new InvariantSpan(1, 10, documentHash));
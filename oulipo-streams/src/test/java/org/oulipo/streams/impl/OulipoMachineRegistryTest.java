@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.oulipo.streams.OulipoMachine;
+import org.oulipo.streams.types.InvariantSpan;
+
+public class OulipoMachineRegistryTest {
+
+	private DefaultStreamLoader streamLoader;
+
+	@Test(expected = IllegalStateException.class)
+	public void acquireAfterClose() throws Exception {
+		OulipoMachineRegistry registry = new OulipoMachineRegistry(streamLoader, new MockRemoteFileManager(), 60000);
+		registry.close();
+		registry.acquire("fakeHash");
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		streamLoader.close();
+	}
+
+	@Test
+	public void closeIdleMachine() throws Exception {
+		OulipoMachineRegistry registry = new OulipoMachineRegistry(streamLoader, new MockRemoteFileManager(), 10);
+		OulipoMachineRegistry.Lease lease = registry.acquire("fakeHash");
+		OulipoMachine machine = lease.getMachine();
+		InvariantSpan span = machine.append("Hello");
+		lease.close();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (registry.size() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, registry.size());
+
+		try (OulipoMachineRegistry.Lease reopened = registry.acquire("fakeHash")) {
+			assertNotSame(machine, reopened.getMachine());
+			assertEquals("Hello", reopened.getMachine().getText(span));
+		}
+		registry.close();
+	}
+
+	@Test
+	public void keepLeasedMachine() throws Exception {
+		OulipoMachineRegistry registry = new OulipoMachineRegistry(streamLoader, new MockRemoteFileManager(), 10);
+		try (OulipoMachineRegistry.Lease lease = registry.acquire("fakeHash")) {
+			Thread.sleep(50);
+			assertEquals(1, registry.size());
+			assertEquals("Hello", lease.getMachine().getText(lease.getMachine().append("Hello")));
+		}
+		registry.close();
+	}
+
+	@Before
+	public void setup() throws Exception {
+		streamLoader = new DefaultStreamLoader(new File("target/streams-junit/OulipoMachineRegistry-" + System.nanoTime()),
+				"maximumSize=100");
+	}
+
+	@Test
+	public void shareMachine() throws Exception {
+		OulipoMachineRegistry registry = new OulipoMachineRegistry(streamLoader, new MockRemoteFileManager(), 60000);
+		try (OulipoMachineRegistry.Lease a = registry.acquire("fakeHash");
+				OulipoMachineRegistry.Lease b = registry.acquire("fakeHash");
+				OulipoMachineRegistry.Lease c = registry.acquire("otherHash")) {
+			assertSame(a.getMachine(), b.getMachine());
+			assertNotSame(a.getMachine(), c.getMachine());
+			assertEquals(2, registry.size());
+		}
+		registry.close();
+		assertEquals(0, registry.size());
+	}
+}
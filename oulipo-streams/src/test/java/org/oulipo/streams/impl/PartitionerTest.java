@@ -98,6 +98,14 @@ public class PartitionerTest {
 		List<Node<InvariantSpan>> orphans = Partitioner.pruneIndexNode(e.node, 3, e.displacement);
 	}
 
+	@Test
+	public void createNodePartitionLinearListDeep() throws Exception {
+		NodePartition<InvariantSpan> part = Partitioner.createNodePartition(50000,
+				NodeFactory.createLinearList(100000));
+		assertEquals(50000, part.left.characterCount());
+		assertEquals(50000, part.right.characterCount());
+	}
+
 	@Test
 	public void createNodePartitionMiddle() throws Exception {
 		Node<InvariantSpan> a = new Node<>(new InvariantSpan(1, 1, documentHash));
@@ -374,4 +382,34 @@ public class PartitionerTest {
 	 * homeDocument), orphans.get(1).value); }
 	 */
 
+
+	@Test
+	public void splitBalanced() throws Exception {
+		Node<InvariantSpan> root = RopeUtils.rebalance(getA());
+		NodePartition<InvariantSpan> part = Partitioner.split(13, root);
+
+		assertEquals(13, RopeUtils.characterCount(part.left));
+		assertEquals(9, RopeUtils.characterCount(part.right));
+		assertNull(part.left.parent);
+		assertNull(part.right.parent);
+		assertEquals(new InvariantSpan(300, 2, documentHash), RopeUtils.index(13, part.left, 0).node.value);
+		assertEquals(new InvariantSpan(302, 2, documentHash), RopeUtils.index(1, part.right, 0).node.value);
+		assertEquals(new InvariantSpan(360, 6, documentHash), RopeUtils.index(9, part.right, 0).node.value);
+	}
+
+	@Test
+	public void splitBeyondWidth() throws Exception {
+		Node<InvariantSpan> root = RopeUtils.rebalance(getA());
+		NodePartition<InvariantSpan> part = Partitioner.split(22, root);
+		assertEquals(root, part.left);
+		assertNull(part.right);
+	}
+
+	@Test
+	public void splitOnNodeBoundary() throws Exception {
+		Node<InvariantSpan> root = RopeUtils.rebalance(getA());
+		NodePartition<InvariantSpan> part = Partitioner.split(6, root);
+		assertEquals(new InvariantSpan(100, 6, documentHash), part.left.value);
+		assertEquals(16, RopeUtils.characterCount(part.right));
+	}
 }
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.VariantStream;
+import org.oulipo.streams.overlays.PresenterOverlay;
+import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.OverlayStream;
+
+import com.google.common.collect.Sets;
+
+/**
+ * 
+ * [100, 6], [200,3], [250, 2], [300, 4], [350, 1], [360, 6]
+ */
+public class PersistentRopeVariantStreamTest {
+
+	public static final String documentHash = "fakeHash";
+
+	private static PersistentRopeVariantStream<InvariantSpan> getA() throws Exception {
+		PersistentRopeVariantStream<InvariantSpan> stream = new PersistentRopeVariantStream<>(documentHash);
+		stream.putElements(1,
+				Arrays.asList(new InvariantSpan(100, 6, documentHash), new InvariantSpan(200, 3, documentHash),
+						new InvariantSpan(250, 2, documentHash), new InvariantSpan(300, 4, documentHash),
+						new InvariantSpan(350, 1, documentHash), new InvariantSpan(360, 6, documentHash)));
+		return stream;
+	}
+
+	@Test
+	public void applyOverlays() throws Exception {
+		VariantStream<OverlayStream> stream = new PersistentRopeVariantStream<>(documentHash);
+		stream.put(1, new OverlayStream(10));
+
+		stream.applyOverlays(new VariantSpan(1, 5), Sets.newHashSet(PresenterOverlay.BOLD_OVERLAY));
+
+		List<OverlayStream> results = stream.getStreamElements();
+
+		assertEquals(2, results.size());
+		assertTrue(results.get(0).hasLinkType(PresenterOverlay.BOLD_OVERLAY));
+		assertFalse(results.get(1).hasLinkType(PresenterOverlay.BOLD_OVERLAY));
+	}
+
+	@Test
+	public void compact() throws Exception {
+		PersistentRopeVariantStream<InvariantSpan> stream = getA();
+		stream.move(4, new VariantSpan(7, 3));
+		stream.delete(new VariantSpan(4, 3));
+		assertEquals(6, stream.getStreamElements().size());
+
+		stream.compact();
+		List<InvariantSpan> spans = stream.getStreamElements();
+		assertEquals(5, spans.size());
+		assertEquals(new InvariantSpan(100, 6, documentHash), spans.get(0));
+	}
+
+	@Test
+	public void delete() throws Exception {
+		VariantStream<InvariantSpan> stream = getA();
+		stream.delete(new VariantSpan(12, 4));
+		List<InvariantSpan> spans = stream.getStreamElements();
+
+		assertEquals(new InvariantSpan(100, 6, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(350, 1, documentHash), spans.get(3));
+		assertEquals(new InvariantSpan(360, 6, documentHash), spans.get(4));
+
+		assertEquals(5, spans.size());
+	}
+
+	@Test
+	public void deleteWithSplit() throws Exception {
+		VariantStream<InvariantSpan> stream = getA();
+		stream.delete(new VariantSpan(12, 6));
+		List<InvariantSpan> spans = stream.getStreamElements();
+
+		assertEquals(new InvariantSpan(100, 6, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(361, 5, documentHash), spans.get(3));
+
+		assertEquals(4, spans.size());
+	}
+
+	@Test
+	public void getStreamElementsMiddle() throws Exception {
+		VariantStream<InvariantSpan> stream = getA();
+		List<InvariantSpan> spans = stream.getStreamElements(new VariantSpan(5, 9));
+
+		assertEquals(new InvariantSpan(104, 2, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(300, 2, documentHash), spans.get(3));
+		assertEquals(4, spans.size());
+	}
+
+	@Test
+	public void getVariantSpansTranscluded() throws Exception {
+		VariantStream<InvariantSpan> stream = new PersistentRopeVariantStream<>(documentHash);
+		List<InvariantSpan> spans = Arrays.asList(new InvariantSpan(1, 5, documentHash),
+				new InvariantSpan(1, 5, "otherHash"), new InvariantSpan(6, 5, documentHash));
+		stream.putElements(1, spans);
+
+		List<VariantSpan> result = stream.getVariantSpans(new InvariantSpan(3, 2, "otherHash"));
+		assertEquals(1, result.size());
+		assertEquals(new VariantSpan(8, 2, documentHash), result.get(0));
+	}
+
+	@Test
+	public void getVariantSpansTwo() throws Exception {
+		VariantStream<InvariantSpan> stream = new PersistentRopeVariantStream<>(documentHash);
+		List<InvariantSpan> spans = Arrays.asList(new InvariantSpan(7, 5, documentHash),
+				new InvariantSpan(4, 3, documentHash), new InvariantSpan(1, 3, documentHash));
+		stream.putElements(1, spans);
+		List<VariantSpan> result = stream.getVariantSpans(new InvariantSpan(1, 6, documentHash));
+		assertEquals(2, result.size());
+		assertEquals(new VariantSpan(6, 3, documentHash), result.get(0));
+		assertEquals(new VariantSpan(9, 3, documentHash), result.get(1));
+	}
+
+	@Test
+	public void index() throws Exception {
+		VariantStream<InvariantSpan> stream = getA();
+		assertEquals(new InvariantSpan(300, 4, documentHash), stream.index(12));
+		assertEquals(new InvariantSpan(250, 2, documentHash), stream.index(11));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void indexOutOfRange() throws Exception {
+		getA().index(23);
+	}
+
+	@Test
+	public void iterator() throws Exception {
+		Iterator<InvariantSpan> it = getA().iterator(new VariantSpan(5, 9));
+		assertEquals(new InvariantSpan(104, 2, documentHash), it.next());
+		assertEquals(new InvariantSpan(200, 3, documentHash), it.next());
+		assertEquals(new InvariantSpan(250, 2, documentHash), it.next());
+		assertEquals(new InvariantSpan(300, 2, documentHash), it.next());
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void iteratorUnaffectedByEdits() throws Exception {
+		PersistentRopeVariantStream<InvariantSpan> stream = getA();
+		Iterator<InvariantSpan> it = stream.iterator(new VariantSpan(1, 22));
+		stream.delete(new VariantSpan(1, 10));
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		assertEquals(6, count);
+	}
+
+	@Test
+	public void moveSpan() throws Exception {
+		VariantStream<InvariantSpan> stream = getA();
+		stream.move(2, new VariantSpan(12, 3));
+		List<InvariantSpan> spans = stream.getStreamElements();
+		assertEquals(new InvariantSpan(100, 1, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(300, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(101, 5, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(3));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(4));
+		assertEquals(new InvariantSpan(303, 1, documentHash), spans.get(5));
+		assertEquals(new InvariantSpan(350, 1, documentHash), spans.get(6));
+		assertEquals(new InvariantSpan(360, 6, documentHash), spans.get(7));
+	}
+
+	@Test
+	public void putElementsMiddle() throws Exception {
+		PersistentRopeVariantStream<InvariantSpan> stream = getA();
+		stream.putElements(4,
+				Arrays.asList(new InvariantSpan(500, 2, documentHash), new InvariantSpan(600, 1, documentHash)));
+
+		List<InvariantSpan> spans = stream.getStreamElements();
+		assertEquals(9, spans.size());
+		assertEquals(new InvariantSpan(100, 3, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(500, 2, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(600, 1, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(103, 3, documentHash), spans.get(3));
+		assertEquals(25, PersistentNode.characterCount(stream.getRoot()));
+	}
+
+	@Test
+	public void putWithSplit() throws Exception {
+		VariantStream<InvariantSpan> stream = getA();
+		stream.put(5, new InvariantSpan(500, 34, documentHash));
+		List<InvariantSpan> spans = stream.getStreamElements();
+
+		assertEquals(new InvariantSpan(100, 4, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(500, 34, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(104, 2, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(3));
+	}
+
+	@Test
+	public void readersSeeWholeEdits() throws Exception {
+		PersistentRopeVariantStream<InvariantSpan> stream = getA();
+		long width = stream.getRoot().characterCount;
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<String> failure = new AtomicReference<>();
+		Thread reader = new Thread(() -> {
+			while (!done.get() && failure.get() == null) {
+				PersistentNode<InvariantSpan> root = stream.getRoot();
+				if (root.characterCount != width) {
+					failure.set("width " + root.characterCount);
+				}
+			}
+		});
+		reader.start();
+		for (int i = 0; i < 20000; i++) {
+			stream.move(2, new VariantSpan(12, 3));
+			stream.swap(new VariantSpan(1, 3), new VariantSpan(12, 3));
+		}
+		done.set(true);
+		reader.join();
+		assertNull(failure.get());
+		assertEquals(width, stream.getRoot().characterCount);
+	}
+
+	@Test
+	public void snapshotUnaffectedByEdits() throws Exception {
+		PersistentRopeVariantStream<InvariantSpan> stream = getA();
+		PersistentRopeVariantStream<InvariantSpan> snapshot = stream.snapshot();
+
+		stream.delete(new VariantSpan(1, 10));
+		stream.put(1, new InvariantSpan(500, 34, documentHash));
+
+		assertEquals(6, snapshot.getStreamElements().size());
+		assertEquals(new InvariantSpan(100, 6, documentHash), snapshot.index(1));
+		assertEquals(new InvariantSpan(500, 34, documentHash), stream.index(1));
+	}
+
+	@Test
+	public void snapshotUnaffectedByElementChanges() throws Exception {
+		PersistentRopeVariantStream<InvariantSpan> stream = new PersistentRopeVariantStream<>(documentHash);
+		InvariantSpan put = new InvariantSpan(100, 10, documentHash);
+		stream.put(1, put);
+		PersistentRopeVariantStream<InvariantSpan> snapshot = stream.snapshot();
+
+		put.setWidth(2);
+		stream.getStreamElements().get(0).setWidth(3);
+		stream.iterator(new VariantSpan(1, 10)).next().setStart(200);
+		stream.index(1).setWidth(4);
+
+		List<InvariantSpan> expected = Arrays.asList(new InvariantSpan(100, 10, documentHash));
+		assertEquals(expected, snapshot.getStreamElements());
+		assertEquals(expected, stream.getStreamElements());
+		assertEquals(10, stream.getRoot().characterCount);
+	}
+
+	@Test
+	public void staysBalanced() throws Exception {
+		PersistentRopeVariantStream<InvariantSpan> stream = new PersistentRopeVariantStream<>(documentHash);
+		for (int i = 1; i <= 4096; i++) {
+			stream.put(i, new InvariantSpan(2 * i, 1, documentHash));
+		}
+		PersistentNode<InvariantSpan> root = stream.getRoot();
+		assertTrue(root.height <= 18);
+		assertEquals(4096, root.characterCount);
+	}
+
+	@Test
+	public void swap() throws Exception {
+		VariantStream<InvariantSpan> stream = getA();
+		stream.swap(new VariantSpan(1, 3), new VariantSpan(12, 3));
+		List<InvariantSpan> spans = stream.getStreamElements();
+
+		assertEquals(new InvariantSpan(300, 3, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(103, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(3));
+		assertEquals(new InvariantSpan(100, 3, documentHash), spans.get(4));
+		assertEquals(new InvariantSpan(303, 1, documentHash), spans.get(5));
+		assertEquals(8, spans.size());
+	}
+
+	@Test
+	public void toggleOnOff() throws Exception {
+		VariantStream<OverlayStream> stream = new PersistentRopeVariantStream<>(documentHash);
+		stream.put(1, new OverlayStream(1));
+		stream.put(2, new OverlayStream(1));
+		stream.put(3, new OverlayStream(1));
+		stream.put(4, new OverlayStream(1));
+
+		stream.toggleOverlay(new VariantSpan(2, 2), PresenterOverlay.BOLD_OVERLAY);
+		stream.toggleOverlay(new VariantSpan(2, 2), PresenterOverlay.BOLD_OVERLAY);
+
+		List<OverlayStream> results = stream.getStreamElements();
+		assertEquals(1, results.size());
+		assertEquals(4, results.get(0).getWidth());
+
+		for (OverlayStream seg : results) {
+			assertFalse(seg.hasLinks());
+		}
+	}
+}
@@ -17,9 +17,21 @@ package org.oulipo.streams.impl;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
 
 import org.junit.Test;
+import org.oulipo.streams.overlays.PresenterOverlay;
 import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.OverlayStream;
+
+import com.google.common.collect.Sets;
 
 public class RopeUtilsTest {
 
@@ -77,6 +89,17 @@ public class RopeUtilsTest {
 		assertEquals(0, RopeUtils.addWeightsOfRightLeaningParentNodes(left));
 	}
 
+	@Test
+	public void addWeightsOfRightLeaningParentNodesLinearList() throws Exception {
+		Node<InvariantSpan> x = NodeFactory.createLinearList(100000);
+		Node<InvariantSpan> leaf = x;
+		while (!leaf.isLeaf()) {
+			leaf = leaf.left;
+		}
+		assertEquals(0, RopeUtils.addWeightsOfRightLeaningParentNodes(leaf));
+		assertEquals(1, RopeUtils.addWeightsOfRightLeaningParentNodes(leaf.parent.right));
+	}
+
 	@Test(expected = IllegalStateException.class)
 	public void addWeightsOfRightLeaningParentNodesNull() throws Exception {
 		RopeUtils.addWeightsOfRightLeaningParentNodes(null);
@@ -95,13 +118,31 @@ public class RopeUtilsTest {
 		assertEquals(1, RopeUtils.addWeightsOfRightLeaningParentNodes(right));
 	}
 
+	@Test
+	public void build() throws Exception {
+		List<InvariantSpan> spans = new ArrayList<>();
+		for (int i = 1; i <= 1000; i++) {
+			spans.add(new InvariantSpan(i, 2, documentHash));
+		}
+		Node<InvariantSpan> root = RopeUtils.build(spans);
+		assertEquals(11, root.height);
+		assertEquals(2000, root.characterCount());
+		assertEquals(new InvariantSpan(501, 2, documentHash), RopeUtils.index(1001, root, 0).node.value);
+	}
+
+	@Test
+	public void buildEmpty() throws Exception {
+		assertNull(RopeUtils.build(new ArrayList<InvariantSpan>()));
+	}
+
 	@Test
 	public void characterCount() throws Exception {
-		Node<InvariantSpan> right = new Node<>(new InvariantSpan(1, 10, documentHash));
-		Node<InvariantSpan> right2 = new Node<>(new InvariantSpan(1, 20, documentHash));
-		right.right = right2;
+		Node<InvariantSpan> left = new Node<>(new InvariantSpan(1, 10, documentHash));
+		Node<InvariantSpan> right = new Node.Builder<InvariantSpan>(10)
+				.left(new Node<>(new InvariantSpan(11, 10, documentHash)))
+				.right(new Node<>(new InvariantSpan(21, 20, documentHash))).build();
 
-		Node<InvariantSpan> x = new Node.Builder<InvariantSpan>(10).right(right).build();
+		Node<InvariantSpan> x = new Node.Builder<InvariantSpan>(10).left(left).right(right).build();
 
 		assertEquals(40, RopeUtils.characterCount(x));
 	}
@@ -116,6 +157,26 @@ public class RopeUtilsTest {
 		assertEquals(0, RopeUtils.characterCount(null));
 	}
 
+	@Test
+	public void coalesce() throws Exception {
+		List<InvariantSpan> spans = Arrays.asList(new InvariantSpan(1, 3, documentHash),
+				new InvariantSpan(4, 2, documentHash), new InvariantSpan(6, 1, "otherHash"),
+				new InvariantSpan(10, 1, documentHash), new InvariantSpan(11, 1, documentHash));
+		List<InvariantSpan> coalesced = RopeUtils.coalesce(spans);
+		assertEquals(3, coalesced.size());
+		assertEquals(new InvariantSpan(1, 5, documentHash), coalesced.get(0));
+		assertEquals(new InvariantSpan(6, 1, "otherHash"), coalesced.get(1));
+		assertEquals(new InvariantSpan(10, 2, documentHash), coalesced.get(2));
+	}
+
+	@Test
+	public void collectLeafNodesLinearList() throws Exception {
+		Queue<Node<InvariantSpan>> queue = new ArrayDeque<>();
+		RopeUtils.collectLeafNodes(NodeFactory.createLinearList(100000), queue);
+		assertEquals(100000, queue.size());
+		assertEquals(new InvariantSpan(1, 1, documentHash), queue.peek().value);
+	}
+
 	@Test
 	public void concatLeft() throws Exception {
 		Node<InvariantSpan> left = new Node<>(new InvariantSpan(1, 10, documentHash));
@@ -139,6 +200,77 @@ public class RopeUtilsTest {
 
 	}
 
+	@Test
+	public void findRootLinearList() throws Exception {
+		Node<InvariantSpan> x = NodeFactory.createLinearList(100000);
+		Node<InvariantSpan> leaf = x;
+		while (!leaf.isLeaf()) {
+			leaf = leaf.left;
+		}
+		assertEquals(x, RopeUtils.findRoot(leaf));
+	}
+
+	@Test
+	public void indexLinearList() throws Exception {
+		Node<InvariantSpan> x = NodeFactory.createLinearList(100000);
+		assertEquals(new InvariantSpan(1, 1, documentHash), RopeUtils.index(1, x, 0).node.value);
+		assertEquals(new InvariantSpan(100000, 1, documentHash), RopeUtils.index(100000, x, 0).node.value);
+	}
+
+	@Test
+	public void mergeOverlays() throws Exception {
+		OverlayStream bold = new OverlayStream(2, Sets.newHashSet(PresenterOverlay.BOLD_OVERLAY));
+		OverlayStream bold2 = new OverlayStream(3, Sets.newHashSet(PresenterOverlay.BOLD_OVERLAY));
+		OverlayStream italic = new OverlayStream(3, Sets.newHashSet(PresenterOverlay.ITALIC_OVERLAY));
+
+		OverlayStream merged = RopeUtils.merge(bold, bold2);
+		assertEquals(5, merged.getWidth());
+		assertTrue(merged.hasLinkType(PresenterOverlay.BOLD_OVERLAY));
+		assertNull(RopeUtils.merge(bold, italic));
+	}
+
+	@Test
+	public void mergeSpansNotContiguous() throws Exception {
+		assertNull(RopeUtils.merge(new InvariantSpan(1, 3, documentHash), new InvariantSpan(5, 3, documentHash)));
+		assertNull(RopeUtils.merge(new InvariantSpan(4, 3, documentHash), new InvariantSpan(1, 3, documentHash)));
+	}
+
+	@Test
+	public void joinBalancesTallerLeft() throws Exception {
+		Node<InvariantSpan> left = null;
+		for (int i = 1; i <= 16; i++) {
+			left = RopeUtils.join(left, new Node<>(new InvariantSpan(i, 1, documentHash)));
+		}
+		Node<InvariantSpan> right = new Node<>(new InvariantSpan(17, 4, documentHash));
+		Node<InvariantSpan> root = RopeUtils.join(left, right);
+
+		assertEquals(20, RopeUtils.characterCount(root));
+		assertEquals(6, root.height);
+		assertEquals(right, RopeUtils.index(17, root, 0).node);
+	}
+
+	@Test
+	public void joinBalancesTallerRight() throws Exception {
+		Node<InvariantSpan> right = null;
+		for (int i = 1; i <= 16; i++) {
+			right = RopeUtils.join(right, new Node<>(new InvariantSpan(i, 1, documentHash)));
+		}
+		Node<InvariantSpan> left = new Node<>(new InvariantSpan(100, 4, documentHash));
+		Node<InvariantSpan> root = RopeUtils.join(left, right);
+
+		assertEquals(20, RopeUtils.characterCount(root));
+		assertEquals(6, root.height);
+		assertEquals(left, RopeUtils.index(4, root, 0).node);
+		assertEquals(new InvariantSpan(1, 1, documentHash), RopeUtils.index(5, root, 0).node.value);
+	}
+
+	@Test
+	public void joinNull() throws Exception {
+		Node<InvariantSpan> x = new Node<>(new InvariantSpan(1, 10, documentHash));
+		assertEquals(x, RopeUtils.join(x, null));
+		assertEquals(x, RopeUtils.join(null, x));
+	}
+
 	@Test
 	public void findSearchNode() throws Exception {
 		// RopeUtils.findSearchNode(x, weight, root)
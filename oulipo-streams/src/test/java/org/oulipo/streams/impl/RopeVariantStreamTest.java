@@ -21,14 +21,18 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.oulipo.streams.impl.NodeFactory.getA;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
 import org.junit.Test;
+import org.oulipo.streams.MalformedSpanException;
 import org.oulipo.streams.VariantSpan;
 import org.oulipo.streams.VariantStream;
 import org.oulipo.streams.overlays.PresenterOverlay;
+import org.oulipo.streams.types.Invariant;
+import org.oulipo.streams.types.InvariantMedia;
 import org.oulipo.streams.types.InvariantSpan;
 import org.oulipo.streams.types.OverlayStream;
 
@@ -115,19 +119,21 @@ public class RopeVariantStreamTest {
 
 		stream.applyOverlays(new VariantSpan(3, 4), Sets.newHashSet(PresenterOverlay.BOLD_OVERLAY));// 3,4,5,6
 
+		// bold overlays 3,4,5,6 are coalesced
 		List<OverlayStream> overlays = stream.getStreamElements();
+		assertEquals(5, overlays.size());
 		assertEquals(PresenterOverlay.BOLD_OVERLAY, overlays.get(2).linkTypes.iterator().next());
-		assertEquals(PresenterOverlay.BOLD_OVERLAY, overlays.get(3).linkTypes.iterator().next());
-		assertEquals(PresenterOverlay.BOLD_OVERLAY, overlays.get(4).linkTypes.iterator().next());
-		assertEquals(PresenterOverlay.BOLD_OVERLAY, overlays.get(5).linkTypes.iterator().next());
+		assertEquals(4, overlays.get(2).getWidth());
 
 		stream.applyOverlays(new VariantSpan(4, 2), Sets.newHashSet(PresenterOverlay.ITALIC_OVERLAY));// 4,5
 		overlays = stream.getStreamElements();
 
 		assertEquals(PresenterOverlay.BOLD_OVERLAY, overlays.get(2).linkTypes.iterator().next());
+		assertEquals(1, overlays.get(2).getWidth());
 		assertEquals(2, overlays.get(3).linkTypes.size());
-		assertEquals(2, overlays.get(4).linkTypes.size());
-		assertEquals(PresenterOverlay.BOLD_OVERLAY, overlays.get(5).linkTypes.iterator().next());
+		assertEquals(2, overlays.get(3).getWidth());
+		assertEquals(PresenterOverlay.BOLD_OVERLAY, overlays.get(4).linkTypes.iterator().next());
+		assertEquals(1, overlays.get(4).getWidth());
 	}
 
 	@Test
@@ -146,6 +152,20 @@ public class RopeVariantStreamTest {
 		assertEquals(PresenterOverlay.BOLD_OVERLAY, it.next().linkTypes.iterator().next());
 	}
 
+	@Test
+	public void compact() throws Exception {
+		RopeVariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
+		stream.move(4, new VariantSpan(7, 3));
+		stream.delete(new VariantSpan(4, 3));
+		assertEquals(6, stream.getStreamElements().size());
+
+		stream.compact();
+		List<InvariantSpan> spans = stream.getStreamElements();
+		assertEquals(5, spans.size());
+		assertEquals(new InvariantSpan(100, 6, documentHash), spans.get(0));
+		assertEquals(19, stream.root.characterCount());
+	}
+
 	@Test
 	public void copy() throws Exception {
 		// * [100, 6], [200,3], [250, 2], [300, 4], [350, 1], [360, 6]
@@ -156,7 +176,7 @@ public class RopeVariantStreamTest {
 		List<InvariantSpan> spans = stream.getStreamElements();
 
 		assertEquals(new InvariantSpan(100, 1, documentHash), spans.get(0));
-		assertEquals(new InvariantSpan(301, 3, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(300, 3, documentHash), spans.get(1));
 		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(3));
 		assertEquals(new InvariantSpan(250, 2, documentHash), spans.get(4));
 		assertEquals(new InvariantSpan(300, 4, documentHash), spans.get(5));
@@ -391,7 +411,7 @@ public class RopeVariantStreamTest {
 
 		List<InvariantSpan> results = stream.getStreamElements(new VariantSpan(5, 6));
 
-		assertEquals(new InvariantSpan(6, 6, documentHash), results.get(0));
+		assertEquals(new InvariantSpan(5, 6, documentHash), results.get(0));
 	}
 
 	@Test
@@ -444,7 +464,26 @@ public class RopeVariantStreamTest {
 	public void getInvariantSpansSmallWidthRight() throws Exception {
 		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
 		List<InvariantSpan> spans = stream.getStreamElements(new VariantSpan(21, 1));
-		assertEquals(new InvariantSpan(365, 1, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(364, 1, documentHash), spans.get(0));
+	}
+
+	@Test
+	public void getVariantSpansAfterMedia() throws Exception {
+		VariantStream<Invariant> stream = new RopeVariantStream<>(documentHash);
+		stream.putElements(1, Arrays.asList(new InvariantSpan(1, 3, documentHash), new InvariantMedia("mediaHash"),
+				new InvariantSpan(4, 2, documentHash)));
+		List<VariantSpan> result = stream.getVariantSpans(new InvariantSpan(4, 2, documentHash));
+		assertEquals(1, result.size());
+		assertEquals(new VariantSpan(5, 2, documentHash), result.get(0));
+	}
+
+	@Test
+	public void getVariantSpansAfterMove() throws Exception {
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
+		stream.move(1, new VariantSpan(17, 6));
+		List<VariantSpan> result = stream.getVariantSpans(new InvariantSpan(362, 2, documentHash));
+		assertEquals(1, result.size());
+		assertEquals(new VariantSpan(3, 2, documentHash), result.get(0));
 	}
 
 	@Test
@@ -460,6 +499,22 @@ public class RopeVariantStreamTest {
 		assertEquals(new InvariantSpan(7, 5, documentHash), invariantSpan);
 	}
 
+	@Test
+	public void getVariantSpansTranscluded() throws Exception {
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		List<InvariantSpan> spans = Arrays.asList(new InvariantSpan(1, 5, documentHash),
+				new InvariantSpan(1, 5, "otherHash"), new InvariantSpan(6, 5, documentHash));
+		stream.putElements(1, spans);
+
+		List<VariantSpan> result = stream.getVariantSpans(new InvariantSpan(3, 2, "otherHash"));
+		assertEquals(1, result.size());
+		assertEquals(new VariantSpan(8, 2, documentHash), result.get(0));
+
+		result = stream.getVariantSpans(new InvariantSpan(3, 2, documentHash));
+		assertEquals(1, result.size());
+		assertEquals(new VariantSpan(3, 2, documentHash), result.get(0));
+	}
+
 	@Test
 	public void getVariantSpansTwo() throws Exception {
 		// [7,5]. [4,3], [1,3]
@@ -526,6 +581,54 @@ public class RopeVariantStreamTest {
 		assertNull(span);
 	}
 
+	@Test
+	public void iterator() throws Exception {
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
+		Iterator<InvariantSpan> it = stream.iterator(new VariantSpan(5, 9));
+		assertEquals(new InvariantSpan(104, 2, documentHash), it.next());
+		assertEquals(new InvariantSpan(200, 3, documentHash), it.next());
+		assertEquals(new InvariantSpan(250, 2, documentHash), it.next());
+		assertEquals(new InvariantSpan(300, 2, documentHash), it.next());
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void iteratorBeyondWidth() throws Exception {
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
+		Iterator<InvariantSpan> it = stream.iterator(new VariantSpan(20, 100));
+		assertEquals(new InvariantSpan(363, 3, documentHash), it.next());
+		assertFalse(it.hasNext());
+
+		assertFalse(stream.iterator(new VariantSpan(23, 1)).hasNext());
+	}
+
+	@Test
+	public void iteratorEmptyStream() throws Exception {
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		assertFalse(stream.iterator(new VariantSpan(1, 10)).hasNext());
+	}
+
+	@Test
+	public void iteratorWithinSingleSpan() throws Exception {
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
+		Iterator<InvariantSpan> it = stream.iterator(new VariantSpan(13, 2));
+		assertEquals(new InvariantSpan(301, 2, documentHash), it.next());
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void loadBalanced() throws Exception {
+		List<InvariantSpan> spans = new ArrayList<>();
+		for (int i = 1; i <= 4096; i++) {
+			spans.add(new InvariantSpan(2 * i, 1, documentHash));
+		}
+		RopeVariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		stream.load(spans);
+
+		assertEquals(13, stream.root.height);
+		assertEquals(spans, stream.getStreamElements());
+	}
+
 	@Test
 	public void moveSpan() throws Exception {
 		// * [100, 6], [200,3], [250, 2], [300, 4], [350, 1], [360, 6]
@@ -620,6 +723,83 @@ public class RopeVariantStreamTest {
 		assertEquals(new InvariantSpan(360, 6, documentHash), spans.get(6));
 	}
 
+	@Test
+	public void putSequentialStaysBalanced() throws Exception {
+		RopeVariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		for (int i = 1; i <= 4096; i++) {
+			stream.put(i, new InvariantSpan(2 * i, 1, documentHash));
+		}
+
+		assertTrue(stream.root.height <= 18);
+		assertEquals(new InvariantSpan(4096, 1, documentHash), stream.index(2048));
+		assertEquals(4096, stream.getStreamElements().size());
+	}
+
+	@Test
+	public void putFrontStaysBalanced() throws Exception {
+		RopeVariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		for (int i = 1; i <= 4096; i++) {
+			stream.put(1, new InvariantSpan(i, 1, documentHash));
+		}
+
+		assertTrue(stream.root.height <= 18);
+		assertEquals(new InvariantSpan(4096, 1, documentHash), stream.index(1));
+		assertEquals(new InvariantSpan(1, 1, documentHash), stream.index(4096));
+	}
+
+	@Test
+	public void deleteStaysBalanced() throws Exception {
+		RopeVariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		for (int i = 1; i <= 4096; i++) {
+			stream.put(i, new InvariantSpan(i, 1, documentHash));
+		}
+		for (int i = 1; i <= 2048; i++) {
+			stream.delete(new VariantSpan(i, 1));
+		}
+
+		assertTrue(stream.root.height <= 16);
+		List<InvariantSpan> spans = stream.getStreamElements();
+		assertEquals(2048, spans.size());
+		assertEquals(new InvariantSpan(2, 1, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(4096, 1, documentHash), spans.get(2047));
+	}
+
+	@Test
+	public void putCoalescesWithNeighbours() throws Exception {
+		RopeVariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
+		stream.put(7, new InvariantSpan(106, 2, documentHash));
+		stream.put(1, new InvariantSpan(98, 2, documentHash));
+
+		List<InvariantSpan> spans = stream.getStreamElements();
+		assertEquals(6, spans.size());
+		assertEquals(new InvariantSpan(98, 10, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(200, 3, documentHash), stream.index(11));
+	}
+
+	@Test
+	public void putElementsMiddle() throws Exception {
+		RopeVariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash,
+				Arrays.asList(new InvariantSpan(100, 6, documentHash), new InvariantSpan(200, 3, documentHash)));
+		stream.putElements(4,
+				Arrays.asList(new InvariantSpan(300, 2, documentHash), new InvariantSpan(400, 1, documentHash)));
+
+		List<InvariantSpan> spans = stream.getStreamElements();
+		assertEquals(5, spans.size());
+		assertEquals(new InvariantSpan(100, 3, documentHash), spans.get(0));
+		assertEquals(new InvariantSpan(300, 2, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(400, 1, documentHash), spans.get(2));
+		assertEquals(new InvariantSpan(103, 3, documentHash), spans.get(3));
+		assertEquals(new InvariantSpan(200, 3, documentHash), spans.get(4));
+	}
+
+	@Test(expected = MalformedSpanException.class)
+	public void putElementsZeroWidth() throws Exception {
+		RopeVariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
+		InvariantSpan span = new InvariantSpan(100, 6, documentHash);
+		span.setWidth(0);
+		stream.putElements(1, Arrays.asList(span));
+	}
+
 	@Test
 	public void putSmallPartitions() throws Exception {
 		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash);
@@ -634,12 +814,10 @@ public class RopeVariantStreamTest {
 
 		List<InvariantSpan> spans = stream.getStreamElements(new VariantSpan(3, 4));
 
-		assertEquals(new InvariantSpan(3, 1, documentHash), spans.get(0));
-		assertEquals(new InvariantSpan(4, 1, documentHash), spans.get(1));
-		assertEquals(new InvariantSpan(5, 1, documentHash), spans.get(2));
-		assertEquals(new InvariantSpan(6, 1, documentHash), spans.get(3));
+		// contiguous spans are coalesced on put
+		assertEquals(new InvariantSpan(3, 4, documentHash), spans.get(0));
 
-		assertEquals(4, spans.size());
+		assertEquals(1, spans.size());
 
 	}
 
@@ -657,10 +835,9 @@ public class RopeVariantStreamTest {
 
 		List<InvariantSpan> spans = stream.getStreamElements(new VariantSpan(4, 2));
 
-		assertEquals(new InvariantSpan(4, 1, documentHash), spans.get(0));
-		assertEquals(new InvariantSpan(5, 1, documentHash), spans.get(1));
+		assertEquals(new InvariantSpan(4, 2, documentHash), spans.get(0));
 
-		assertEquals(2, spans.size());
+		assertEquals(1, spans.size());
 
 	}
 
@@ -688,9 +865,8 @@ public class RopeVariantStreamTest {
 
 		List<InvariantSpan> results = stream.getStreamElements();
 
-		assertEquals(results.get(0), new InvariantSpan(1, 1, documentHash));
-		assertEquals(results.get(1), new InvariantSpan(2, 1, documentHash));
-		assertEquals(results.get(2), new InvariantSpan(3, 1, documentHash));
+		assertEquals(1, results.size());
+		assertEquals(results.get(0), new InvariantSpan(1, 3, documentHash));
 	}
 
 	@Test
@@ -705,10 +881,9 @@ public class RopeVariantStreamTest {
 
 		List<InvariantSpan> results = stream.getStreamElements();
 
-		assertEquals(results.get(0), new InvariantSpan(3, 1, documentHash));// 3
-		assertEquals(results.get(1), new InvariantSpan(4, 1, documentHash));// 1
-		assertEquals(results.get(2), new InvariantSpan(1, 1, documentHash));// 4
-		assertEquals(results.get(3), new InvariantSpan(2, 1, documentHash));// 2
+		assertEquals(2, results.size());
+		assertEquals(results.get(0), new InvariantSpan(3, 2, documentHash));// 3, 4
+		assertEquals(results.get(1), new InvariantSpan(1, 2, documentHash));// 1, 2
 
 	}
 
@@ -728,6 +903,25 @@ public class RopeVariantStreamTest {
 		assertEquals(new InvariantSpan(360, 6, documentHash), spans.get(7));
 	}
 
+	@Test
+	public void size() throws Exception {
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
+		assertEquals(stream.getStreamElements().size(), stream.size());
+		stream.delete(new VariantSpan(12, 6));
+		assertEquals(stream.getStreamElements().size(), stream.size());
+		assertEquals(0, new RopeVariantStream<InvariantSpan>(documentHash).size());
+	}
+
+	@Test
+	public void sizeAfterEdits() throws Exception {
+		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
+		assertEquals(stream.getStreamElements().size(), stream.size());
+
+		stream.delete(new VariantSpan(3, 5));
+		stream.put(2, new InvariantSpan(500, 3, documentHash));
+		assertEquals(stream.getStreamElements().size(), stream.size());
+	}
+
 	@Test
 	public void swap() throws Exception {
 		VariantStream<InvariantSpan> stream = new RopeVariantStream<>(documentHash, getA());
@@ -765,7 +959,8 @@ public class RopeVariantStreamTest {
 		stream.toggleOverlay(new VariantSpan(2, 2), PresenterOverlay.BOLD_OVERLAY);
 
 		List<OverlayStream> results = stream.getStreamElements();
-		assertEquals(4, results.size());
+		assertEquals(1, results.size());
+		assertEquals(4, results.get(0).getWidth());
 
 		for (OverlayStream seg : results) {
 			assertFalse(seg.hasLinks());
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SerialExecutorTest {
+
+	@Test
+	public void inTask() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		SerialExecutor executor = new SerialExecutor(pool);
+		assertFalse(executor.inTask());
+		CountDownLatch done = new CountDownLatch(1);
+		List<Boolean> results = new ArrayList<>();
+		executor.execute(() -> {
+			results.add(executor.inTask());
+			done.countDown();
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(1, results.size());
+		assertTrue(results.get(0));
+		pool.shutdown();
+	}
+
+	@Test
+	public void runsInOrderOneAtATime() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		SerialExecutor executor = new SerialExecutor(pool);
+		List<Integer> order = new ArrayList<>();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger overlaps = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(1000);
+		for (int i = 0; i < 1000; i++) {
+			int task = i;
+			executor.execute(() -> {
+				if (running.incrementAndGet() > 1) {
+					overlaps.incrementAndGet();
+				}
+				order.add(task);
+				running.decrementAndGet();
+				done.countDown();
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, overlaps.get());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, order.get(i).intValue());
+		}
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.oulipo.streams.overlays.OntologicalOverlay;
+import org.oulipo.streams.overlays.Overlay;
+import org.oulipo.streams.overlays.PresenterIntegerOverlay;
+import org.oulipo.streams.overlays.PresenterOverlay;
+import org.oulipo.streams.overlays.PresenterStringOverlay;
+import org.oulipo.streams.overlays.TopologicalOverlay;
+import org.oulipo.streams.types.Invariant;
+import org.oulipo.streams.types.InvariantMedia;
+import org.oulipo.streams.types.InvariantSpan;
+import org.oulipo.streams.types.OverlayMedia;
+import org.oulipo.streams.types.OverlayStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class SnapshotCodecTest {
+
+	private static File newFile() {
+		File dir = new File("target/streams-junit/SnapshotCodec-" + System.nanoTime());
+		dir.mkdirs();
+		return new File(dir, "test.snapshot");
+	}
+
+	@Test
+	public void invariants() throws Exception {
+		File file = newFile();
+		List<Invariant> elements = Arrays.asList(new InvariantSpan(1, 10, "a"), new InvariantSpan(11, 5, "a"),
+				new InvariantSpan(3, 2, "a"), new InvariantMedia("media"), new InvariantSpan(100, 7, "b"),
+				new InvariantSpan(5, 1, null), new InvariantSpan(Long.MAX_VALUE - 1, 1, "a"));
+		SnapshotCodec.writeInvariants(file, elements, 42);
+
+		SnapshotCodec.Snapshot<Invariant> snapshot = SnapshotCodec.readInvariants(file);
+		assertEquals(elements, snapshot.elements);
+		assertEquals(42, snapshot.sequence);
+	}
+
+	@Test(expected = IOException.class)
+	public void invariantsAsOverlays() throws Exception {
+		File file = newFile();
+		SnapshotCodec.writeInvariants(file, Arrays.asList(new InvariantSpan(1, 10, "a")), 0);
+		SnapshotCodec.readOverlays(file);
+	}
+
+	@Test
+	public void invariantsEmpty() throws Exception {
+		File file = newFile();
+		SnapshotCodec.writeInvariants(file, Collections.emptyList(), 0);
+		assertTrue(SnapshotCodec.readInvariants(file).elements.isEmpty());
+	}
+
+	@Test
+	public void invariantsSmallerThanJson() throws Exception {
+		File file = newFile();
+		List<Invariant> elements = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			elements.add(new InvariantSpan(1 + i * 10, 10, "fakeHash"));
+		}
+		SnapshotCodec.writeInvariants(file, elements, 0);
+
+		File json = new File(file.getParentFile(), "test.json");
+		new ObjectMapper().writeValue(json, elements);
+		assertTrue(file.length() * 10 < json.length());
+	}
+
+	@Test(expected = IOException.class)
+	public void notSnapshot() throws Exception {
+		File file = newFile();
+		new ObjectMapper().writeValue(file, Arrays.asList(new OverlayStream(10)));
+		SnapshotCodec.readOverlays(file);
+	}
+
+	@Test
+	public void overlaySetsNotShared() throws Exception {
+		File file = newFile();
+		List<OverlayStream> elements = Arrays.asList(
+				new OverlayStream(10, new HashSet<>(Arrays.asList(PresenterOverlay.BOLD_OVERLAY))),
+				new OverlayStream(5, new HashSet<>(Arrays.asList(PresenterOverlay.BOLD_OVERLAY))));
+		SnapshotCodec.writeOverlays(file, elements, 0);
+
+		List<OverlayStream> read = SnapshotCodec.readOverlays(file).elements;
+		read.get(0).addLinkType(PresenterOverlay.ITALIC_OVERLAY);
+		assertEquals(1, read.get(1).linkCount());
+	}
+
+	@Test
+	public void overlays() throws Exception {
+		File file = newFile();
+		Overlay[] links = { PresenterOverlay.BOLD_OVERLAY, new PresenterIntegerOverlay(PresenterOverlay.ITALIC, 3),
+				new PresenterStringOverlay(PresenterOverlay.UNDERLINE, "red"), new PresenterStringOverlay(7, null),
+				new OntologicalOverlay("comment"), new TopologicalOverlay("target", "jump") };
+		OverlayStream tagged = new OverlayStream(4, "tag");
+		List<OverlayStream> elements = Arrays.asList(new OverlayStream(10, new HashSet<>(Arrays.asList(links))),
+				new OverlayStream(5, new HashSet<>(Arrays.asList(links[0], links[4]))), tagged,
+				new OverlayStream(3, new HashSet<>(Arrays.asList(links[4], links[0]))),
+				new OverlayMedia("media", new HashSet<>(Arrays.asList(links[5]))),
+				new OverlayStream(2, (Set<Overlay>) null));
+		SnapshotCodec.writeOverlays(file, elements, 7);
+
+		SnapshotCodec.Snapshot<OverlayStream> snapshot = SnapshotCodec.readOverlays(file);
+		assertEquals(elements, snapshot.elements);
+		assertEquals(7, snapshot.sequence);
+		assertEquals("tag", snapshot.elements.get(2).tag);
+		assertNull(snapshot.elements.get(0).tag);
+		assertSame(OverlayMedia.class, snapshot.elements.get(4).getClass());
+		assertNull(snapshot.elements.get(5).linkTypes);
+	}
+
+	@Test
+	public void varLong() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		long[] values = { 0, 1, 127, 128, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1 };
+		for (long value : values) {
+			SnapshotCodec.writeVarLong(out, value);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for (long value : values) {
+			assertEquals(value, SnapshotCodec.readVarLong(in));
+		}
+	}
+}
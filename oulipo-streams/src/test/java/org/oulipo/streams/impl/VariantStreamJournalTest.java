@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.VariantStream;
+import org.oulipo.streams.types.Invariant;
+import org.oulipo.streams.types.InvariantMedia;
+import org.oulipo.streams.types.InvariantSpan;
+
+public class VariantStreamJournalTest {
+
+	private static final String documentHash = "fakeHash";
+
+	private static File newFile(String suffix) {
+		return new File("target/streams-junit/VariantStreamJournal-" + System.nanoTime() + suffix);
+	}
+
+	private static VariantStream<Invariant> open(File file, File snapshot, long snapshotBytes) throws Exception {
+		VariantStream<Invariant> stream = new ChunkedInvariantVariantStream(documentHash);
+		VariantStreamJournal.open(file, snapshot, snapshotBytes, stream);
+		return stream;
+	}
+
+	private static WriteBehindVariantStream<Invariant> openJournaled(File file, File snapshot, long snapshotBytes)
+			throws Exception {
+		file.getParentFile().mkdirs();
+		VariantStream<Invariant> stream = new ChunkedInvariantVariantStream(documentHash);
+		VariantStreamJournal journal = VariantStreamJournal.open(file, snapshot, snapshotBytes, stream);
+		return new WriteBehindVariantStream<>(stream, file, journal, s -> {
+		});
+	}
+
+	private static void write(WriteBehindVariantStream<Invariant> stream) throws Exception {
+		VariantStreamJournal.Flush flush;
+		synchronized (stream) {
+			flush = stream.journal.drain(stream);
+		}
+		stream.journal.write(flush);
+	}
+
+	@Test
+	public void failedEditWritesSnapshot() throws Exception {
+		File file = newFile(".journal");
+		File snapshot = newFile(".snapshot");
+		WriteBehindVariantStream<Invariant> stream = openJournaled(file, snapshot, 1 << 20);
+		stream.put(1, new InvariantSpan(1, 10, documentHash));
+		try {
+			stream.put(50, new InvariantSpan(20, 2, documentHash));
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+		write(stream);
+
+		assertTrue(snapshot.exists());
+		assertEquals(14, file.length());
+		assertEquals(stream.getStreamElements(), open(file, snapshot, 1 << 20).getStreamElements());
+	}
+
+	@Test
+	public void replay() throws Exception {
+		File file = newFile(".journal");
+		File snapshot = newFile(".snapshot");
+		WriteBehindVariantStream<Invariant> stream = openJournaled(file, snapshot, 1 << 20);
+		stream.put(1, new InvariantSpan(1, 10, documentHash));
+		stream.put(11, new InvariantSpan(20, 10, null));
+		stream.put(5, new InvariantMedia("media"));
+		write(stream);
+		stream.move(1, new VariantSpan(12, 3));
+		stream.copy(4, new VariantSpan(1, 2));
+		stream.swap(new VariantSpan(1, 2), new VariantSpan(10, 2));
+		stream.delete(new VariantSpan(7, 4));
+		write(stream);
+
+		assertEquals(stream.getStreamElements(), open(file, snapshot, 1 << 20).getStreamElements());
+	}
+
+	@Test
+	public void replayAfterReopen() throws Exception {
+		File file = newFile(".journal");
+		File snapshot = newFile(".snapshot");
+		WriteBehindVariantStream<Invariant> stream = openJournaled(file, snapshot, 1 << 20);
+		stream.put(1, new InvariantSpan(1, 10, documentHash));
+		write(stream);
+
+		stream = openJournaled(file, snapshot, 1 << 20);
+		stream.put(1, new InvariantSpan(30, 10, documentHash));
+		stream.put(1, new InvariantSpan(40, 10, "other"));
+		write(stream);
+
+		List<Invariant> elements = open(file, snapshot, 1 << 20).getStreamElements();
+		assertEquals(stream.getStreamElements(), elements);
+		assertEquals(3, elements.size());
+	}
+
+	@Test
+	public void snapshot() throws Exception {
+		File file = newFile(".journal");
+		File snapshot = newFile(".snapshot");
+		WriteBehindVariantStream<Invariant> stream = openJournaled(file, snapshot, 200);
+		for (int i = 0; i < 20; i++) {
+			stream.put(1, new InvariantSpan(i * 10 + 1, 10, documentHash));
+		}
+		write(stream);
+
+		assertTrue(snapshot.exists());
+		assertEquals(14, file.length());
+
+		stream.delete(new VariantSpan(5, 20));
+		write(stream);
+		assertTrue(file.length() > 14);
+		assertEquals(stream.getStreamElements(), open(file, snapshot, 200).getStreamElements());
+	}
+
+	@Test
+	public void snapshotWithStaleJournal() throws Exception {
+		File file = newFile(".journal");
+		File snapshot = newFile(".snapshot");
+		WriteBehindVariantStream<Invariant> stream = openJournaled(file, snapshot, 200);
+		stream.put(1, new InvariantSpan(1, 10, documentHash));
+		write(stream);
+		for (int i = 0; i < 20; i++) {
+			stream.put(1, new InvariantSpan(i * 10 + 11, 10, documentHash));
+		}
+
+		// journal as it was before the snapshot, as if the process stopped between
+		// writing the snapshot and clearing the journal
+		byte[] stale = Files.readAllBytes(file.toPath());
+		write(stream);
+		Files.write(file.toPath(), stale);
+
+		assertEquals(stream.getStreamElements(), open(file, snapshot, 200).getStreamElements());
+	}
+
+	@Test
+	public void tornRecord() throws Exception {
+		File file = newFile(".journal");
+		File snapshot = newFile(".snapshot");
+		WriteBehindVariantStream<Invariant> stream = openJournaled(file, snapshot, 1 << 20);
+		stream.put(1, new InvariantSpan(1, 10, documentHash));
+		write(stream);
+		long length = file.length();
+		stream.put(11, new InvariantSpan(50, 10, documentHash));
+		write(stream);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+
+		stream = openJournaled(file, snapshot, 1 << 20);
+		assertEquals(length, file.length());
+		assertEquals(1, stream.getStreamElements().size());
+
+		stream.put(11, new InvariantSpan(70, 5, documentHash));
+		write(stream);
+		assertEquals(stream.getStreamElements(), open(file, snapshot, 1 << 20).getStreamElements());
+	}
+}
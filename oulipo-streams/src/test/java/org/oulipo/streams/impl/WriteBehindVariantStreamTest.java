@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * OulipoMachine licenses this file to you under the Apache License, Version 2.0
+ * (the "License");  you may not use this file except in compliance with the License.  
+ *
+ * You may obtain a copy of the License at
+ *   
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *    
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See the NOTICE file distributed with this work for 
+ * additional information regarding copyright ownership. 
+ *******************************************************************************/
+package org.oulipo.streams.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.oulipo.streams.impl.NodeFactory.getA;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.oulipo.streams.VariantSpan;
+import org.oulipo.streams.types.InvariantSpan;
+
+/**
+ * 
+ * [100, 6], [200,3], [250, 2], [300, 4], [350, 1], [360, 6]
+ */
+public class WriteBehindVariantStreamTest {
+
+	public static final String documentHash = "fakeHash";
+
+	private static WriteBehindVariantStream<InvariantSpan> getStream() throws Exception {
+		return new WriteBehindVariantStream<>(new RopeVariantStream<>(documentHash, getA()), null, null,
+				stream -> {
+				});
+	}
+
+	@Test
+	public void iterateWhileEditing() throws Exception {
+		WriteBehindVariantStream<InvariantSpan> stream = getStream();
+		VariantSpan all = new VariantSpan(1, 22);
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread reader = new Thread(() -> {
+			try {
+				while (!done.get()) {
+					long width = 0;
+					for (Iterator<InvariantSpan> it = stream.iterator(all); it.hasNext();) {
+						width += it.next().getWidth();
+					}
+					assertEquals(22, width);
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		reader.start();
+		for (int i = 0; i < 20000 && failure.get() == null; i++) {
+			stream.move(2, new VariantSpan(12, 3));
+			stream.swap(new VariantSpan(1, 3), new VariantSpan(12, 3));
+		}
+		done.set(true);
+		reader.join();
+		assertNull(failure.get());
+	}
+
+	@Test
+	public void iteratorUnaffectedByLaterEdits() throws Exception {
+		WriteBehindVariantStream<InvariantSpan> stream = getStream();
+		Iterator<InvariantSpan> it = stream.iterator(new VariantSpan(1, 9));
+
+		stream.delete(new VariantSpan(1, 10));
+		stream.put(1, new InvariantSpan(500, 34, documentHash));
+
+		assertEquals(new InvariantSpan(100, 6, documentHash), it.next());
+		assertEquals(new InvariantSpan(200, 3, documentHash), it.next());
+	}
+}